@@ -0,0 +1,483 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Objects;
+
+import org.vaadin.googleanalytics.tracking.GoogleAnalyticsTracker.OverflowPolicy;
+
+import elemental.json.Json;
+import elemental.json.JsonObject;
+
+/**
+ * Queue of pending tracker actions with a bounded capacity. The actions are
+ * stored in a ring buffer so that dropping the oldest action doesn't shift the
+ * remaining actions. The queue is exposed as a list so that it can be passed
+ * directly to a {@link HitTransport}. The owning tracker serializes the queue
+ * through {@link #writeTo(ObjectOutput)} using a compact encoding of the
+ * values that actions typically contain.
+ * <p>
+ * Actions added through {@link #addAllFirst(Serializable[][])} are pinned:
+ * they don't count towards the capacity and are never dropped by the overflow
+ * policy. A <code>set page</code> action directly followed by a
+ * <code>send pageview</code> action is dropped together with it.
+ */
+final class ActionQueue extends AbstractList<Serializable[]> {
+    /**
+     * Strings that are encoded as a single index byte.
+     */
+    private static final String[] COMMON_STRINGS = { "send", "set", "pageview", "event", "page", "create",
+            "timing" };
+
+    /**
+     * The longest string that is guaranteed to fit in the modified UTF-8
+     * encoding used by {@link ObjectOutput#writeUTF(String)}.
+     */
+    private static final int MAX_UTF_CHARS = 65535 / 3;
+
+    private static final int NULL = 0;
+    private static final int COMMON_STRING = 1;
+    private static final int STRING = 2;
+    private static final int LONG_STRING = 3;
+    private static final int INTEGER = 4;
+    private static final int DOUBLE = 5;
+    private static final int TRUE = 6;
+    private static final int FALSE = 7;
+    private static final int JSON_OBJECT = 8;
+    private static final int OBJECT = 9;
+
+    private Serializable[][] elements = new Serializable[8][];
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * The number of actions at the beginning of the queue that are exempt
+     * from the overflow policy.
+     */
+    private int pinned = 0;
+
+    /**
+     * The number of queued actions included in the queue depth of
+     * {@link TrackerMetrics}. Restored actions were already counted where they
+     * were queued, so this may be less than the size.
+     */
+    private int reportedDepth = 0;
+    private boolean released = false;
+
+    private int capacity;
+    private OverflowPolicy overflowPolicy;
+
+    ActionQueue(int capacity, OverflowPolicy overflowPolicy) {
+        setCapacity(capacity);
+        setOverflowPolicy(overflowPolicy);
+    }
+
+    void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Adds an action to the end of the queue, applying the overflow policy if
+     * the queue is full.
+     * 
+     * @param action
+     *            the action to add, not <code>null</code>
+     * @return the number of actions that were dropped, including the given
+     *         action if it wasn't added
+     */
+    int offer(Serializable[] action) {
+        int dropped = 0;
+        if (size - pinned >= capacity) {
+            if (isPageViewHit(action) && size - pinned == 1 && isPageLocation(get(size - 1))) {
+                // The page view doesn't fit even without anything else queued
+                removeAt(size - 1);
+                return 2;
+            }
+
+            switch (overflowPolicy) {
+            case DROP_NEWEST:
+                if (isPageViewHit(action) && isPageLocation(get(size - 1))) {
+                    removeAt(size - 1);
+                    return 2;
+                }
+                return 1;
+            case DROP_EVENTS_KEEP_PAGEVIEWS:
+                int index = indexOfNonPageView();
+                if (index >= 0) {
+                    removeAt(index);
+                    dropped = 1;
+                } else if (!isPageView(action)) {
+                    return 1;
+                } else {
+                    dropped = removeOldest();
+                }
+                break;
+            case DROP_OLDEST:
+            default:
+                dropped = removeOldest();
+                break;
+            }
+        }
+
+        ensureCapacity(size + 1);
+        elements[slot(size)] = action;
+        size++;
+        modCount++;
+        depthChanged(1);
+        return dropped;
+    }
+
+    /**
+     * Adds actions to the beginning of the queue without applying the
+     * capacity limit. The actions are pinned until the queue is cleared.
+     * 
+     * @param actions
+     *            the actions to add, not <code>null</code>
+     */
+    void addAllFirst(Serializable[][] actions) {
+        ensureCapacity(size + actions.length);
+        for (int i = actions.length - 1; i >= 0; i--) {
+            head = (head - 1 + elements.length) % elements.length;
+            elements[head] = actions[i];
+            size++;
+        }
+        pinned += actions.length;
+        modCount++;
+        depthChanged(actions.length);
+    }
+
+    /**
+     * Inserts an action at the given position without applying the capacity
+     * limit.
+     * 
+     * @param index
+     *            the position to insert at
+     * @param element
+     *            the action to insert, not <code>null</code>
+     */
+    @Override
+    public void add(int index, Serializable[] element) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        ensureCapacity(size + 1);
+        for (int i = size; i > index; i--) {
+            elements[slot(i)] = elements[slot(i - 1)];
+        }
+        elements[slot(index)] = element;
+        size++;
+        if (index < pinned) {
+            pinned++;
+        }
+        modCount++;
+        depthChanged(1);
+    }
+
+    /**
+     * Finds the position of the given action instance in the queue.
+     * 
+     * @param action
+     *            the action instance to find, not <code>null</code>
+     * @return the index of the action, or -1 if it isn't in the queue
+     */
+    int indexOfInstance(Serializable[] action) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (get(i) == action) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the settings and contents of this queue.
+     * 
+     * @param out
+     *            the output to write to, not <code>null</code>
+     * @throws IOException
+     *             if writing fails
+     */
+    void writeTo(ObjectOutput out) throws IOException {
+        out.writeInt(capacity);
+        out.writeByte(overflowPolicy.ordinal());
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            Serializable[] action = get(i);
+            out.writeShort(action.length);
+            for (Serializable value : action) {
+                writeValue(out, value);
+            }
+        }
+    }
+
+    /**
+     * Restores settings and contents written by {@link #writeTo(ObjectOutput)}.
+     * Restored actions are added without applying the capacity limit, and
+     * are not added to the queue depth of {@link TrackerMetrics} since they
+     * were counted when they were queued.
+     * 
+     * @param in
+     *            the input to read from, not <code>null</code>
+     * @throws IOException
+     *             if reading fails
+     * @throws ClassNotFoundException
+     *             if the class of a value cannot be found
+     */
+    void readFrom(ObjectInput in) throws IOException, ClassNotFoundException {
+        setCapacity(in.readInt());
+        setOverflowPolicy(OverflowPolicy.values()[in.readByte()]);
+
+        int count = in.readInt();
+        ensureCapacity(size + count);
+        for (int i = 0; i < count; i++) {
+            Serializable[] action = new Serializable[in.readUnsignedShort()];
+            for (int j = 0; j < action.length; j++) {
+                action[j] = readValue(in);
+            }
+            elements[slot(size)] = action;
+            size++;
+        }
+        modCount++;
+    }
+
+    static void writeValue(ObjectOutput out, Serializable value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt(((Integer) value).intValue());
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Double) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        } else if (value instanceof JsonObject) {
+            String json = ((JsonObject) value).toJson();
+            if (json.length() <= MAX_UTF_CHARS) {
+                out.writeByte(JSON_OBJECT);
+                out.writeUTF(json);
+            } else {
+                out.writeByte(OBJECT);
+                out.writeObject(value);
+            }
+        } else {
+            out.writeByte(OBJECT);
+            out.writeObject(value);
+        }
+    }
+
+    private static void writeString(ObjectOutput out, String value) throws IOException {
+        for (int i = 0; i < COMMON_STRINGS.length; i++) {
+            if (COMMON_STRINGS[i].equals(value)) {
+                out.writeByte(COMMON_STRING);
+                out.writeByte(i);
+                return;
+            }
+        }
+
+        if (value.length() <= MAX_UTF_CHARS) {
+            out.writeByte(STRING);
+            out.writeUTF(value);
+        } else {
+            out.writeByte(LONG_STRING);
+            out.writeObject(value);
+        }
+    }
+
+    static Serializable readValue(ObjectInput in) throws IOException, ClassNotFoundException {
+        int type = in.readByte();
+        switch (type) {
+        case NULL:
+            return null;
+        case COMMON_STRING:
+            return COMMON_STRINGS[in.readByte()];
+        case STRING:
+            return in.readUTF();
+        case INTEGER:
+            return Integer.valueOf(in.readInt());
+        case DOUBLE:
+            return Double.valueOf(in.readDouble());
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case JSON_OBJECT:
+            JsonObject json = Json.parse(in.readUTF());
+            return json;
+        case LONG_STRING:
+        case OBJECT:
+            return (Serializable) in.readObject();
+        default:
+            throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    /**
+     * Removes the oldest action that isn't pinned, together with the
+     * <code>send pageview</code> that follows it if it is a
+     * <code>set page</code>.
+     * 
+     * @return the number of removed actions
+     */
+    private int removeOldest() {
+        Serializable[] oldest = removeAt(pinned);
+        if (isPageLocation(oldest) && size > pinned && isPageViewHit(get(pinned))) {
+            removeAt(pinned);
+            return 2;
+        }
+        return 1;
+    }
+
+    private Serializable[] removeAt(int index) {
+        if (index != 0) {
+            return remove(index);
+        }
+
+        Serializable[] removed = elements[head];
+        elements[head] = null;
+        head = (head + 1) % elements.length;
+        size--;
+        if (pinned > 0) {
+            pinned--;
+        }
+        modCount++;
+        depthChanged(-1);
+        return removed;
+    }
+
+    private void depthChanged(int delta) {
+        if (delta < 0) {
+            delta = Math.max(delta, -reportedDepth);
+        } else if (released) {
+            return;
+        }
+        if (delta != 0) {
+            reportedDepth += delta;
+            TrackerMetrics.get().queueDepthChanged(delta);
+        }
+    }
+
+    /**
+     * Removes the queued actions from the queue depth of
+     * {@link TrackerMetrics} when the queue will not be drained any more,
+     * e.g. because its UI has been detached. Actions added after this are not
+     * counted.
+     */
+    void release() {
+        depthChanged(-reportedDepth);
+        released = true;
+    }
+
+    private int indexOfNonPageView() {
+        for (int i = pinned; i < size; i++) {
+            if (!isPageView(get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean isPageView(Serializable[] action) {
+        return isPageViewHit(action) || isPageLocation(action);
+    }
+
+    private static boolean isPageViewHit(Serializable[] action) {
+        return action.length >= 2 && "send".equals(action[0]) && "pageview".equals(action[1]);
+    }
+
+    private static boolean isPageLocation(Serializable[] action) {
+        return action.length >= 2 && "set".equals(action[0]) && "page".equals(action[1]);
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= elements.length) {
+            return;
+        }
+
+        Serializable[][] newElements = new Serializable[Math.max(required, elements.length * 2)][];
+        for (int i = 0; i < size; i++) {
+            newElements[i] = elements[slot(i)];
+        }
+        elements = newElements;
+        head = 0;
+    }
+
+    private int slot(int index) {
+        return (head + index) % elements.length;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    @Override
+    public Serializable[] get(int index) {
+        checkIndex(index);
+        return elements[slot(index)];
+    }
+
+    @Override
+    public Serializable[] set(int index, Serializable[] element) {
+        checkIndex(index);
+        int slot = slot(index);
+        Serializable[] previous = elements[slot];
+        elements[slot] = element;
+        return previous;
+    }
+
+    @Override
+    public Serializable[] remove(int index) {
+        checkIndex(index);
+        Serializable[] removed = elements[slot(index)];
+        for (int i = index; i < size - 1; i++) {
+            elements[slot(i)] = elements[slot(i + 1)];
+        }
+        elements[slot(size - 1)] = null;
+        size--;
+        if (index < pinned) {
+            pinned--;
+        }
+        modCount++;
+        depthChanged(-1);
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        depthChanged(-size);
+        for (int i = 0; i < size; i++) {
+            elements[slot(i)] = null;
+        }
+        head = 0;
+        size = 0;
+        pinned = 0;
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
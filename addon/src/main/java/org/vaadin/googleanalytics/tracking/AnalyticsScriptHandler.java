@@ -0,0 +1,430 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.vaadin.flow.server.RequestHandler;
+import com.vaadin.flow.server.ServiceInitEvent;
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinResponse;
+import com.vaadin.flow.server.VaadinSession;
+
+/**
+ * Serves the Google Analytics script from the application's own origin so
+ * that clients don't need a separate connection to Google to load it. The
+ * script is kept in memory together with a pre-compressed gzip variant, and a
+ * brotli variant if one is bundled with the application. Responses have strong
+ * ETags and are cached by browsers for a long time, since the script URL
+ * includes a version derived from the content.
+ * <p>
+ * The script is loaded from a bundled classpath resource, from an upstream URL
+ * that is refreshed in the background, or both. While the handler is installed
+ * and has a script, trackers whose configured script URL is the handler's
+ * upstream URL load the script from the handler instead.
+ * 
+ * <pre>
+ * public class MyServiceInitListener implements VaadinServiceInitListener {
+ *     &#64;Override
+ *     public void serviceInit(ServiceInitEvent event) {
+ *         new AnalyticsScriptHandler().setBundledResource("/analytics.js").install(event);
+ *     }
+ * }
+ * </pre>
+ */
+public class AnalyticsScriptHandler implements RequestHandler {
+    /**
+     * The path of the script relative to the servlet.
+     */
+    public static final String PATH = "ga-tracker/analytics.js";
+
+    /**
+     * The default upstream URL from which the script is refreshed.
+     */
+    public static final String DEFAULT_UPSTREAM_URL = "https://www.google-analytics.com/analytics.js";
+
+    private static final long VERSIONED_MAX_AGE_SECONDS = TimeUnit.DAYS.toSeconds(365);
+
+    private static volatile AnalyticsScriptHandler installed;
+
+    private String upstreamUrl = DEFAULT_UPSTREAM_URL;
+    private String bundledResource;
+    private long refreshIntervalMillis = TimeUnit.HOURS.toMillis(6);
+    private long unversionedMaxAgeSeconds = TimeUnit.MINUTES.toSeconds(10);
+    private int timeoutMillis = 10000;
+
+    private transient volatile CachedScript script;
+    private transient ScheduledExecutorService refresher;
+
+    /**
+     * An immutable snapshot of the script and its encoded variants.
+     */
+    private static final class CachedScript {
+        private final byte[] identity;
+        private final byte[] gzip;
+        private final byte[] brotli;
+        private final String version;
+        private final String upstreamETag;
+        private final String upstreamLastModified;
+
+        private CachedScript(byte[] identity, byte[] brotli, String upstreamETag, String upstreamLastModified) {
+            this.identity = identity;
+            this.gzip = compress(identity);
+            this.brotli = brotli;
+            this.version = createVersion(identity);
+            this.upstreamETag = upstreamETag;
+            this.upstreamLastModified = upstreamLastModified;
+        }
+    }
+
+    /**
+     * Sets the URL from which the script is refreshed in the background, or
+     * <code>null</code> to only use the bundled resource.
+     * 
+     * @param upstreamUrl
+     *            the upstream URL, or <code>null</code>
+     * @return this handler, for chaining
+     */
+    public AnalyticsScriptHandler setUpstreamUrl(String upstreamUrl) {
+        this.upstreamUrl = upstreamUrl;
+        return this;
+    }
+
+    /**
+     * Gets the URL from which the script is refreshed.
+     * 
+     * @return the upstream URL, or <code>null</code> if not refreshed
+     */
+    public String getUpstreamUrl() {
+        return upstreamUrl;
+    }
+
+    /**
+     * Sets a classpath resource from which the script is loaded when the
+     * handler is installed, so that the script is available without network
+     * access. If a resource with the same name and a <code>.br</code> suffix
+     * exists, it is served to clients that accept brotli as long as the
+     * bundled script is in use.
+     * 
+     * @param bundledResource
+     *            the absolute classpath resource name, or <code>null</code> to
+     *            not use a bundled script
+     * @return this handler, for chaining
+     */
+    public AnalyticsScriptHandler setBundledResource(String bundledResource) {
+        this.bundledResource = bundledResource;
+        return this;
+    }
+
+    /**
+     * Gets the classpath resource from which the script is loaded.
+     * 
+     * @return the resource name, or <code>null</code> if not used
+     */
+    public String getBundledResource() {
+        return bundledResource;
+    }
+
+    /**
+     * Sets how often the script is refreshed from the upstream URL.
+     * 
+     * @param refreshIntervalMillis
+     *            the refresh interval in milliseconds, must be positive
+     * @return this handler, for chaining
+     */
+    public AnalyticsScriptHandler setRefreshInterval(long refreshIntervalMillis) {
+        if (refreshIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Refresh interval must be positive");
+        }
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Sets the connect and read timeout for refreshing the script.
+     * 
+     * @param timeoutMillis
+     *            the timeout in milliseconds, must be positive
+     * @return this handler, for chaining
+     */
+    public AnalyticsScriptHandler setTimeout(int timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive");
+        }
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Sets how long browsers may cache the script when it is requested
+     * without the current version, e.g. by a page rendered before the script
+     * was refreshed.
+     * 
+     * @param maxAgeSeconds
+     *            the cache lifetime in seconds, not negative
+     * @return this handler, for chaining
+     */
+    public AnalyticsScriptHandler setUnversionedMaxAge(long maxAgeSeconds) {
+        if (maxAgeSeconds < 0) {
+            throw new IllegalArgumentException("Max age cannot be negative");
+        }
+        this.unversionedMaxAgeSeconds = maxAgeSeconds;
+        return this;
+    }
+
+    /**
+     * Registers this handler with a Vaadin service, loads the bundled script
+     * and starts refreshing from the upstream URL. The handler is uninstalled
+     * when the service is destroyed.
+     * 
+     * @param event
+     *            the service init event, not <code>null</code>
+     */
+    public void install(ServiceInitEvent event) {
+        Objects.requireNonNull(event);
+        if (bundledResource == null && upstreamUrl == null) {
+            throw new IllegalStateException("Either a bundled resource or an upstream URL must be defined");
+        }
+
+        if (bundledResource != null) {
+            loadBundledResource();
+        }
+
+        if (upstreamUrl != null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ga-script-refresher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, 0, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        event.addRequestHandler(this);
+        event.getSource().addServiceDestroyListener(destroyEvent -> uninstall());
+        installed = this;
+    }
+
+    private void uninstall() {
+        if (installed == this) {
+            installed = null;
+        }
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    private void loadBundledResource() {
+        byte[] identity = readResource(bundledResource);
+        if (identity == null) {
+            throw new IllegalStateException("Bundled script " + bundledResource + " not found");
+        }
+        script = new CachedScript(identity, readResource(bundledResource + ".br"), null, null);
+    }
+
+    private static byte[] readResource(String name) {
+        try (InputStream in = AnalyticsScriptHandler.class.getResourceAsStream(name)) {
+            return in == null ? null : readFully(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + name, e);
+        }
+    }
+
+    /**
+     * Fetches the script from the upstream URL unless it hasn't changed. The
+     * previous script is kept if the upstream cannot be reached.
+     */
+    void refresh() {
+        CachedScript current = script;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(upstreamUrl).openConnection();
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            if (current != null && current.upstreamETag != null) {
+                connection.setRequestProperty("If-None-Match", current.upstreamETag);
+            }
+            if (current != null && current.upstreamLastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", current.upstreamLastModified);
+            }
+
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_OK) {
+                byte[] identity;
+                try (InputStream in = connection.getInputStream()) {
+                    identity = readFully(in);
+                }
+                if (current == null || !MessageDigest.isEqual(identity, current.identity)) {
+                    script = new CachedScript(identity, null, connection.getHeaderField("ETag"),
+                            connection.getHeaderField("Last-Modified"));
+                }
+            }
+            // Otherwise not modified or unavailable, keep the current script
+            connection.disconnect();
+        } catch (IOException | RuntimeException e) {
+            // Retried at the next interval
+        }
+    }
+
+    /**
+     * Gets the URL from which to load the script instead of the given URL, if
+     * an installed handler serves it.
+     * 
+     * @param scriptUrl
+     *            the configured script URL, not <code>null</code>
+     * @return a URL relative to the servlet, or <code>null</code> if the script
+     *         should be loaded from the configured URL
+     */
+    static String getLocalScriptUrl(String scriptUrl) {
+        AnalyticsScriptHandler handler = installed;
+        if (handler == null) {
+            return null;
+        }
+        CachedScript current = handler.script;
+        if (current == null) {
+            return null;
+        }
+        if (!scriptUrl.equals(handler.upstreamUrl) && !scriptUrl.equals(DEFAULT_UPSTREAM_URL)) {
+            return null;
+        }
+        return PATH + "?v=" + current.version;
+    }
+
+    @Override
+    public boolean handleRequest(VaadinSession session, VaadinRequest request, VaadinResponse response)
+            throws IOException {
+        String pathInfo = request.getPathInfo();
+        if (pathInfo == null || !pathInfo.equals("/" + PATH)) {
+            return false;
+        }
+
+        CachedScript current = script;
+        if (current == null) {
+            response.sendError(HttpURLConnection.HTTP_NOT_FOUND, "Script not loaded");
+            return true;
+        }
+
+        byte[] body;
+        String encoding;
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (current.brotli != null && accepts(acceptEncoding, "br")) {
+            body = current.brotli;
+            encoding = "br";
+        } else if (accepts(acceptEncoding, "gzip")) {
+            body = current.gzip;
+            encoding = "gzip";
+        } else {
+            body = current.identity;
+            encoding = null;
+        }
+
+        // Each encoding is a different representation with its own tag
+        String etag = "\"" + current.version + (encoding == null ? "" : "-" + encoding) + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (current.version.equals(request.getParameter("v"))) {
+            response.setHeader("Cache-Control", "public, max-age=" + VERSIONED_MAX_AGE_SECONDS + ", immutable");
+        } else {
+            response.setHeader("Cache-Control", "public, max-age=" + unversionedMaxAgeSeconds);
+        }
+
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpURLConnection.HTTP_NOT_MODIFIED);
+            return true;
+        }
+
+        response.setStatus(HttpURLConnection.HTTP_OK);
+        response.setContentType("application/javascript; charset=UTF-8");
+        if (encoding != null) {
+            response.setHeader("Content-Encoding", encoding);
+        }
+        response.setContentLength(body.length);
+        if (!"HEAD".equals(request.getMethod())) {
+            OutputStream out = response.getOutputStream();
+            out.write(body);
+            out.flush();
+        }
+        return true;
+    }
+
+    private static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String part : acceptEncoding.split(",")) {
+            String[] parameters = part.split(";");
+            if (!parameters[0].trim().equalsIgnoreCase(coding)) {
+                continue;
+            }
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.equals(etag) || trimmed.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] compress(byte[] identity) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(identity.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(identity);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String createVersion(byte[] identity) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(identity);
+            StringBuilder version = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                version.append(Character.forDigit((digest[i] >> 4) & 0xf, 16))
+                        .append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return version.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Always available in a compliant JRE
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,198 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vaadin.flow.component.AttachEvent;
+import com.vaadin.flow.component.Component;
+import com.vaadin.flow.component.ComponentUtil;
+import com.vaadin.flow.component.DetachEvent;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.internal.JsonCodec;
+import com.vaadin.flow.shared.Registration;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+
+/**
+ * Event tracking listeners of one component, stored as component data so that
+ * each combination of DOM event and event fields is only registered once. The
+ * listeners are installed in the browser whenever the component is attached
+ * and forgotten when it is detached, since the browser element is then
+ * discarded.
+ * <p>
+ * With {@link ClientSideTransport}, a listener calls <code>ga</code> directly
+ * in the browser. Other transports cannot be reached from the browser, so a
+ * server-side DOM listener sends the event instead.
+ */
+final class ClientEventTracking implements Serializable {
+    /**
+     * Adds a handler that is stored on the element by key, so that installing
+     * the same listener again is a no-op. The <code>ga</code> stub is defined
+     * in case the handler runs before the tracker's own initialization
+     * script.
+     */
+    private static final String INSTALL = "var e=$0,h=e.$gaTracking=e.$gaTracking||{};"
+            + "if(!h[$1]){h[$1]=function(){window.ga=window.ga||function(){(ga.q=ga.q||[]).push(arguments)};"
+            + "ga.apply(null,$3)};e.addEventListener($2,h[$1])}";
+
+    private static final String UNINSTALL = "var h=$0.$gaTracking;if(h&&h[$1]){$0.removeEventListener($2,h[$1]);delete h[$1]}";
+
+    private final GoogleAnalyticsTracker tracker;
+    private final Component component;
+    private final Map<String, Listener> listeners = new LinkedHashMap<>();
+
+    private final Registration attachRegistration;
+    private final Registration detachRegistration;
+
+    private final class Listener implements Registration {
+        private final String key;
+        private final String domEvent;
+        private final String category;
+        private final String action;
+        private final String label;
+
+        private boolean installed = false;
+        private Registration serverListener;
+
+        private Listener(String key, String domEvent, String category, String action, String label) {
+            this.key = key;
+            this.domEvent = domEvent;
+            this.category = category;
+            this.action = action;
+            this.label = label;
+        }
+
+        private JsonArray createCommand() {
+            JsonArray command = Json.createArray();
+            command.set(0, JsonCodec.encodeWithoutTypeInfo("send"));
+            command.set(1, JsonCodec.encodeWithoutTypeInfo("event"));
+            command.set(2, JsonCodec.encodeWithoutTypeInfo(category));
+            command.set(3, JsonCodec.encodeWithoutTypeInfo(action));
+            if (label != null) {
+                command.set(4, JsonCodec.encodeWithoutTypeInfo(label));
+            }
+            return command;
+        }
+
+        private void sendFromServer() {
+            if (label == null) {
+                tracker.sendEvent(category, action);
+            } else {
+                tracker.sendEvent(category, action, label);
+            }
+        }
+
+        @Override
+        public void remove() {
+            ClientEventTracking.this.remove(this);
+        }
+    }
+
+    private ClientEventTracking(GoogleAnalyticsTracker tracker, Component component) {
+        this.tracker = tracker;
+        this.component = component;
+
+        attachRegistration = ComponentUtil.addListener(component, AttachEvent.class,
+                event -> listeners.values().forEach(this::install));
+        detachRegistration = ComponentUtil.addListener(component, DetachEvent.class,
+                event -> listeners.values().forEach(this::uninstall));
+    }
+
+    /**
+     * Adds an event tracking listener to a component, or returns the existing
+     * listener if one has already been added with the same parameters.
+     * 
+     * @param tracker
+     *            the tracker of the component's UI, not <code>null</code>
+     * @param component
+     *            the component to listen to, not <code>null</code>
+     * @param domEvent
+     *            the name of the DOM event, not <code>null</code>
+     * @param category
+     *            the event category, not <code>null</code>
+     * @param action
+     *            the event action, not <code>null</code>
+     * @param label
+     *            the event label, or <code>null</code> to send no label
+     * @return a registration for removing the listener, not <code>null</code>
+     */
+    static Registration add(GoogleAnalyticsTracker tracker, Component component, String domEvent, String category,
+            String action, String label) {
+        ClientEventTracking tracking = ComponentUtil.getData(component, ClientEventTracking.class);
+        if (tracking == null) {
+            tracking = new ClientEventTracking(tracker, component);
+            ComponentUtil.setData(component, ClientEventTracking.class, tracking);
+        }
+
+        String key = domEvent + '\u0000' + category + '\u0000' + action + '\u0000' + (label == null ? "" : label);
+        Listener listener = tracking.listeners.get(key);
+        if (listener == null) {
+            listener = tracking.new Listener(key, domEvent, category, action, label);
+            tracking.listeners.put(key, listener);
+            if (component.getUI().isPresent()) {
+                tracking.install(listener);
+            }
+        }
+        return listener;
+    }
+
+    private void install(Listener listener) {
+        component.getUI().ifPresent(ui -> scheduleInstall(ui, listener, false));
+    }
+
+    private void scheduleInstall(UI ui, Listener listener, boolean initializationRequested) {
+        ui.beforeClientResponse(component, context -> {
+            if (listener.installed || listeners.get(listener.key) != listener) {
+                return;
+            }
+
+            // The transport is only known once the tracker is initialized
+            HitTransport transport = tracker.getTransport();
+            if (transport == null) {
+                if (!initializationRequested && tracker.requestInitialization()) {
+                    // Run again after the tracker's own callback
+                    scheduleInstall(ui, listener, true);
+                }
+                return;
+            }
+
+            if (transport instanceof ClientSideTransport) {
+                ui.getPage().executeJavaScript(INSTALL, component.getElement(), listener.key, listener.domEvent,
+                        listener.createCommand());
+            } else {
+                listener.serverListener = component.getElement().addEventListener(listener.domEvent,
+                        event -> listener.sendFromServer());
+            }
+            listener.installed = true;
+        });
+    }
+
+    private void uninstall(Listener listener) {
+        listener.installed = false;
+        if (listener.serverListener != null) {
+            listener.serverListener.remove();
+            listener.serverListener = null;
+        }
+    }
+
+    private void remove(Listener listener) {
+        if (listeners.get(listener.key) != listener) {
+            return;
+        }
+        listeners.remove(listener.key);
+
+        if (listener.installed && listener.serverListener == null) {
+            component.getUI().ifPresent(ui -> ui.getPage().executeJavaScript(UNINSTALL, component.getElement(),
+                    listener.key, listener.domEvent));
+        }
+        uninstall(listener);
+
+        if (listeners.isEmpty()) {
+            attachRegistration.remove();
+            detachRegistration.remove();
+            ComponentUtil.setData(component, ClientEventTracking.class, null);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.jsoup.nodes.DataNode;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.internal.JsonCodec;
+import com.vaadin.flow.internal.JsonUtils;
+import com.vaadin.flow.shared.ui.LoadMode;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+
+/**
+ * Sends commands to the <code>ga</code> function in the browser. This is the
+ * default transport. The Google Analytics script is loaded lazily and all
+ * commands that are sent in the same round-trip are dispatched through one
+ * client-side invocation. The script and the configuration commands can
+ * instead be included in the initial HTML page through
+ * {@link TrackerConfiguration#setInjectIntoBootstrapPage(boolean)}, and
+ * served from the application's own origin through an
+ * {@link AnalyticsScriptHandler}.
+ */
+public class ClientSideTransport implements HitTransport {
+    /**
+     * Defines the <code>ga</code> command queue stub and a dispatcher that
+     * applies a packed array of commands in one client-side invocation.
+     */
+    private static final String REGISTER_DISPATCHER = "window.ga=window.ga||function(){(ga.q=ga.q||[]).push(arguments)};ga.l=+new Date;"
+            + "window.vaadinGaDispatch=function(a){for(var i=0;i<a.length;i++){ga.apply(null,a[i]);}};";
+
+    private static final String DISPATCH = "window.vaadinGaDispatch($0)";
+
+    @Override
+    public void init(UI ui, TrackerConfiguration config) {
+        Map<String, Serializable> gaDebug = config.getGaDebug();
+        if (gaDebug.isEmpty()) {
+            ui.getPage().executeJavaScript(REGISTER_DISPATCHER);
+        } else {
+            ui.getPage().executeJavaScript(REGISTER_DISPATCHER + "window.ga_debug = $0;",
+                    JsonUtils.createObject(gaDebug, JsonCodec::encodeWithoutTypeInfo));
+        }
+
+        ui.getPage().addJavaScript(config.getEffectiveScriptUrl(), LoadMode.LAZY);
+    }
+
+    @Override
+    public void send(UI ui, List<Serializable[]> commands) {
+        ui.getPage().executeJavaScript(DISPATCH, encode(commands));
+    }
+
+    private static JsonArray encode(List<Serializable[]> commands) {
+        JsonArray batch = Json.createArray();
+        for (int i = 0; i < commands.size(); i++) {
+            Serializable[] command = commands.get(i);
+
+            JsonArray encoded = Json.createArray();
+            for (int j = 0; j < command.length; j++) {
+                encoded.set(j, JsonCodec.encodeWithoutTypeInfo(command[j]));
+            }
+            batch.set(i, encoded);
+        }
+        return batch;
+    }
+
+    /**
+     * Adds the <code>ga</code> stub, the configuration commands and an
+     * asynchronously loaded script tag to the head of the bootstrap page. The
+     * script is thus downloaded in parallel with the Flow client engine, and
+     * the first response does not need to initialize the tracker.
+     * 
+     * @param document
+     *            the bootstrap page document, not <code>null</code>
+     * @param config
+     *            the frozen tracker configuration, not <code>null</code>
+     */
+    static void injectIntoBootstrapPage(Document document, TrackerConfiguration config) {
+        String scriptUrl = config.getEffectiveScriptUrl();
+        StringBuilder script = new StringBuilder(REGISTER_DISPATCHER);
+
+        Map<String, Serializable> gaDebug = config.getGaDebug();
+        if (!gaDebug.isEmpty()) {
+            script.append("window.ga_debug=")
+                    .append(JsonUtils.createObject(gaDebug, JsonCodec::encodeWithoutTypeInfo).toJson()).append(';');
+        }
+        script.append("window.vaadinGaDispatch(")
+                .append(encode(Arrays.asList(config.getBootstrapCommands())).toJson()).append(");");
+
+        // Prepended in reverse order: preconnect, inline script, async script
+        Element head = document.head();
+        head.prependElement("script").attr("async", true).attr("src", scriptUrl);
+        // Don't let string values terminate the inline script element
+        head.prependElement("script").appendChild(new DataNode(script.toString().replace("</", "<\\/"), ""));
+
+        String origin = getOrigin(scriptUrl);
+        if (origin != null) {
+            head.prependElement("link").attr("rel", "preconnect").attr("href", origin);
+        }
+    }
+
+    private static String getOrigin(String url) {
+        try {
+            URL parsed = new URL(url);
+            return parsed.getProtocol() + "://" + parsed.getAuthority();
+        } catch (MalformedURLException e) {
+            // Relative URL, served from the same origin
+            return null;
+        }
+    }
+}
@@ -72,6 +72,29 @@ public @interface EnableGoogleAnalytics {
      */
     String pageviewPrefix() default "";
 
+    /**
+     * Whether to include the Google Analytics script and the tracker
+     * configuration in the initial HTML page instead of loading them after the
+     * first response. By default, the tracker is initialized through the first
+     * response.
+     * 
+     * @see TrackerConfiguration#setInjectIntoBootstrapPage(boolean)
+     * 
+     * @return whether to inject into the bootstrap page
+     */
+    boolean injectIntoBootstrapPage() default false;
+
+    /**
+     * Whether to track page views using route templates such as
+     * <code>order/:parameter</code> instead of actual locations. By default,
+     * actual locations are tracked.
+     * 
+     * @see TrackerConfiguration#setUseRouteTemplates(boolean)
+     * 
+     * @return whether to track route templates
+     */
+    boolean useRouteTemplates() default false;
+
     /**
      * Client-side log levels that can be configured through
      * {@link EnableGoogleAnalytics#productionLogging()} and
@@ -0,0 +1,96 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import com.vaadin.flow.server.Command;
+
+/**
+ * Shared scheduler for delayed tracker flushes. All UIs share one daemon
+ * thread that only schedules a {@link UI#access(Command)} when a delay has
+ * elapsed, so the actual flush runs with the session locked like any other
+ * UI update. The thread is stopped when the last service that uses it is
+ * destroyed.
+ */
+final class FlushScheduler {
+    private static ScheduledThreadPoolExecutor executor;
+
+    private static int registrations = 0;
+
+    private FlushScheduler() {
+        // Only static helpers
+    }
+
+    /**
+     * Runs a command with the UI locked after a delay.
+     * 
+     * @param ui
+     *            the UI to access, not <code>null</code>
+     * @param command
+     *            the command to run, not <code>null</code>
+     * @param delayMillis
+     *            the delay in milliseconds
+     */
+    static void schedule(UI ui, Command command, long delayMillis) {
+        Runnable access = () -> {
+            try {
+                ui.access(command);
+            } catch (UIDetachedException e) {
+                // Nothing to flush for a UI that is gone
+            }
+        };
+        try {
+            getExecutor().schedule(access, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down concurrently, flush without a delay instead of never
+            access.run();
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "ga-flush-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Registers a service that uses the scheduler.
+     */
+    static synchronized void register() {
+        registrations++;
+    }
+
+    /**
+     * Releases a registration. The scheduler thread is stopped and pending
+     * flushes are discarded when the last registration is released. A new
+     * thread is started if something is scheduled later.
+     */
+    static synchronized void release() {
+        if (registrations == 0 || --registrations > 0) {
+            return;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Checks whether the scheduler thread has been started and not stopped.
+     * 
+     * @return <code>true</code> if the scheduler is running, otherwise
+     *         <code>false</code>
+     */
+    static synchronized boolean isRunning() {
+        return executor != null;
+    }
+}
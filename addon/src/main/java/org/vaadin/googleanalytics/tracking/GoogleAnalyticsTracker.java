@@ -1,27 +1,54 @@
 package org.vaadin.googleanalytics.tracking;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Stream;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import org.jsoup.nodes.Document;
 import org.vaadin.googleanalytics.tracking.EnableGoogleAnalytics.LogLevel;
 import org.vaadin.googleanalytics.tracking.EnableGoogleAnalytics.SendMode;
 
+import com.vaadin.flow.component.Component;
 import com.vaadin.flow.component.ComponentUtil;
 import com.vaadin.flow.component.HasElement;
 import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import com.vaadin.flow.function.SerializableConsumer;
+import com.vaadin.flow.internal.ExecutionContext;
 import com.vaadin.flow.internal.JsonCodec;
-import com.vaadin.flow.internal.JsonUtils;
-import com.vaadin.flow.shared.ui.LoadMode;
+import com.vaadin.flow.router.Location;
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinService;
+import com.vaadin.flow.server.VaadinSession;
+import com.vaadin.flow.server.WrappedSession;
+import com.vaadin.flow.shared.Registration;
 
+import elemental.json.Json;
 import elemental.json.JsonObject;
 
 /**
- * Sends commands to Google Analytics in the browser. An instance of the tracker
- * can be retrieved from a given UI instance ({@link #get(UI)}) or for the
- * current UI instance ({@link #getCurrent()}).
+ * Sends commands to Google Analytics. An instance of the tracker can be
+ * retrieved from a given UI instance ({@link #get(UI)}) or for the current UI
+ * instance ({@link #getCurrent()}).
+ * <p>
+ * Commands are by default sent through the browser, but a different
+ * {@link HitTransport} can be configured through
+ * {@link TrackerConfiguration#setTransport(HitTransport)}.
  * <p>
  * Page view commands will automatically be sent for any Flow navigation if the
  * tracker can be configured.
@@ -30,25 +57,387 @@ import elemental.json.JsonObject;
  * on the top-level router layout in the corresponding UI. The layout should be
  * annotated with @{@link EnableGoogleAnalytics} or implement
  * {@link TrackerConfigurator} for the configuration to succeed.
+ * <p>
+ * Like other UI state, the tracker should only be used with the session
+ * locked. Background threads can instead use the <code>enqueue</code> methods,
+ * which don't take the session lock.
+ * <p>
+ * The tracker is stored with its UI and uses a compact serialized form for
+ * session replication. The shared configuration is written as a reference to
+ * its root layout class rather than by value.
  */
-public class GoogleAnalyticsTracker {
+public class GoogleAnalyticsTracker implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final long NO_NAVIGATION = Long.MIN_VALUE;
+
+    /**
+     * Policies for handling actions that are queued when the pending queue is
+     * full.
+     * 
+     * @see GoogleAnalyticsTracker#setMaxPendingActions(int)
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest queued action to make room for the new action. This
+         * is the default policy.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new action.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest queued action that isn't part of a page view. If all
+         * queued actions are page views, a new page view replaces the oldest
+         * one and any other new action is dropped.
+         */
+        DROP_EVENTS_KEEP_PAGEVIEWS;
+    }
+
+    /**
+     * Policies for when queued actions are sent if they are queued while no
+     * request from the client is being handled, e.g. from a background thread
+     * in an application that uses server push. Actions queued while handling a
+     * request are always sent with the response to that request.
+     * 
+     * @see GoogleAnalyticsTracker#setFlushPolicy(FlushPolicy, long)
+     */
+    public enum FlushPolicy {
+        /**
+         * Send the actions when the current access ends, which causes a push
+         * even if nothing else has changed. This is the default policy.
+         */
+        IMMEDIATE,
+        /**
+         * Never cause a push for analytics alone. The actions are not sent with
+         * the next response either, but only once the tracker is used again
+         * while handling some later request from the client, such as for the
+         * page view of the next navigation. Requests that don't use the tracker
+         * leave the actions queued, and the actions are discarded if the UI is
+         * detached before the tracker is used again.
+         */
+        PIGGYBACK,
+        /**
+         * Hold the actions for at most the given maximum delay and then send
+         * everything queued meanwhile in one push, unless they have already
+         * been sent with the response to a client request.
+         */
+        DELAYED;
+    }
+
+    /**
+     * The default maximum delay for {@link FlushPolicy#DELAYED}.
+     */
+    public static final long DEFAULT_MAX_FLUSH_DELAY_MILLIS = 5000;
+
+    /**
+     * The default maximum number of actions queued for one tracker.
+     */
+    public static final int DEFAULT_MAX_PENDING_ACTIONS = 1000;
+
+    /**
+     * Modes for merging identical events before they are sent.
+     * 
+     * @see GoogleAnalyticsTracker#setEventCoalescing(EventCoalescing, long)
+     */
+    public enum EventCoalescing {
+        /**
+         * Send every event separately. This is the default mode.
+         */
+        NONE,
+        /**
+         * Merge identical events into one event whose value is the number of
+         * merged events.
+         */
+        COUNT,
+        /**
+         * Merge identical events into one event whose value is the sum of the
+         * values of the merged events. Events without a value count as 1.
+         */
+        SUM;
+    }
+
+    private static final String SAMPLING_BUCKET_ATTRIBUTE = GoogleAnalyticsTracker.class.getName()
+            + ".samplingBucket";
+
+    private static final String BOOTSTRAP_UI_ATTRIBUTE = GoogleAnalyticsTracker.class.getName() + ".bootstrapUI";
+
+    /**
+     * Configurations shared by all trackers with the same root layout class,
+     * unless the layout is a configurator that doesn't share its
+     * configuration. Index 0 is used for development mode and index 1 for
+     * production mode.
+     */
+    private static final ClassValue<AtomicReferenceArray<TrackerConfiguration>> CONFIGURATIONS = new ClassValue<AtomicReferenceArray<TrackerConfiguration>>() {
+        @Override
+        protected AtomicReferenceArray<TrackerConfiguration> computeValue(Class<?> type) {
+            return new AtomicReferenceArray<>(2);
+        }
+    };
+
     private final UI ui;
 
-    private boolean inited = false;
+    private transient HitTransport transport;
+
+    private transient boolean inited = false;
+
+    /**
+     * Configuration to inject into the bootstrap page, or <code>null</code> if
+     * there is nothing to inject.
+     */
+    private transient TrackerConfiguration bootstrapPageConfig;
+
+    /**
+     * Whether the UI was created during the current request and the bootstrap
+     * page hasn't been written yet, so that the response being generated is
+     * the initial response embedded in the bootstrap page.
+     */
+    private transient boolean bootstrapping = false;
+
+    /**
+     * Page location actions queued before the page view prefix was known,
+     * prefixed once the configuration is resolved.
+     */
+    private transient List<Serializable[]> unprefixedPageLocations;
+
+    /**
+     * The configuration of this tracker, resolved when the tracker is
+     * initialized or earlier if needed for sampling.
+     */
+    private transient TrackerConfiguration config;
+
+    /**
+     * The sampling bucket of the session, or -1 if not yet resolved.
+     */
+    private transient int samplingBucket = -1;
+
+    /**
+     * List of actions to pass to the transport before the next Flow response is
+     * created. Initialization can only happen after routing has completed since
+     * the top-level layout can only be identified at that point. The queue also
+     * ensures that all actions from the same round-trip are handed to the
+     * transport together. The queue is bounded so that a tracker that is
+     * never flushed doesn't grow without limits.
+     */
+    private transient ActionQueue pendingActions = new ActionQueue(DEFAULT_MAX_PENDING_ACTIONS,
+            OverflowPolicy.DROP_OLDEST);
+
+    /**
+     * Set if initialization has failed, after which no actions are queued.
+     */
+    private transient boolean failed = false;
+
+    private transient long droppedActionCount = 0;
 
-    private String pageViewPrefix = "";
+    /**
+     * Theoretical arrival time of the per UI rate limit bucket.
+     */
+    private transient long rateLimitArrival = HitRateLimiter.REJECTED;
+
+    /**
+     * Hits dropped by rate limiting since the last summary event.
+     */
+    private transient int rateLimitedHitCount = 0;
+
+    /**
+     * The {@link System#nanoTime()} when the current navigation started, or
+     * {@link #NO_NAVIGATION} if no navigation is being timed.
+     */
+    private transient long navigationStartNanos = NO_NAVIGATION;
+
+    /**
+     * The minute in which this UI was last counted as active in the rollups,
+     * and the page location most recently sent, for {@link TrackerRollups}.
+     */
+    private transient long rollupMinute = -1;
+    private transient String rollupPage;
+
+    /**
+     * Shared callback instance to avoid allocating a new lambda every time the
+     * queue is scheduled to be flushed.
+     */
+    private transient SerializableConsumer<ExecutionContext> flushCallback = createFlushCallback();
+
+    private transient boolean flushScheduled = false;
+
+    private transient boolean collapseNavigationPageViews = true;
 
     /**
-     * List of actions to send before the next Flow response is created.
-     * Initialization can only happen after routing has completed since the
-     * top-level layout can only be identified at that point. This queue is only
-     * needed for actions that are issues before initialization has happened,
-     * but it is still used in all cases to keep the internal logic simpler.
+     * The <code>set page</code> and <code>send pageview</code> actions of the
+     * latest navigation in the current round-trip, or <code>null</code> if
+     * there is none.
      */
-    private ArrayList<Serializable[]> pendingActions = new ArrayList<>();
+    private transient Serializable[] navigationPageLocation;
+    private transient Serializable[] navigationPageView;
+
+    private transient FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+
+    private transient long maxFlushDelayMillis = DEFAULT_MAX_FLUSH_DELAY_MILLIS;
+
+    private transient boolean delayedFlushScheduled = false;
+
+    private transient EventCoalescing eventCoalescing = EventCoalescing.NONE;
+
+    private transient long coalescingWindowNanos = 0;
+
+    /**
+     * Events that may still be merged, keyed by category, action and label.
+     */
+    private transient HashMap<String, CoalescedEvent> coalescedEvents;
+
+    private transient boolean coalescingFlushScheduled = false;
+
+    /**
+     * Calls made from background threads without holding the session lock,
+     * replayed with the session locked before the next response.
+     */
+    private transient ConcurrentLinkedQueue<BackgroundCall> backgroundCalls = new ConcurrentLinkedQueue<>();
+
+    private transient AtomicInteger backgroundCallCount = new AtomicInteger();
+
+    private transient AtomicBoolean backgroundDrainScheduled = new AtomicBoolean();
 
     private GoogleAnalyticsTracker(UI ui) {
         this.ui = ui;
+
+        VaadinRequest request = VaadinRequest.getCurrent();
+        if (request != null && request.getAttribute(BOOTSTRAP_UI_ATTRIBUTE) == ui) {
+            startBootstrap();
+        }
+
+        // The queue of a closed UI is never drained
+        ui.addDetachListener(event -> pendingActions.release());
+    }
+
+    private SerializableConsumer<ExecutionContext> createFlushCallback() {
+        return context -> flushPendingActions(bootstrapping);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+
+        int flags = (inited ? 1 : 0) | (failed ? 2 : 0) | (flushScheduled ? 4 : 0)
+                | (bootstrapPageConfig != null ? 8 : 0);
+        out.writeByte(flags);
+        out.writeByte(flushPolicy.ordinal());
+        out.writeLong(maxFlushDelayMillis);
+
+        // Shared configuration is written as a reference to the cache entry,
+        // other configuration is created again after deserialization
+        if (config == null || !RouteMetadata.get(config.getLayoutClass()).isConfigurationShared()) {
+            out.writeObject(null);
+        } else {
+            out.writeObject(config.getLayoutClass());
+            out.writeBoolean(config.isProductionMode());
+        }
+
+        out.writeInt(samplingBucket);
+        out.writeLong(droppedActionCount);
+        pendingActions.writeTo(out);
+
+        out.writeBoolean(collapseNavigationPageViews);
+        out.writeInt(navigationPageLocation == null ? -1 : pendingActions.indexOfInstance(navigationPageLocation));
+        out.writeInt(navigationPageView == null ? -1 : pendingActions.indexOfInstance(navigationPageView));
+
+        if (unprefixedPageLocations == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(unprefixedPageLocations.size());
+            for (Serializable[] action : unprefixedPageLocations) {
+                out.writeInt(pendingActions.indexOfInstance(action));
+            }
+        }
+
+        out.writeByte(eventCoalescing.ordinal());
+        if (coalescedEvents != null) {
+            out.writeLong(coalescingWindowNanos);
+            out.writeInt(coalescedEvents.size());
+            long now = System.nanoTime();
+            for (CoalescedEvent event : coalescedEvents.values()) {
+                event.writeTo(out, now, pendingActions);
+            }
+        }
+
+        // Usually empty, since the queue is drained whenever the lock is free
+        BackgroundCall[] calls = backgroundCalls.toArray(new BackgroundCall[0]);
+        out.writeInt(calls.length);
+        for (BackgroundCall call : calls) {
+            call.writeTo(out);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        int flags = in.readByte();
+        inited = (flags & 1) != 0;
+        failed = (flags & 2) != 0;
+        flushScheduled = (flags & 4) != 0;
+        flushPolicy = FlushPolicy.values()[in.readByte()];
+        maxFlushDelayMillis = in.readLong();
+
+        Class<?> layoutClass = (Class<?>) in.readObject();
+        if (layoutClass != null) {
+            boolean productionMode = in.readBoolean();
+            // Resolved again on first use if not yet cached in this JVM
+            config = CONFIGURATIONS.get(layoutClass).get(productionMode ? 1 : 0);
+        }
+        if (config != null && inited) {
+            transport = config.getTransport();
+        }
+        if ((flags & 8) != 0) {
+            bootstrapPageConfig = config;
+        }
+
+        samplingBucket = in.readInt();
+        droppedActionCount = in.readLong();
+        pendingActions = new ActionQueue(DEFAULT_MAX_PENDING_ACTIONS, OverflowPolicy.DROP_OLDEST);
+        rateLimitArrival = HitRateLimiter.REJECTED;
+        navigationStartNanos = NO_NAVIGATION;
+        pendingActions.readFrom(in);
+        flushCallback = createFlushCallback();
+
+        collapseNavigationPageViews = in.readBoolean();
+        int locationIndex = in.readInt();
+        navigationPageLocation = locationIndex < 0 ? null : pendingActions.get(locationIndex);
+        int pageViewIndex = in.readInt();
+        navigationPageView = pageViewIndex < 0 ? null : pendingActions.get(pageViewIndex);
+
+        int unprefixedCount = in.readInt();
+        for (int i = 0; i < unprefixedCount; i++) {
+            int index = in.readInt();
+            if (index >= 0) {
+                if (unprefixedPageLocations == null) {
+                    unprefixedPageLocations = new ArrayList<>();
+                }
+                unprefixedPageLocations.add(pendingActions.get(index));
+            }
+        }
+        if (config != null) {
+            prefixPageLocations();
+        }
+
+        eventCoalescing = EventCoalescing.values()[in.readByte()];
+        if (eventCoalescing != EventCoalescing.NONE) {
+            coalescingWindowNanos = in.readLong();
+            int count = in.readInt();
+            coalescedEvents = new HashMap<>();
+            long now = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                CoalescedEvent event = CoalescedEvent.readFrom(in, now, pendingActions);
+                coalescedEvents.put(event.getKey(), event);
+            }
+        }
+
+        backgroundCalls = new ConcurrentLinkedQueue<>();
+        backgroundCallCount = new AtomicInteger();
+        backgroundDrainScheduled = new AtomicBoolean();
+        int callCount = in.readInt();
+        for (int i = 0; i < callCount; i++) {
+            backgroundCalls.add(BackgroundCall.readFrom(in));
+            backgroundCallCount.incrementAndGet();
+        }
     }
 
     /**
@@ -75,7 +464,7 @@ public class GoogleAnalyticsTracker {
      * @return the tracker for the given ui
      */
     public static GoogleAnalyticsTracker get(UI ui) {
-        GoogleAnalyticsTracker tracker = ComponentUtil.getData(ui, GoogleAnalyticsTracker.class);
+        GoogleAnalyticsTracker tracker = find(ui);
         if (tracker == null) {
             tracker = new GoogleAnalyticsTracker(ui);
             ComponentUtil.setData(ui, GoogleAnalyticsTracker.class, tracker);
@@ -83,8 +472,48 @@ public class GoogleAnalyticsTracker {
         return tracker;
     }
 
-    private void init() {
-        TrackerConfiguration config = createConfig(ui);
+    /**
+     * Gets the tracker for the given UI without creating one.
+     * 
+     * @param ui
+     *            the UI for which to get at tracker, not <code>null</code>
+     * @return the tracker for the given ui, or <code>null</code> if none has
+     *         been created
+     */
+    static GoogleAnalyticsTracker find(UI ui) {
+        return ComponentUtil.getData(ui, GoogleAnalyticsTracker.class);
+    }
+
+    /**
+     * Discards the cached configuration for the given root layout class. The
+     * configuration is created only once for each root layout class and
+     * production mode setting, and then shared by all trackers regardless of
+     * their session or user, if the layout only has an
+     * {@link EnableGoogleAnalytics} annotation or implements
+     * {@link SharedTrackerConfigurator}. Such a configurator that produces a
+     * different configuration over time should call this method whenever its
+     * configuration changes. Trackers that are already initialized keep using
+     * their previous configuration. Other configurators are run for each
+     * tracker, so their configuration is never cached.
+     * 
+     * @param layoutClass
+     *            the root layout class for which to discard the configuration,
+     *            not <code>null</code>
+     */
+    public static void invalidateConfiguration(Class<? extends HasElement> layoutClass) {
+        AtomicReferenceArray<TrackerConfiguration> configs = CONFIGURATIONS.get(layoutClass);
+        CONFIGURATIONS.remove(layoutClass);
+        for (int i = 0; i < configs.length(); i++) {
+            TrackerConfiguration config = configs.get(i);
+            if (config != null) {
+                config.clearRouteLocations();
+            }
+        }
+    }
+
+    private void init(boolean bootstrapResponse) {
+        // Might already be resolved for sampling
+        TrackerConfiguration config = this.config != null ? this.config : getConfiguration(ui);
 
         if (config == null) {
             throw new IllegalStateException(
@@ -99,35 +528,129 @@ public class GoogleAnalyticsTracker {
             throw new IllegalStateException("No tracking id has been defined.");
         }
 
-        pageViewPrefix = config.getPageViewPrefix();
+        applyConfiguration(config);
 
-        ui.getPage()
-                .executeJavaScript("window.ga=window.ga||function(){(ga.q=ga.q||[]).push(arguments)};ga.l=+new Date;");
+        if (bootstrapResponse && canInjectIntoBootstrapPage(config)) {
+            // Script and configuration commands are added to the bootstrap page
+            bootstrapPageConfig = config;
+        } else {
+            transport.init(ui, config);
 
-        Map<String, Serializable> gaDebug = config.getGaDebug();
-        if (!gaDebug.isEmpty()) {
-            ui.getPage().executeJavaScript("window.ga_debug = $0;", toJsonObject(gaDebug));
+            // Configuration commands must be sent before anything already queued
+            pendingActions.addAllFirst(config.getBootstrapCommands());
         }
+    }
 
-        sendAction(createAction("create", config.getCreateFields(), trackingId, config.getCookieDomain()));
+    private void applyConfiguration(TrackerConfiguration config) {
+        this.config = config;
+        prefixPageLocations();
+        transport = config.getTransport();
+        inited = true;
+    }
 
-        Map<String, Serializable> initialValues = config.getInitialValues();
-        if (!initialValues.isEmpty()) {
-            sendAction(createAction("set", initialValues));
-        }
+    private static boolean canInjectIntoBootstrapPage(TrackerConfiguration config) {
+        return config.isInjectIntoBootstrapPage() && config.getTransport() instanceof ClientSideTransport;
+    }
 
-        ui.getPage().addJavaScript(config.getScriptUrl(), LoadMode.LAZY);
+    /**
+     * Marks that the UI is created by the current request, so that a tracker
+     * created for it before the bootstrap page is written knows that its next
+     * response is embedded in the page. The mark is kept in the request so
+     * that nothing is stored for UIs that never get a tracker.
+     * 
+     * @param ui
+     *            the created UI, not <code>null</code>
+     */
+    static void markBootstrapRequest(UI ui) {
+        VaadinRequest request = VaadinRequest.getCurrent();
+        if (request != null) {
+            request.setAttribute(BOOTSTRAP_UI_ATTRIBUTE, ui);
+        }
+    }
 
-        inited = true;
+    /**
+     * Marks that the UI has just been created, so that the next response is
+     * embedded in the bootstrap page. The root node of a UI is always reported
+     * as initialized on the client, so the execution context of the response
+     * can't be used to tell this.
+     */
+    void startBootstrap() {
+        bootstrapping = true;
     }
 
-    private static TrackerConfiguration createConfig(UI ui) {
-        TrackerConfiguration config = null;
+    /**
+     * Adds the Google Analytics script and the configuration commands to the
+     * initial HTML page if enabled in the configuration. This is run after
+     * the initial response has been generated, so the tracker might already
+     * have been initialized for that response.
+     * 
+     * @param document
+     *            the bootstrap page document, not <code>null</code>
+     */
+    void injectIntoBootstrapPage(Document document) {
+        bootstrapping = false;
+
+        TrackerConfiguration config = bootstrapPageConfig;
+        if (config == null) {
+            if (inited) {
+                return;
+            }
 
+            // Nothing was tracked during bootstrap, initialize if possible
+            List<HasElement> routeChain = ui.getInternals().getActiveRouterTargetsChain();
+            if (routeChain.isEmpty() || !RouteMetadata.getRootLayout(routeChain).enablesTracking()) {
+                return;
+            }
+            config = this.config != null ? this.config : getConfiguration(ui);
+            if (config == null || config.getTrackingId() == null || !canInjectIntoBootstrapPage(config)) {
+                return;
+            }
+            applyConfiguration(config);
+        }
+
+        bootstrapPageConfig = null;
+        ClientSideTransport.injectIntoBootstrapPage(document, config);
+    }
+
+    private static TrackerConfiguration getConfiguration(UI ui) {
         HasElement routeLayout = findRouteLayout(ui);
         boolean productionMode = ui.getSession().getConfiguration().isProductionMode();
 
-        EnableGoogleAnalytics annotation = routeLayout.getClass().getAnnotation(EnableGoogleAnalytics.class);
+        if (!RouteMetadata.get(routeLayout.getClass()).isConfigurationShared()) {
+            return createFrozenConfig(routeLayout, productionMode);
+        }
+
+        AtomicReferenceArray<TrackerConfiguration> configs = CONFIGURATIONS.get(routeLayout.getClass());
+        int index = productionMode ? 1 : 0;
+
+        TrackerConfiguration config = configs.get(index);
+        if (config == null) {
+            config = createFrozenConfig(routeLayout, productionMode);
+            if (config != null && !configs.compareAndSet(index, null, config)) {
+                // Use the instance created concurrently by another UI
+                TrackerConfiguration existing = configs.get(index);
+                if (existing != null) {
+                    config = existing;
+                }
+            }
+        }
+        return config;
+    }
+
+    private static TrackerConfiguration createFrozenConfig(HasElement routeLayout, boolean productionMode) {
+        long start = System.nanoTime();
+        TrackerConfiguration config = createConfig(routeLayout, productionMode);
+        TrackerMetrics.get().configurationCreated(System.nanoTime() - start);
+        if (config != null) {
+            config.freeze(routeLayout.getClass(), productionMode);
+        }
+        return config;
+    }
+
+    private static TrackerConfiguration createConfig(HasElement routeLayout, boolean productionMode) {
+        TrackerConfiguration config = null;
+
+        EnableGoogleAnalytics annotation = RouteMetadata.get(routeLayout.getClass()).getAnnotation();
 
         if (annotation != null) {
             config = TrackerConfiguration.fromAnnotation(annotation, productionMode);
@@ -156,104 +679,897 @@ public class GoogleAnalyticsTracker {
         return routeChain.get(routeChain.size() - 1);
     }
 
-    private void sendAction(Serializable[] action) {
-        /*
-         * Append prefix for page views. This is done in the send phase so that
-         * the prefix is considered also if the page view was created before the
-         * prefix was read from the config.
-         */
-        if (!pageViewPrefix.isEmpty()) {
-            // ["set", "page", location]
-            if (action.length == 3 && "set".equals(action[0]) && "page".equals(action[1])) {
-                action[2] = pageViewPrefix + action[2];
+    private TrackerConfiguration getSamplingConfiguration() {
+        if (config == null) {
+            // Rules can only be resolved once the root layout is known
+            List<HasElement> routeChain = ui.getInternals().getActiveRouterTargetsChain();
+            if (routeChain.isEmpty() || !RouteMetadata.getRootLayout(routeChain).enablesTracking()) {
+                return null;
+            }
+            config = getConfiguration(ui);
+            if (config != null) {
+                prefixPageLocations();
             }
         }
+        return config;
+    }
 
-        ui.getPage().executeJavaScript("ga.apply(null, arguments)", action);
+    private int getSamplingBucket() {
+        if (samplingBucket < 0) {
+            VaadinSession session = ui.getSession();
+            Integer bucket = (Integer) session.getAttribute(SAMPLING_BUCKET_ATTRIBUTE);
+            if (bucket == null) {
+                // Stored so that a changed session id doesn't change sampling
+                bucket = Integer.valueOf(computeSamplingBucket(session));
+                session.setAttribute(SAMPLING_BUCKET_ATTRIBUTE, bucket);
+            }
+            samplingBucket = bucket.intValue();
+        }
+        return samplingBucket;
     }
 
-    private static Serializable[] createAction(String command, Map<String, ? extends Serializable> fieldsObject,
-            Serializable... fields) {
-        if (fields == null) {
-            fields = new Serializable[] { null };
+    private static int computeSamplingBucket(VaadinSession session) {
+        WrappedSession wrappedSession = session.getSession();
+        int hash = wrappedSession != null ? wrappedSession.getId().hashCode() : System.identityHashCode(session);
+
+        // Spread the bits so that similar ids end up in unrelated buckets
+        hash *= 0x9E3779B9;
+        hash ^= hash >>> 16;
+
+        return Math.floorMod(hash, TrackerConfiguration.SAMPLING_BUCKETS);
+    }
+
+    /**
+     * Checks whether a page view would be sent for the current session based
+     * on the sampling rules of the configuration.
+     * 
+     * @return <code>true</code> if page views are sampled in, otherwise
+     *         <code>false</code>
+     */
+    boolean isPageViewSampled() {
+        TrackerConfiguration samplingConfig = getSamplingConfiguration();
+        if (samplingConfig == null || !samplingConfig.hasSampling()) {
+            return true;
         }
 
-        // [command, fields...]
-        Stream<Serializable> argsStream = Stream.concat(Stream.of(command), Stream.of(fields));
-        if (fieldsObject != null && !fieldsObject.isEmpty()) {
-            // [command, fields..., fieldsObject]
-            argsStream = Stream.concat(argsStream, Stream.of(toJsonObject(fieldsObject)));
+        Class<?> navigationTarget = null;
+        if (samplingConfig.hasRouteSampling()) {
+            List<HasElement> routeChain = ui.getInternals().getActiveRouterTargetsChain();
+            if (!routeChain.isEmpty()) {
+                navigationTarget = routeChain.get(0).getClass();
+            }
         }
+        return samplingConfig.isPageViewSampled(getSamplingBucket(), navigationTarget);
+    }
 
-        return argsStream.toArray(Serializable[]::new);
+    private boolean isEventSampled(String category) {
+        TrackerConfiguration samplingConfig = getSamplingConfiguration();
+        if (samplingConfig == null || !samplingConfig.hasSampling()) {
+            return true;
+        }
+        return samplingConfig.isEventSampled(getSamplingBucket(), category);
     }
 
-    private static JsonObject toJsonObject(Map<String, ? extends Serializable> map) {
-        if (map == null || map.isEmpty()) {
-            return null;
+    private boolean isSampled(String command, Map<String, ? extends Serializable> fieldsObject,
+            Serializable[] fields) {
+        if (!"send".equals(command)) {
+            return true;
+        }
+
+        Object hitType = getHitType(fieldsObject, fields);
+        if ("pageview".equals(hitType)) {
+            return isPageViewSampled();
+        } else if ("event".equals(hitType)) {
+            Object category = fields != null && fields.length > 1 ? fields[1]
+                    : fieldsObject != null ? fieldsObject.get("eventCategory") : null;
+            return isEventSampled(category instanceof String ? (String) category : null);
+        } else {
+            return true;
         }
+    }
 
-        return JsonUtils.createObject(map, JsonCodec::encodeWithoutTypeInfo);
+    private static Object getHitType(Map<String, ? extends Serializable> fieldsObject, Serializable[] fields) {
+        // A null fields array has no positional fields
+        return fields != null && fields.length > 0 ? fields[0]
+                : fieldsObject != null ? fieldsObject.get("hitType") : null;
     }
 
     /**
-     * Sends a generic command to Google Analytics. This corresponds to a
-     * client-side call to the <code>ga</code> function except that fieldsObject
-     * is not the last parameter because of the way varargs work in Java.
+     * Takes a token from the per UI and global rate limits for a hit that is
+     * about to be queued. Nothing is allocated when the hit is rejected.
      * 
-     * @param command
-     *            the name of the command to send, not <code>null</code>
-     * @param fieldsObject
-     *            a map of additional fields, or <code>null</code> to to not
-     *            send any additional fields
-     * @param fields
-     *            a list of field values to send
+     * @param pageView
+     *            <code>true</code> if the hit is a page view, which may use
+     *            the part of the burst that is reserved for page views
+     * @return <code>true</code> if the hit may be queued, <code>false</code>
+     *         if it should be dropped
      */
-    public void ga(String command, Map<String, ? extends Serializable> fieldsObject, Serializable... fields) {
-        if (pendingActions.isEmpty()) {
-            ui.beforeClientResponse(ui, context -> {
-                if (!inited) {
-                    init();
-                }
-
-                pendingActions.forEach(this::sendAction);
-                pendingActions.clear();
-            });
+    private boolean acquireHit(boolean pageView) {
+        TrackerConfiguration limitConfig = getSamplingConfiguration();
+        HitRateLimiter.Limit limit = limitConfig == null ? null : limitConfig.getRateLimit();
+        HitRateLimiter global = HitRateLimiter.global();
+        if (limit == null && !global.isLimited()) {
+            return true;
         }
 
-        pendingActions.add(createAction(command, fieldsObject, fields));
+        long now = System.nanoTime();
+        long arrival = 0;
+        if (limit != null) {
+            arrival = limit.acquire(rateLimitArrival, now, pageView);
+            if (arrival == HitRateLimiter.REJECTED) {
+                hitRateLimited(limitConfig, false);
+                return false;
+            }
+        }
+        if (!global.tryAcquire(now, pageView)) {
+            hitRateLimited(limitConfig, true);
+            return false;
+        }
+        if (limit != null) {
+            // Only spend the UI's token once the hit is actually sent
+            rateLimitArrival = arrival;
+        }
+        return true;
     }
 
-    /**
-     * Sends a page view command to Google Analytics.
-     * 
-     * @param location
-     *            the location of the viewed page, not <code>null</code>
-     */
-    public void sendPageView(String location) {
-        sendPageView(location, null);
+    private void hitRateLimited(TrackerConfiguration limitConfig, boolean global) {
+        TrackerMetrics.get().hitRateLimited(global);
+        if (limitConfig != null && limitConfig.getRateLimitSummaryCategory() != null
+                && rateLimitedHitCount++ == 0 && !failed) {
+            // Make sure that the summary is sent even if nothing else is
+            scheduleFlush();
+        }
     }
 
     /**
-     * Sends a page view command with arbitrary additional fields to Google
-     * Analytics. See <a href=
-     * "https://developers.google.com/analytics/devguides/collection/analyticsjs/tracker-object-reference#send">the
-     * reference documentation</a> for more information about supported
-     * additional fields.
-     * 
-     * @param location
-     *            the location of the viewed page, not <code>null</code>
-     * @param fieldsObject
-     *            map of additional fields to include in the <code>send</code>
-     *            command
+     * Queues an event with the number of hits dropped by rate limiting since
+     * the previous summary, bypassing the rate limits.
      */
-    public void sendPageView(String location, Map<String, Serializable> fieldsObject) {
-        ga("set", null, "page", location);
-        ga("send", fieldsObject, "pageview");
+    private void queueRateLimitSummary() {
+        if (config.getRateLimitSummaryCategory() != null) {
+            JsonObject fields = Json.createObject();
+            fields.put("eventValue", rateLimitedHitCount);
+            fields.put("nonInteraction", true);
+            dropActions(pendingActions.offer(new Serializable[] { "send", "event",
+                    config.getRateLimitSummaryCategory(), config.getRateLimitSummaryAction(), fields }));
+        }
+        rateLimitedHitCount = 0;
     }
 
-    /**
-     * Sends an event command with the given category and action. See <a href=
+    private void flushPendingActions(boolean bootstrapResponse) {
+        if (backgroundCallCount.get() != 0) {
+            runBackgroundCalls();
+        }
+
+        if (!inited) {
+            long start = System.nanoTime();
+            try {
+                init(bootstrapResponse);
+            } catch (RuntimeException e) {
+                TrackerMetrics.get().initialized(System.nanoTime() - start, false);
+                fail();
+                throw e;
+            }
+            TrackerMetrics.get().initialized(System.nanoTime() - start, true);
+        } else if (transport == null && !restoreConfiguration()) {
+            return;
+        }
+
+        if (coalescedEvents != null) {
+            releaseCoalescedEvents(false);
+        }
+        if (rateLimitedHitCount != 0) {
+            queueRateLimitSummary();
+        }
+        flushScheduled = false;
+
+        if (pendingActions.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        TrackerMetrics metrics = TrackerMetrics.get();
+        TrackerRollups.Bucket rollup = null;
+        if (TrackerRollups.isEnabled()) {
+            rollup = TrackerRollups.getCurrentBucket();
+            if (rollup.getMinute() != rollupMinute) {
+                rollup.uiActive();
+                rollupMinute = rollup.getMinute();
+            }
+        }
+        int hitSizeLimit = config.getHitSizeLimit();
+        for (int i = 0; i < pendingActions.size(); i++) {
+            Serializable[] action = pendingActions.get(i);
+            if ("send".equals(action[0])) {
+                int size = HitSize.estimate(action, hitSizeLimit);
+                if (size > hitSizeLimit) {
+                    // Check the replacements, or the next action if rejected
+                    replaceOversizedHit(i, size);
+                    i--;
+                    continue;
+                }
+            }
+            metrics.commandSent("send".equals(action[0]) && action.length > 1 ? action[1] : null);
+            if (rollup != null) {
+                rollupPage = rollup.record(action, rollupPage);
+            }
+        }
+        if (pendingActions.isEmpty()) {
+            // Only rejected hits were queued
+            unprefixedPageLocations = null;
+            navigationPageLocation = null;
+            return;
+        }
+
+        int commandCount = pendingActions.size();
+        transport.send(ui, pendingActions);
+        pendingActions.clear();
+        unprefixedPageLocations = null;
+        navigationPageLocation = null;
+        navigationPageView = null;
+        metrics.drained(System.nanoTime() - start, commandCount);
+    }
+
+    /**
+     * Replaces a queued hit that is too large to be accepted by Google
+     * Analytics with smaller hits according to the configured split fields,
+     * or removes it if it cannot be split.
+     */
+    private void replaceOversizedHit(int index, int estimatedSize) {
+        Serializable[] action = pendingActions.remove(index);
+        if (action == navigationPageView) {
+            navigationPageView = null;
+        }
+
+        List<Serializable[]> parts = HitSize.split(action, config.getHitSplitFields(), config.getHitSizeLimit());
+        if (parts == null) {
+            TrackerMetrics.get().hitRejected(estimatedSize);
+            return;
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            pendingActions.add(index + i, parts.get(i));
+        }
+        TrackerMetrics.get().hitSplit(parts.size());
+    }
+
+    static Serializable[] createAction(String command, Map<String, ? extends Serializable> fieldsObject,
+            Serializable... fields) {
+        JsonObject encodedFields = toJsonObject(fieldsObject);
+
+        // [command, fields..., fieldsObject], a null fields array is one null
+        int fieldCount = fields == null ? 1 : fields.length;
+        Serializable[] action = new Serializable[1 + fieldCount + (encodedFields == null ? 0 : 1)];
+        action[0] = command;
+        if (fields != null) {
+            System.arraycopy(fields, 0, action, 1, fieldCount);
+        }
+        if (encodedFields != null) {
+            action[action.length - 1] = encodedFields;
+        }
+
+        return action;
+    }
+
+    static JsonObject toJsonObject(Map<String, ? extends Serializable> map) {
+        if (map == null || map.isEmpty()) {
+            return null;
+        }
+
+        JsonObject object = Json.createObject();
+        for (Entry<String, ? extends Serializable> entry : map.entrySet()) {
+            object.put(entry.getKey(), JsonCodec.encodeWithoutTypeInfo(entry.getValue()));
+        }
+        return object;
+    }
+
+    /**
+     * Discards everything that is queued and stops queueing further actions.
+     */
+    private void fail() {
+        failed = true;
+        flushScheduled = false;
+
+        dropActions(pendingActions.size());
+        pendingActions.clear();
+        unprefixedPageLocations = null;
+        navigationPageLocation = null;
+        navigationPageView = null;
+        if (coalescedEvents != null) {
+            dropActions(coalescedEvents.size());
+            coalescedEvents.clear();
+        }
+    }
+
+    /**
+     * Resolves the configuration again for a tracker that was deserialized
+     * before the configuration was cached in this JVM, or whose configuration
+     * isn't shared. Actions stay queued while no route is active, and are
+     * dropped if the root layout no longer provides a configuration.
+     * 
+     * @return <code>true</code> if the configuration was restored, otherwise
+     *         <code>false</code>
+     */
+    private boolean restoreConfiguration() {
+        List<HasElement> routeChain = ui.getInternals().getActiveRouterTargetsChain();
+        if (routeChain.isEmpty()) {
+            // Flushed again when something is queued after the next navigation
+            flushScheduled = false;
+            return false;
+        }
+
+        TrackerConfiguration restored = getConfiguration(ui);
+        if (restored == null) {
+            fail();
+            return false;
+        }
+
+        applyConfiguration(restored);
+        return true;
+    }
+
+    private void dropActions(int count) {
+        if (count > 0) {
+            droppedActionCount += count;
+            TrackerMetrics.get().actionsDropped(count);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+
+        if (flushPolicy == FlushPolicy.IMMEDIATE || VaadinService.getCurrentRequest() != null) {
+            registerFlush();
+        } else if (flushPolicy == FlushPolicy.DELAYED && !delayedFlushScheduled) {
+            // Actions queued until the delay has passed share one push
+            delayedFlushScheduled = true;
+            FlushScheduler.schedule(ui, this::runDelayedFlush, maxFlushDelayMillis);
+        }
+    }
+
+    private void registerFlush() {
+        flushScheduled = true;
+        ui.beforeClientResponse(ui, flushCallback);
+    }
+
+    private void runDelayedFlush() {
+        delayedFlushScheduled = false;
+        if (!flushScheduled && hasQueuedActions()) {
+            registerFlush();
+        }
+    }
+
+    private boolean hasQueuedActions() {
+        return !pendingActions.isEmpty() || coalescedEvents != null && !coalescedEvents.isEmpty();
+    }
+
+    private void queueAction(Serializable[] action) {
+        queueAction(action, false);
+    }
+
+    private void queueAction(Serializable[] action, boolean prefixed) {
+        if (failed) {
+            dropActions(1);
+            return;
+        }
+
+        if (!prefixed && isPageLocation(action)) {
+            applyPageViewPrefix(action);
+        }
+
+        scheduleFlush();
+        dropActions(pendingActions.offer(action));
+    }
+
+    private static boolean isPageLocation(Serializable[] action) {
+        // ["set", "page", location]
+        return action.length == 3 && "set".equals(action[0]) && "page".equals(action[1]);
+    }
+
+    /**
+     * Adds the page view prefix to a page location action, or defers it until
+     * the configuration is resolved.
+     */
+    private void applyPageViewPrefix(Serializable[] action) {
+        if (config == null) {
+            if (unprefixedPageLocations == null) {
+                unprefixedPageLocations = new ArrayList<>();
+            } else if (unprefixedPageLocations.size() >= pendingActions.getCapacity()) {
+                // Forget actions that have been dropped from the queue
+                unprefixedPageLocations.removeIf(queued -> pendingActions.indexOfInstance(queued) < 0);
+            }
+            unprefixedPageLocations.add(action);
+        } else {
+            String prefix = config.getPageViewPrefix();
+            if (!prefix.isEmpty()) {
+                action[2] = prefix + action[2];
+            }
+        }
+    }
+
+    private void prefixPageLocations() {
+        if (unprefixedPageLocations != null) {
+            List<Serializable[]> actions = unprefixedPageLocations;
+            unprefixedPageLocations = null;
+            actions.forEach(this::applyPageViewPrefix);
+        }
+    }
+
+    private void replaceAction(Serializable[] oldAction, Serializable[] newAction) {
+        int index = pendingActions.indexOfInstance(oldAction);
+        if (index >= 0) {
+            pendingActions.set(index, newAction);
+        } else {
+            // Dropped from a full queue, the merged event counts it again
+            queueAction(newAction);
+        }
+    }
+
+    private static Serializable[] createEventAction(String category, String action, String label, Integer value) {
+        if (label == null) {
+            return new Serializable[] { "send", "event", category, action };
+        } else if (value == null) {
+            return new Serializable[] { "send", "event", category, action, label };
+        } else {
+            return new Serializable[] { "send", "event", category, action, label, value };
+        }
+    }
+
+    private void queueEvent(String category, String action, String label, Integer value) {
+        if (!isEventSampled(category)) {
+            return;
+        }
+        if (failed) {
+            dropActions(1);
+            return;
+        }
+
+        if (eventCoalescing == EventCoalescing.NONE) {
+            if (acquireHit(false)) {
+                queueAction(createEventAction(category, action, label, value));
+            }
+            return;
+        }
+
+        String key = CoalescedEvent.getKey(category, action, label);
+        CoalescedEvent event = coalescedEvents.get(key);
+        if (event == null) {
+            // Merged events don't result in more hits
+            if (!acquireHit(false)) {
+                return;
+            }
+            event = new CoalescedEvent(category, action, label, value, System.nanoTime());
+            coalescedEvents.put(key, event);
+            if (coalescingWindowNanos > 0) {
+                // Held back until the window has elapsed
+                scheduleFlush();
+            } else {
+                event.queuedAction = event.toAction();
+                queueAction(event.queuedAction);
+            }
+        } else {
+            event.merge(eventCoalescing, value);
+            if (event.queuedAction != null) {
+                Serializable[] merged = event.toAction();
+                replaceAction(event.queuedAction, merged);
+                event.queuedAction = merged;
+            }
+        }
+    }
+
+    private void releaseCoalescedEvents(boolean all) {
+        if (coalescingWindowNanos == 0) {
+            // Events from the current round-trip are already in the queue
+            coalescedEvents.clear();
+            return;
+        }
+
+        long now = System.nanoTime();
+        long nextExpiry = Long.MAX_VALUE;
+        Iterator<CoalescedEvent> iterator = coalescedEvents.values().iterator();
+        while (iterator.hasNext()) {
+            CoalescedEvent event = iterator.next();
+            long remaining = event.firstNanos + coalescingWindowNanos - now;
+            if (all || remaining <= 0) {
+                dropActions(pendingActions.offer(event.toAction()));
+                iterator.remove();
+            } else {
+                nextExpiry = Math.min(nextExpiry, remaining);
+            }
+        }
+
+        if (nextExpiry != Long.MAX_VALUE && !coalescingFlushScheduled && !failed) {
+            // Nothing else might flush the queue once the window has elapsed
+            coalescingFlushScheduled = true;
+            long delayMillis = TimeUnit.NANOSECONDS.toMillis(nextExpiry + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+            FlushScheduler.schedule(ui, this::runCoalescingFlush, delayMillis);
+        }
+    }
+
+    private void runCoalescingFlush() {
+        coalescingFlushScheduled = false;
+        if (!flushScheduled && hasQueuedActions()) {
+            registerFlush();
+        }
+    }
+
+    /**
+     * Enables or disables merging of identical events. Events sent through
+     * {@link #sendEvent(String, String)},
+     * {@link #sendEvent(String, String, String)} and
+     * {@link #sendEvent(String, String, String, int)} that have the same
+     * category, action and label are merged into one event whose value carries
+     * the count or sum of the merged events.
+     * <p>
+     * With a window of 0, events are merged within one round-trip. With a
+     * positive window, events are held back and merged until the window has
+     * elapsed since the first of them, and then sent with the next response.
+     * A flush is scheduled for when the window elapses, so held events are
+     * pushed to the client if push is enabled and otherwise sent with the
+     * response to the next request.
+     * 
+     * @param eventCoalescing
+     *            the coalescing mode, not <code>null</code>
+     * @param windowMillis
+     *            the coalescing window in milliseconds, or 0 to merge events
+     *            within one round-trip
+     */
+    public void setEventCoalescing(EventCoalescing eventCoalescing, long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Window cannot be negative");
+        }
+        if (coalescedEvents != null && !coalescedEvents.isEmpty()) {
+            // Release held events before changing the rules
+            releaseCoalescedEvents(true);
+            scheduleFlush();
+        }
+
+        this.eventCoalescing = Objects.requireNonNull(eventCoalescing);
+        this.coalescingWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        coalescedEvents = eventCoalescing == EventCoalescing.NONE ? null : new HashMap<>();
+    }
+
+    /**
+     * Enables or disables merging of identical events within one round-trip.
+     * 
+     * @see #setEventCoalescing(EventCoalescing, long)
+     * 
+     * @param eventCoalescing
+     *            the coalescing mode, not <code>null</code>
+     */
+    public void setEventCoalescing(EventCoalescing eventCoalescing) {
+        setEventCoalescing(eventCoalescing, 0);
+    }
+
+    /**
+     * Gets the current event coalescing mode.
+     * 
+     * @return the event coalescing mode, not <code>null</code>
+     */
+    public EventCoalescing getEventCoalescing() {
+        return eventCoalescing;
+    }
+
+    private void enqueueBackgroundCall(BackgroundCall call) {
+        if (backgroundCallCount.incrementAndGet() > pendingActions.getCapacity()) {
+            // Nobody is draining the queue, e.g. because the UI is detached
+            backgroundCallCount.decrementAndGet();
+            TrackerMetrics.get().actionsDropped(1);
+            return;
+        }
+        backgroundCalls.add(call);
+
+        if (backgroundDrainScheduled.compareAndSet(false, true)) {
+            try {
+                // Runs right away if the lock is free, otherwise when released
+                ui.access(this::runBackgroundCalls);
+            } catch (UIDetachedException e) {
+                // Calls are dropped with the UI, the flag stays set
+            }
+        }
+    }
+
+    private void runBackgroundCalls() {
+        // Cleared before polling so that concurrently added calls schedule again
+        backgroundDrainScheduled.set(false);
+
+        BackgroundCall call;
+        while ((call = backgroundCalls.poll()) != null) {
+            backgroundCallCount.decrementAndGet();
+            call.run(this);
+        }
+    }
+
+    private void queueIfSampled(Serializable[] action) {
+        if (!"send".equals(action[0]) || action.length < 2) {
+            queueAction(action);
+            return;
+        }
+
+        Serializable hitType = action[1];
+        if ("pageview".equals(hitType) && !isPageViewSampled()) {
+            return;
+        }
+        if ("event".equals(hitType) && action.length > 2 && action[2] instanceof String
+                && !isEventSampled((String) action[2])) {
+            return;
+        }
+        if (!acquireHit("pageview".equals(hitType))) {
+            return;
+        }
+        queueAction(action);
+    }
+
+    /**
+     * Sends a generic command to Google Analytics from any thread without
+     * holding the session lock. The command is encoded right away and queued
+     * in a lock-free queue. It is then passed on like a command sent through
+     * {@link #ga(String, Map, Serializable...)} with the session locked, either
+     * through one scheduled {@link UI#access(com.vaadin.flow.server.Command)}
+     * for all commands queued meanwhile, or when the next response is
+     * prepared, whichever happens first.
+     * <p>
+     * The number of commands waiting for the session lock is limited by
+     * {@link #getMaxPendingActions()}. Commands are dropped if the UI is
+     * detached.
+     * 
+     * @param command
+     *            the name of the command to send, not <code>null</code>
+     * @param fieldsObject
+     *            a map of additional fields, or <code>null</code> to to not
+     *            send any additional fields
+     * @param fields
+     *            a list of field values to send
+     */
+    public void enqueue(String command, Map<String, ? extends Serializable> fieldsObject, Serializable... fields) {
+        Serializable[] action = createAction(command, fieldsObject, fields);
+        enqueueBackgroundCall(new BackgroundCall(BackgroundCall.COMMAND, action));
+    }
+
+    /**
+     * Sends a page view command from any thread without holding the session
+     * lock.
+     * 
+     * @see #enqueue(String, Map, Serializable...)
+     * @see #sendPageView(String)
+     * 
+     * @param location
+     *            the location of the viewed page, not <code>null</code>
+     */
+    public void enqueuePageView(String location) {
+        Objects.requireNonNull(location);
+        enqueueBackgroundCall(new BackgroundCall(BackgroundCall.PAGE_VIEW, new Serializable[] { location }));
+    }
+
+    /**
+     * Sends an event command from any thread without holding the session
+     * lock.
+     * 
+     * @see #enqueue(String, Map, Serializable...)
+     * @see #sendEvent(String, String, String)
+     * 
+     * @param category
+     *            the category name, not <code>null</code>
+     * @param action
+     *            the action name, not <code>null</code>
+     * @param label
+     *            the event label, or <code>null</code> to not send a label
+     */
+    public void enqueueEvent(String category, String action, String label) {
+        enqueueBackgroundCall(
+                new BackgroundCall(BackgroundCall.EVENT, new Serializable[] { category, action, label }));
+    }
+
+    /**
+     * Sends a generic command to Google Analytics. This corresponds to a
+     * client-side call to the <code>ga</code> function except that fieldsObject
+     * is not the last parameter because of the way varargs work in Java.
+     * <p>
+     * Page view and event hits may be dropped based on the sampling rules of
+     * the tracker configuration, see
+     * {@link TrackerConfiguration#setPageViewSampleRate(double)}.
+     * 
+     * @param command
+     *            the name of the command to send, not <code>null</code>
+     * @param fieldsObject
+     *            a map of additional fields, or <code>null</code> to to not
+     *            send any additional fields
+     * @param fields
+     *            a list of field values to send
+     */
+    public void ga(String command, Map<String, ? extends Serializable> fieldsObject, Serializable... fields) {
+        if (!isSampled(command, fieldsObject, fields)) {
+            return;
+        }
+        if ("send".equals(command) && !acquireHit("pageview".equals(getHitType(fieldsObject, fields)))) {
+            return;
+        }
+        queueAction(createAction(command, fieldsObject, fields));
+    }
+
+    /**
+     * Sends a page view command to Google Analytics.
+     * 
+     * @param location
+     *            the location of the viewed page, not <code>null</code>
+     */
+    public void sendPageView(String location) {
+        sendPageView(location, null);
+    }
+
+    /**
+     * Sends a page view command with arbitrary additional fields to Google
+     * Analytics. See <a href=
+     * "https://developers.google.com/analytics/devguides/collection/analyticsjs/tracker-object-reference#send">the
+     * reference documentation</a> for more information about supported
+     * additional fields.
+     * 
+     * @param location
+     *            the location of the viewed page, not <code>null</code>
+     * @param fieldsObject
+     *            map of additional fields to include in the <code>send</code>
+     *            command
+     */
+    public void sendPageView(String location, Map<String, Serializable> fieldsObject) {
+        if (!isPageViewSampled() || !acquireHit(true)) {
+            return;
+        }
+
+        queueAction(new Serializable[] { "set", "page", location });
+
+        JsonObject encodedFields = toJsonObject(fieldsObject);
+        if (encodedFields == null) {
+            queueAction(new Serializable[] { "send", "pageview" });
+        } else {
+            queueAction(new Serializable[] { "send", "pageview", encodedFields });
+        }
+    }
+
+    /**
+     * Marks the start of a navigation for navigation timing. An earlier start
+     * is kept so that a rerouted navigation is timed from the beginning.
+     */
+    void startNavigationTiming() {
+        if (navigationStartNanos == NO_NAVIGATION) {
+            navigationStartNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Forgets the start of a navigation that didn't complete, e.g. because it
+     * was postponed.
+     */
+    void resetNavigationTiming() {
+        navigationStartNanos = NO_NAVIGATION;
+    }
+
+    /**
+     * Records the duration of a completed navigation if navigation timing is
+     * enabled in the configuration, and sends it as a timing hit if it is
+     * sampled.
+     * 
+     * @see TrackerConfiguration#setNavigationTiming(boolean)
+     * 
+     * @param navigationTarget
+     *            the navigation target, or <code>null</code> if not known
+     */
+    void completeNavigationTiming(Class<?> navigationTarget) {
+        long start = navigationStartNanos;
+        navigationStartNanos = NO_NAVIGATION;
+        if (start == NO_NAVIGATION || navigationTarget == null) {
+            return;
+        }
+
+        TrackerConfiguration timingConfig = getSamplingConfiguration();
+        if (timingConfig == null || !timingConfig.isNavigationTiming()) {
+            return;
+        }
+
+        long nanos = System.nanoTime() - start;
+        TrackerMetrics.get().navigationTimed(navigationTarget, nanos);
+
+        if (timingConfig.isNavigationTimingSampled()) {
+            String template = RouteMetadata.get(navigationTarget).getRouteTemplate();
+            String variable = template == null ? navigationTarget.getName() : "/" + template;
+            sendTiming(TrackerConfiguration.NAVIGATION_TIMING_CATEGORY, variable,
+                    (int) TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+    }
+
+    /**
+     * Sends a page view for a completed navigation. If enabled, a page view
+     * for an earlier navigation in the same round-trip, e.g. one that was
+     * forwarded or rerouted, is removed so that only the final location is
+     * tracked. The location is normalized according to the configuration if
+     * the configuration is already known.
+     * 
+     * @param location
+     *            the location of the viewed page, not <code>null</code>
+     * @param navigationTarget
+     *            the navigation target, or <code>null</code> if not known
+     */
+    void sendNavigationPageView(Location location, Class<?> navigationTarget) {
+        if (!isPageViewSampled()) {
+            TrackerMetrics.get().pageViewSampledOut();
+            return;
+        }
+        // A collapsed page view replaces a hit that has already been counted
+        boolean replacesPageView = collapseNavigationPageViews && navigationPageView != null;
+        if (!replacesPageView && !acquireHit(true)) {
+            return;
+        }
+
+        if (collapseNavigationPageViews) {
+            removeQueuedAction(navigationPageView);
+            removeQueuedAction(navigationPageLocation);
+        }
+
+        Serializable[] pageLocation;
+        boolean prefixed;
+        TrackerConfiguration locationConfig = getSamplingConfiguration();
+        if (locationConfig != null && locationConfig.hasLocationNormalization()) {
+            pageLocation = new Serializable[] { "set", "page",
+                    locationConfig.getPageViewLocation(location, navigationTarget) };
+            prefixed = true;
+        } else {
+            pageLocation = new Serializable[] { "set", "page", location.getPathWithQueryParameters() };
+            prefixed = false;
+        }
+        Serializable[] pageView = { "send", "pageview" };
+        queueAction(pageLocation, prefixed);
+        queueAction(pageView);
+
+        if (collapseNavigationPageViews) {
+            navigationPageLocation = pageLocation;
+            navigationPageView = pageView;
+        }
+    }
+
+    private void removeQueuedAction(Serializable[] action) {
+        if (action != null) {
+            int index = pendingActions.indexOfInstance(action);
+            if (index >= 0) {
+                pendingActions.remove(index);
+            }
+        }
+    }
+
+    /**
+     * Sets whether page views for navigations that are superseded by another
+     * navigation in the same round-trip should be removed. This happens e.g.
+     * when a navigation is forwarded or rerouted from a
+     * <code>BeforeEnterObserver</code>, or when <code>UI.navigate</code> is
+     * called while handling a navigation. This is enabled by default and only
+     * affects automatically sent page views.
+     * 
+     * @param collapseNavigationPageViews
+     *            <code>true</code> to only track the final location of a
+     *            round-trip, <code>false</code> to track every navigation
+     */
+    public void setCollapseNavigationPageViews(boolean collapseNavigationPageViews) {
+        this.collapseNavigationPageViews = collapseNavigationPageViews;
+        if (!collapseNavigationPageViews) {
+            navigationPageLocation = null;
+            navigationPageView = null;
+        }
+    }
+
+    /**
+     * Checks whether page views for superseded navigations in the same
+     * round-trip are removed.
+     * 
+     * @see #setCollapseNavigationPageViews(boolean)
+     * 
+     * @return <code>true</code> if only the final location of a round-trip is
+     *         tracked, otherwise <code>false</code>
+     */
+    public boolean isCollapseNavigationPageViews() {
+        return collapseNavigationPageViews;
+    }
+
+    /**
+     * Sends an event command with the given category and action. See <a href=
      * "https://developers.google.com/analytics/devguides/collection/analyticsjs/tracker-object-reference#send">the
      * reference documentation</a> for information about the semantics of the
      * parameters.
@@ -264,7 +1580,7 @@ public class GoogleAnalyticsTracker {
      *            the action name, not <code>null</code>
      */
     public void sendEvent(String category, String action) {
-        ga("send", null, "event", category, action);
+        queueEvent(category, action, null, null);
     }
 
     /**
@@ -282,7 +1598,7 @@ public class GoogleAnalyticsTracker {
      *            the event label, not <code>null</code>
      */
     public void sendEvent(String category, String action, String label) {
-        ga("send", null, "event", category, action, label);
+        queueEvent(category, action, label, null);
     }
 
     /**
@@ -302,7 +1618,7 @@ public class GoogleAnalyticsTracker {
      *            the event value
      */
     public void sendEvent(String category, String action, String label, int value) {
-        ga("send", null, "event", category, action, label, Integer.valueOf(value));
+        queueEvent(category, action, label, Integer.valueOf(value));
     }
 
     /**
@@ -319,7 +1635,343 @@ public class GoogleAnalyticsTracker {
      * @param fieldsObject
      */
     public void sendEvent(String category, String action, Map<String, Serializable> fieldsObject) {
-        ga("send", fieldsObject, "event", category, action);
+        if (!isEventSampled(category) || !acquireHit(false)) {
+            return;
+        }
+
+        JsonObject encodedFields = toJsonObject(fieldsObject);
+        if (encodedFields == null) {
+            queueAction(new Serializable[] { "send", "event", category, action });
+        } else {
+            queueAction(new Serializable[] { "send", "event", category, action, encodedFields });
+        }
+    }
+
+    /**
+     * Sends a user timing command with the given category, variable and value.
+     * See <a href=
+     * "https://developers.google.com/analytics/devguides/collection/analyticsjs/user-timings">the
+     * user timings documentation</a> for information about the semantics of
+     * the parameters.
+     * 
+     * @param category
+     *            the timing category, not <code>null</code>
+     * @param variable
+     *            the timing variable, not <code>null</code>
+     * @param millis
+     *            the timing value in milliseconds
+     */
+    public void sendTiming(String category, String variable, int millis) {
+        sendTiming(category, variable, millis, null);
+    }
+
+    /**
+     * Sends a user timing command with the given category, variable, value
+     * and label.
+     * 
+     * @see #sendTiming(String, String, int)
+     * 
+     * @param category
+     *            the timing category, not <code>null</code>
+     * @param variable
+     *            the timing variable, not <code>null</code>
+     * @param millis
+     *            the timing value in milliseconds
+     * @param label
+     *            the timing label, or <code>null</code> to not send a label
+     */
+    public void sendTiming(String category, String variable, int millis, String label) {
+        Objects.requireNonNull(category);
+        Objects.requireNonNull(variable);
+        if (!acquireHit(false)) {
+            return;
+        }
+
+        if (label == null) {
+            queueAction(new Serializable[] { "send", "timing", category, variable, Integer.valueOf(millis) });
+        } else {
+            queueAction(new Serializable[] { "send", "timing", category, variable, Integer.valueOf(millis), label });
+        }
+    }
+
+    /**
+     * Prepares an event with a fixed category and action for sending
+     * repeatedly through {@link #sendEvent(PreparedEvent)}.
+     * 
+     * @param category
+     *            the category name, not <code>null</code>
+     * @param action
+     *            the action name, not <code>null</code>
+     * @return an immutable prepared event, not <code>null</code>
+     */
+    public static PreparedEvent prepareEvent(String category, String action) {
+        return new PreparedEvent(category, action, null);
+    }
+
+    /**
+     * Prepares an event with a fixed category, action and fields object for
+     * sending repeatedly through {@link #sendEvent(PreparedEvent)}. The fields
+     * are encoded once, and the prepared event can be shared by all UIs.
+     * 
+     * @param category
+     *            the category name, not <code>null</code>
+     * @param action
+     *            the action name, not <code>null</code>
+     * @param fieldsObject
+     *            map of additional fields to include in the <code>send</code>
+     *            command, or <code>null</code>
+     * @return an immutable prepared event, not <code>null</code>
+     */
+    public static PreparedEvent prepareEvent(String category, String action,
+            Map<String, ? extends Serializable> fieldsObject) {
+        return new PreparedEvent(category, action, fieldsObject);
+    }
+
+    /**
+     * Sends a prepared event.
+     * 
+     * @param event
+     *            the prepared event, not <code>null</code>
+     */
+    public void sendEvent(PreparedEvent event) {
+        sendPreparedEvent(event, null, null);
+    }
+
+    /**
+     * Sends a prepared event with the given label.
+     * 
+     * @param event
+     *            the prepared event, not <code>null</code>
+     * @param label
+     *            the event label, not <code>null</code>
+     */
+    public void sendEvent(PreparedEvent event, String label) {
+        sendPreparedEvent(event, Objects.requireNonNull(label), null);
+    }
+
+    /**
+     * Sends a prepared event with the given label and value.
+     * 
+     * @param event
+     *            the prepared event, not <code>null</code>
+     * @param label
+     *            the event label, not <code>null</code>
+     * @param value
+     *            the event value
+     */
+    public void sendEvent(PreparedEvent event, String label, int value) {
+        sendPreparedEvent(event, Objects.requireNonNull(label), Integer.valueOf(value));
+    }
+
+    private void sendPreparedEvent(PreparedEvent event, String label, Integer value) {
+        if (!event.hasFields()) {
+            // Same as a regular event, including coalescing
+            queueEvent(event.getCategory(), event.getAction(), label, value);
+            return;
+        }
+
+        if (isEventSampled(event.getCategory()) && acquireHit(false)) {
+            queueAction(event.createAction(label, value));
+        }
+    }
+
+    /**
+     * Sends an event with the given category and action whenever a DOM event
+     * is fired for a component. With the default client-side transport, the
+     * event is sent directly from the browser without a server round-trip.
+     * Other transports use a server-side DOM listener instead.
+     * <p>
+     * The listener is installed whenever the component is attached and is
+     * only registered once for the same component and parameters. Events sent
+     * from the browser are not included in {@link TrackerMetrics}. Sampling
+     * is applied when the listener is registered.
+     * 
+     * @param component
+     *            the component to listen to, not <code>null</code>
+     * @param domEvent
+     *            the name of the DOM event, e.g. <code>click</code>, not
+     *            <code>null</code>
+     * @param category
+     *            the category name, not <code>null</code>
+     * @param action
+     *            the action name, not <code>null</code>
+     * @return a registration for removing the listener, not <code>null</code>
+     */
+    public Registration trackClientEvent(Component component, String domEvent, String category, String action) {
+        return trackClientEvent(component, domEvent, category, action, null);
+    }
+
+    /**
+     * Sends an event with the given category, action and label whenever a DOM
+     * event is fired for a component. With the default client-side transport,
+     * the event is sent directly from the browser without a server
+     * round-trip. Other transports use a server-side DOM listener instead.
+     * <p>
+     * The listener is installed whenever the component is attached and is
+     * only registered once for the same component and parameters. Events sent
+     * from the browser are not included in {@link TrackerMetrics}. Sampling
+     * is applied when the listener is registered.
+     * 
+     * @param component
+     *            the component to listen to, not <code>null</code>
+     * @param domEvent
+     *            the name of the DOM event, e.g. <code>click</code>, not
+     *            <code>null</code>
+     * @param category
+     *            the category name, not <code>null</code>
+     * @param action
+     *            the action name, not <code>null</code>
+     * @param label
+     *            the event label, or <code>null</code> to send no label
+     * @return a registration for removing the listener, not <code>null</code>
+     */
+    public Registration trackClientEvent(Component component, String domEvent, String category, String action,
+            String label) {
+        Objects.requireNonNull(component);
+        Objects.requireNonNull(domEvent);
+        Objects.requireNonNull(category);
+        Objects.requireNonNull(action);
+
+        if (!isEventSampled(category)) {
+            return () -> {
+                // Nothing was registered
+            };
+        }
+        return ClientEventTracking.add(this, component, domEvent, category, action, label);
+    }
+
+    /**
+     * Gets the transport of this tracker.
+     * 
+     * @return the transport, or <code>null</code> if the tracker is not yet
+     *         initialized
+     */
+    HitTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Makes the tracker initialize itself before the next response even if no
+     * actions are queued.
+     * 
+     * @return <code>true</code> if the tracker will be initialized,
+     *         <code>false</code> if it cannot be initialized
+     */
+    boolean requestInitialization() {
+        if (failed || !inited && getSamplingConfiguration() == null) {
+            return false;
+        }
+        if (!flushScheduled) {
+            registerFlush();
+        }
+        return true;
+    }
+
+    /**
+     * Sets the policy for sending actions that are queued while no request
+     * from the client is being handled.
+     * 
+     * @param flushPolicy
+     *            the flush policy to use, not <code>null</code>
+     * @param maxDelayMillis
+     *            the maximum time to hold actions with
+     *            {@link FlushPolicy#DELAYED}, must be positive
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy, long maxDelayMillis) {
+        if (maxDelayMillis <= 0) {
+            throw new IllegalArgumentException("Delay must be positive");
+        }
+        this.flushPolicy = Objects.requireNonNull(flushPolicy);
+        this.maxFlushDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Sets the policy for sending actions that are queued while no request
+     * from the client is being handled, using the default maximum delay.
+     * 
+     * @see #setFlushPolicy(FlushPolicy, long)
+     * 
+     * @param flushPolicy
+     *            the flush policy to use, not <code>null</code>
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        setFlushPolicy(flushPolicy, DEFAULT_MAX_FLUSH_DELAY_MILLIS);
+    }
+
+    /**
+     * Gets the policy for sending actions that are queued while no request
+     * from the client is being handled.
+     * 
+     * @return the flush policy, not <code>null</code>
+     */
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Sets the maximum number of actions that can be queued while waiting for
+     * the next response. When the queue is full, the overflow policy decides
+     * which action is dropped.
+     * 
+     * @see #setOverflowPolicy(OverflowPolicy)
+     * 
+     * @param maxPendingActions
+     *            the maximum number of queued actions, must be positive
+     */
+    public void setMaxPendingActions(int maxPendingActions) {
+        pendingActions.setCapacity(maxPendingActions);
+    }
+
+    /**
+     * Gets the maximum number of actions that can be queued while waiting for
+     * the next response.
+     * 
+     * @return the maximum number of queued actions
+     */
+    public int getMaxPendingActions() {
+        return pendingActions.getCapacity();
+    }
+
+    /**
+     * Sets the policy for deciding which action to drop when the pending
+     * queue is full.
+     * 
+     * @param overflowPolicy
+     *            the overflow policy to use, not <code>null</code>
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        pendingActions.setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * Gets the policy for deciding which action to drop when the pending
+     * queue is full.
+     * 
+     * @return the overflow policy, not <code>null</code>
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return pendingActions.getOverflowPolicy();
+    }
+
+    /**
+     * Gets the number of actions that have been dropped because the pending
+     * queue was full or because the tracker could not be initialized.
+     * 
+     * @return the number of dropped actions
+     */
+    public long getDroppedActionCount() {
+        return droppedActionCount;
+    }
+
+    /**
+     * Checks whether initializing this tracker has failed. A failed tracker
+     * drops all actions instead of queueing them.
+     * 
+     * @return <code>true</code> if initialization has failed, otherwise
+     *         <code>false</code>
+     */
+    public boolean isFailed() {
+        return failed;
     }
 
     /**
@@ -331,4 +1983,154 @@ public class GoogleAnalyticsTracker {
     public boolean isInitialized() {
         return inited;
     }
+
+    /**
+     * A call made from a background thread, replayed with the session locked.
+     * Calls are kept as data rather than as lambdas so that their serialized
+     * form doesn't depend on the synthetic method names of a particular build.
+     */
+    private static class BackgroundCall {
+        private static final int COMMAND = 0;
+        private static final int PAGE_VIEW = 1;
+        private static final int EVENT = 2;
+
+        private final int type;
+
+        /**
+         * The action of a command, the location of a page view, or the
+         * category, action and label of an event.
+         */
+        private final Serializable[] arguments;
+
+        private BackgroundCall(int type, Serializable[] arguments) {
+            this.type = type;
+            this.arguments = arguments;
+        }
+
+        private void run(GoogleAnalyticsTracker tracker) {
+            switch (type) {
+            case PAGE_VIEW:
+                tracker.sendPageView((String) arguments[0]);
+                break;
+            case EVENT:
+                if (arguments[2] == null) {
+                    tracker.sendEvent((String) arguments[0], (String) arguments[1]);
+                } else {
+                    tracker.sendEvent((String) arguments[0], (String) arguments[1], (String) arguments[2]);
+                }
+                break;
+            case COMMAND:
+            default:
+                tracker.queueIfSampled(arguments);
+                break;
+            }
+        }
+
+        private void writeTo(ObjectOutput out) throws IOException {
+            out.writeByte(type);
+            out.writeShort(arguments.length);
+            for (Serializable value : arguments) {
+                ActionQueue.writeValue(out, value);
+            }
+        }
+
+        private static BackgroundCall readFrom(ObjectInput in) throws IOException, ClassNotFoundException {
+            int type = in.readByte();
+            Serializable[] arguments = new Serializable[in.readUnsignedShort()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = ActionQueue.readValue(in);
+            }
+            return new BackgroundCall(type, arguments);
+        }
+    }
+
+    /**
+     * Identical events that are merged into one event.
+     */
+    private static class CoalescedEvent {
+        private final String category;
+        private final String action;
+        private final String label;
+        private final Integer firstValue;
+        private long firstNanos;
+
+        private int count = 1;
+        private long total;
+
+        /**
+         * The action in the pending queue representing this event, or
+         * <code>null</code> if the event is held back.
+         */
+        private Serializable[] queuedAction;
+
+        private CoalescedEvent(String category, String action, String label, Integer value, long firstNanos) {
+            this.category = category;
+            this.action = action;
+            this.label = label;
+            this.firstValue = value;
+            this.firstNanos = firstNanos;
+        }
+
+        private static String getKey(String category, String action, String label) {
+            return category + '\u0000' + action + '\u0000' + label;
+        }
+
+        private String getKey() {
+            return getKey(category, action, label);
+        }
+
+        private void writeTo(ObjectOutput out, long now, ActionQueue queue) throws IOException {
+            ActionQueue.writeValue(out, category);
+            ActionQueue.writeValue(out, action);
+            ActionQueue.writeValue(out, label);
+            ActionQueue.writeValue(out, firstValue);
+            out.writeInt(count);
+            out.writeLong(total);
+            // Relative age, since nano time is not comparable between JVMs
+            out.writeLong(now - firstNanos);
+            out.writeInt(queuedAction == null ? -1 : queue.indexOfInstance(queuedAction));
+        }
+
+        private static CoalescedEvent readFrom(ObjectInput in, long now, ActionQueue queue)
+                throws IOException, ClassNotFoundException {
+            CoalescedEvent event = new CoalescedEvent((String) ActionQueue.readValue(in),
+                    (String) ActionQueue.readValue(in), (String) ActionQueue.readValue(in),
+                    (Integer) ActionQueue.readValue(in), 0);
+            event.count = in.readInt();
+            event.total = in.readLong();
+            event.firstNanos = now - in.readLong();
+            int queuedIndex = in.readInt();
+            if (queuedIndex >= 0) {
+                event.queuedAction = queue.get(queuedIndex);
+            }
+            return event;
+        }
+
+        private void merge(EventCoalescing mode, Integer value) {
+            if (count == 1) {
+                total = mode == EventCoalescing.SUM ? valueOf(firstValue) : 1;
+            }
+            count++;
+            total += mode == EventCoalescing.SUM ? valueOf(value) : 1;
+        }
+
+        private static long valueOf(Integer value) {
+            return value == null ? 1 : value.longValue();
+        }
+
+        private Serializable[] toAction() {
+            if (count == 1) {
+                return createEventAction(category, action, label, firstValue);
+            }
+
+            Integer value = Integer.valueOf((int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, total)));
+            if (label != null) {
+                return new Serializable[] { "send", "event", category, action, label, value };
+            }
+            // There is no label, so the value is passed as a field
+            JsonObject fieldsObject = Json.createObject();
+            fieldsObject.put("eventValue", value.doubleValue());
+            return new Serializable[] { "send", "event", category, action, fieldsObject };
+        }
+    }
 }
@@ -0,0 +1,183 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the rate of hits sent by all trackers in the JVM.
+ * Each tracker additionally applies the per UI limit of its configuration,
+ * see {@link TrackerConfiguration#setRateLimit(double, int)}. Hits that exceed
+ * either limit are dropped before they are queued.
+ * <p>
+ * Page views have priority over other hits: other hits are rejected once less
+ * than a quarter of the burst is left, while page views may use the whole
+ * burst.
+ * <p>
+ * The bucket is implemented as a single theoretical arrival time that is
+ * updated with compare-and-set, so acquiring a token doesn't lock or allocate
+ * even when many request threads send hits concurrently.
+ */
+public final class HitRateLimiter {
+    /**
+     * Returned by {@link Limit#acquire(long, long, boolean)} when no token is
+     * available. Also used as the initial arrival time.
+     */
+    static final long REJECTED = Long.MIN_VALUE;
+
+    private static final HitRateLimiter GLOBAL = new HitRateLimiter();
+
+    /**
+     * An immutable rate and burst, expressed as the time between hits and how
+     * far ahead of the current time the theoretical arrival time may run.
+     */
+    static final class Limit implements Serializable {
+        private final double hitsPerSecond;
+        private final int burst;
+
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final long lowPriorityToleranceNanos;
+
+        Limit(double hitsPerSecond, int burst) {
+            if (!(hitsPerSecond > 0)) {
+                throw new IllegalArgumentException("Rate must be positive");
+            }
+            if (burst < 1) {
+                throw new IllegalArgumentException("Burst must be at least 1");
+            }
+            this.hitsPerSecond = hitsPerSecond;
+            this.burst = burst;
+
+            intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / hitsPerSecond));
+            toleranceNanos = (burst - 1) * intervalNanos;
+            lowPriorityToleranceNanos = toleranceNanos - burst / 4 * intervalNanos;
+        }
+
+        double getHitsPerSecond() {
+            return hitsPerSecond;
+        }
+
+        int getBurst() {
+            return burst;
+        }
+
+        /**
+         * Tries to take a token from a bucket.
+         * 
+         * @param arrival
+         *            the current theoretical arrival time of the bucket, or
+         *            {@link HitRateLimiter#REJECTED} if the bucket is full
+         * @param now
+         *            the current {@link System#nanoTime()}
+         * @param priority
+         *            <code>true</code> if the hit may use the reserved part
+         *            of the burst
+         * @return the new theoretical arrival time, or
+         *         {@link HitRateLimiter#REJECTED} if no token is available
+         */
+        long acquire(long arrival, long now, boolean priority) {
+            long start = arrival == REJECTED || arrival - now < 0 ? now : arrival;
+            if (start - now > (priority ? toleranceNanos : lowPriorityToleranceNanos)) {
+                return REJECTED;
+            }
+            return start + intervalNanos;
+        }
+    }
+
+    private volatile Limit limit;
+
+    private final AtomicLong arrival = new AtomicLong(REJECTED);
+
+    private HitRateLimiter() {
+        // Only the global instance
+    }
+
+    /**
+     * Gets the rate limiter shared by all trackers in the JVM.
+     * 
+     * @return the global rate limiter, not <code>null</code>
+     */
+    public static HitRateLimiter global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Sets the maximum rate of hits sent by all trackers together. By
+     * default, the rate is not limited.
+     * 
+     * @param hitsPerSecond
+     *            the sustained number of hits per second, greater than 0
+     * @param burst
+     *            the number of hits that can be sent at once after a quiet
+     *            period, at least 1
+     */
+    public void setLimit(double hitsPerSecond, int burst) {
+        limit = new Limit(hitsPerSecond, burst);
+    }
+
+    /**
+     * Removes the rate limit so that all hits are sent.
+     */
+    public void removeLimit() {
+        limit = null;
+        arrival.set(REJECTED);
+    }
+
+    /**
+     * Checks whether a rate limit is set.
+     * 
+     * @return <code>true</code> if the rate is limited, otherwise
+     *         <code>false</code>
+     */
+    public boolean isLimited() {
+        return limit != null;
+    }
+
+    /**
+     * Gets the sustained number of hits per second.
+     * 
+     * @return the rate, or 0 if the rate is not limited
+     */
+    public double getHitsPerSecond() {
+        Limit current = limit;
+        return current == null ? 0 : current.getHitsPerSecond();
+    }
+
+    /**
+     * Gets the number of hits that can be sent at once.
+     * 
+     * @return the burst size, or 0 if the rate is not limited
+     */
+    public int getBurst() {
+        Limit current = limit;
+        return current == null ? 0 : current.getBurst();
+    }
+
+    /**
+     * Tries to take a token for one hit.
+     * 
+     * @param now
+     *            the current {@link System#nanoTime()}
+     * @param priority
+     *            <code>true</code> for page views
+     * @return <code>true</code> if the hit may be sent, <code>false</code> if
+     *         it should be dropped
+     */
+    boolean tryAcquire(long now, boolean priority) {
+        Limit current = limit;
+        if (current == null) {
+            return true;
+        }
+        while (true) {
+            long previous = arrival.get();
+            long next = current.acquire(previous, now, priority);
+            if (next == REJECTED) {
+                return false;
+            }
+            if (arrival.compareAndSet(previous, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+import elemental.json.JsonType;
+import elemental.json.JsonValue;
+
+/**
+ * Estimates the size of the hit that a <code>send</code> command results in,
+ * and splits commands that would be too large to be accepted by Google
+ * Analytics. The estimate is the URL encoded length of the command's values
+ * with a fixed allowance for each parameter name, since the actual parameter
+ * names depend on the transport.
+ */
+final class HitSize {
+    /**
+     * Allowance for a parameter name and the <code>=</code> and
+     * <code>&amp;</code> separators. Most Measurement Protocol parameter names
+     * are two to four characters.
+     */
+    static final int PARAMETER_OVERHEAD = 6;
+
+    /**
+     * The encoded length of the comma that list values are joined with.
+     */
+    private static final int LIST_SEPARATOR_LENGTH = 3;
+
+    private HitSize() {
+        // Only static helpers
+    }
+
+    /**
+     * Estimates the size of a <code>send</code> command. The size is
+     * accumulated field by field and the estimate is returned as soon as it
+     * exceeds the limit, so that the common case of a small hit only looks at
+     * each value once and an oversized hit isn't scanned to the end.
+     * 
+     * @param action
+     *            the command to estimate, not <code>null</code>
+     * @param limit
+     *            the size above which estimating can stop
+     * @return the estimated size in bytes, or a value above the limit if the
+     *         hit is larger than the limit
+     */
+    static int estimate(Serializable[] action, int limit) {
+        int size = 0;
+        for (int i = 1; i < action.length && size <= limit; i++) {
+            Serializable value = action[i];
+            if (value instanceof JsonObject) {
+                JsonObject fields = (JsonObject) value;
+                for (String key : fields.keys()) {
+                    size += PARAMETER_OVERHEAD + encodedLength(fields.<JsonValue> get(key));
+                    if (size > limit) {
+                        break;
+                    }
+                }
+            } else if (value != null) {
+                size += PARAMETER_OVERHEAD + encodedLength(value);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Splits an oversized <code>send</code> command into several commands by
+     * dividing the value of one list valued field in its fields object. All
+     * other fields are repeated in each command. The first configured field
+     * that the command has with more than one item is split.
+     * 
+     * @param action
+     *            the command to split, not <code>null</code>
+     * @param splitFields
+     *            field names mapped to the separator of their items in string
+     *            values, not <code>null</code>. Array values are split by
+     *            element.
+     * @param limit
+     *            the maximum estimated size of each command
+     * @return the commands to send instead, or <code>null</code> if the
+     *         command cannot be split into hits within the limit
+     */
+    static List<Serializable[]> split(Serializable[] action, Map<String, String> splitFields, int limit) {
+        if (splitFields.isEmpty() || !(action[action.length - 1] instanceof JsonObject)) {
+            return null;
+        }
+        JsonObject fields = (JsonObject) action[action.length - 1];
+
+        for (Entry<String, String> splitField : splitFields.entrySet()) {
+            String name = splitField.getKey();
+            if (!fields.hasKey(name)) {
+                continue;
+            }
+            JsonValue value = fields.get(name);
+            List<JsonValue> items = getItems(value, splitField.getValue());
+            if (items == null || items.size() < 2) {
+                continue;
+            }
+
+            int available = limit - (estimate(action, Integer.MAX_VALUE) - encodedLength(value));
+            int separatorLength = value.getType() == JsonType.ARRAY ? LIST_SEPARATOR_LENGTH
+                    : encodedLength(splitField.getValue());
+            List<List<JsonValue>> chunks = chunk(items, available, separatorLength);
+            if (chunks == null) {
+                return null;
+            }
+
+            List<Serializable[]> parts = new ArrayList<>(chunks.size());
+            for (List<JsonValue> chunk : chunks) {
+                Serializable[] part = action.clone();
+                part[part.length - 1] = replaceField(fields, name, join(value, chunk, splitField.getValue()));
+                parts.add(part);
+            }
+            return parts;
+        }
+        return null;
+    }
+
+    private static List<JsonValue> getItems(JsonValue value, String separator) {
+        List<JsonValue> items = new ArrayList<>();
+        if (value.getType() == JsonType.ARRAY) {
+            JsonArray array = (JsonArray) value;
+            for (int i = 0; i < array.length(); i++) {
+                items.add(array.get(i));
+            }
+        } else if (value.getType() == JsonType.STRING && separator != null && !separator.isEmpty()) {
+            String string = value.asString();
+            int start = 0;
+            int end;
+            while ((end = string.indexOf(separator, start)) >= 0) {
+                items.add(Json.create(string.substring(start, end)));
+                start = end + separator.length();
+            }
+            items.add(Json.create(string.substring(start)));
+        } else {
+            return null;
+        }
+        return items;
+    }
+
+    /**
+     * Packs consecutive items into as few chunks as possible without any
+     * chunk exceeding the available size. The available size already accounts
+     * for the parameter name of the split field.
+     */
+    private static List<List<JsonValue>> chunk(List<JsonValue> items, int available, int separatorLength) {
+        List<List<JsonValue>> chunks = new ArrayList<>();
+        List<JsonValue> chunk = new ArrayList<>();
+        int chunkSize = 0;
+        for (JsonValue item : items) {
+            int itemSize = encodedLength(item);
+            int separatorSize = chunk.isEmpty() ? 0 : separatorLength;
+            if (itemSize > available) {
+                // A single item doesn't fit
+                return null;
+            } else if (chunkSize + separatorSize + itemSize > available) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                chunkSize = 0;
+                separatorSize = 0;
+            }
+            chunk.add(item);
+            chunkSize += separatorSize + itemSize;
+        }
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    private static JsonValue join(JsonValue original, List<JsonValue> chunk, String separator) {
+        if (original.getType() == JsonType.ARRAY) {
+            JsonArray array = Json.createArray();
+            for (int i = 0; i < chunk.size(); i++) {
+                array.set(i, chunk.get(i));
+            }
+            return array;
+        }
+
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < chunk.size(); i++) {
+            if (i > 0) {
+                joined.append(separator);
+            }
+            joined.append(chunk.get(i).asString());
+        }
+        return Json.create(joined.toString());
+    }
+
+    private static JsonObject replaceField(JsonObject fields, String name, JsonValue value) {
+        JsonObject copy = Json.createObject();
+        for (String key : fields.keys()) {
+            copy.put(key, key.equals(name) ? value : fields.<JsonValue> get(key));
+        }
+        return copy;
+    }
+
+    private static int encodedLength(Serializable value) {
+        if (value instanceof String) {
+            return encodedLength((String) value);
+        } else if (value instanceof JsonValue) {
+            return encodedLength((JsonValue) value);
+        } else {
+            return encodedLength(String.valueOf(value));
+        }
+    }
+
+    private static int encodedLength(JsonValue value) {
+        switch (value.getType()) {
+        case STRING:
+            return encodedLength(value.asString());
+        case NUMBER:
+            double number = value.asNumber();
+            return number == (long) number ? Long.toString((long) number).length()
+                    : Double.toString(number).length();
+        case BOOLEAN:
+            return 1;
+        case NULL:
+            return 0;
+        case ARRAY:
+            JsonArray array = (JsonArray) value;
+            int length = Math.max(0, array.length() - 1) * LIST_SEPARATOR_LENGTH;
+            for (int i = 0; i < array.length(); i++) {
+                length += encodedLength((JsonValue) array.get(i));
+            }
+            return length;
+        default:
+            return encodedLength(value.toJson());
+        }
+    }
+
+    /**
+     * Gets the length of a string after UTF-8 and percent encoding.
+     */
+    static int encodedLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_'
+                    || c == '.' || c == '~') {
+                length += 1;
+            } else if (c < 0x80) {
+                length += 3;
+            } else if (c < 0x800) {
+                length += 6;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 12;
+                i++;
+            } else {
+                length += 9;
+            }
+        }
+        return length;
+    }
+}
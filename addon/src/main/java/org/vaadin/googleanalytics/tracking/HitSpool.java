@@ -0,0 +1,567 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Durable append-only log of encoded hits for
+ * {@link MeasurementProtocolTransport}. Hits are written to memory-mapped
+ * segment files and are only removed once they have been accepted by the
+ * endpoint, so hits survive both a slow or unreachable endpoint and a restart
+ * of the JVM.
+ * <p>
+ * Each record has a length, a CRC32 checksum and the time the hit was
+ * created, which is sent as the queue time of the hit. The length is written
+ * last, so a record that was being written when the JVM crashed is detected
+ * and ignored when the spool is opened again. Data written to a mapped file is
+ * kept by the operating system even if the JVM crashes, while
+ * {@link MappedByteBuffer#force()} is only run every
+ * {@link #setSyncEveryHits(int)} hits and for every flush to protect against
+ * operating system crashes without paying for a disk sync on every hit. A
+ * segment is also synced when it is full and the next segment is started.
+ * <p>
+ * A new segment is started when the current one is full. When the maximum
+ * number of segments is reached, the oldest segment is discarded. Hits older
+ * than four hours are discarded when read, since Google Analytics ignores
+ * them.
+ * <p>
+ * A spool directory must only be used by one spool instance at a time.
+ */
+public class HitSpool implements AutoCloseable {
+    /**
+     * The default size of one segment file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The default maximum number of segment files.
+     */
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    private static final String SEGMENT_PREFIX = "hits-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    /**
+     * Record header: length, checksum and creation time.
+     */
+    private static final int HEADER_BYTES = 16;
+
+    private static final long MAX_HIT_AGE_MILLIS = TimeUnit.HOURS.toMillis(4);
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private int syncEveryHits = 100;
+
+    /**
+     * Segments from the oldest to the one currently written to.
+     */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private final FileChannel checkpointChannel;
+    private final MappedByteBuffer checkpoint;
+
+    /**
+     * Position up to which hits have been accepted by the endpoint.
+     */
+    private Segment committedSegment;
+    private int committedOffset;
+
+    /**
+     * Position up to which hits have been read but not necessarily accepted.
+     */
+    private Segment readSegment;
+    private int readOffset;
+
+    /**
+     * Number of records up to the committed and read positions, counted from
+     * when the spool was opened.
+     */
+    private long committedRecords = 0;
+    private long readRecords = 0;
+
+    private int pendingHits = 0;
+    private int unsyncedHits = 0;
+
+    private final LongAdder droppedHits = new LongAdder();
+
+    private static final class Segment {
+        private final long sequence;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int end;
+
+        private Segment(long sequence, Path path, int size) throws IOException {
+            this.sequence = sequence;
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            buffer = channel.map(MapMode.READ_WRITE, 0, size);
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The mapping stays valid until garbage collected
+            }
+        }
+    }
+
+    /**
+     * A batch of hits read from the spool.
+     */
+    static final class Batch {
+        private final List<String> hits;
+        private final List<Long> timestamps;
+        private final int expiredHits;
+        private final Segment segment;
+        private final int offset;
+        private final long records;
+
+        private Batch(List<String> hits, List<Long> timestamps, int expiredHits, Segment segment, int offset,
+                long records) {
+            this.hits = hits;
+            this.timestamps = timestamps;
+            this.expiredHits = expiredHits;
+            this.segment = segment;
+            this.offset = offset;
+            this.records = records;
+        }
+
+        /**
+         * Gets the encoded hits of this batch.
+         * 
+         * @return a list of hits, not <code>null</code>
+         */
+        List<String> getHits() {
+            return hits;
+        }
+
+        /**
+         * Gets the creation time of a hit in this batch.
+         * 
+         * @param index
+         *            the index of the hit
+         * @return the creation time in milliseconds since the epoch
+         */
+        long getTimestamp(int index) {
+            return timestamps.get(index).longValue();
+        }
+    }
+
+    /**
+     * Opens a spool with default segment settings, replaying any hits that
+     * were not sent before the spool was last closed.
+     * 
+     * @param directory
+     *            the directory for segment files, not <code>null</code>
+     * @throws IOException
+     *             if the directory cannot be used
+     */
+    public HitSpool(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Opens a spool, replaying any hits that were not sent before the spool
+     * was last closed.
+     * 
+     * @param directory
+     *            the directory for segment files, not <code>null</code>
+     * @param segmentSize
+     *            the size of one segment file in bytes
+     * @param maxSegments
+     *            the maximum number of segment files, at least 2
+     * @throws IOException
+     *             if the directory cannot be used
+     */
+    public HitSpool(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Segment size must be at least 1024 bytes");
+        }
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("There must be at least two segments");
+        }
+        this.directory = Objects.requireNonNull(directory);
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        Files.createDirectories(directory);
+        checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        checkpoint = checkpointChannel.map(MapMode.READ_WRITE, 0, 12);
+
+        recover();
+    }
+
+    private void recover() throws IOException {
+        long checkpointSequence = checkpoint.getLong(0);
+        int checkpointOffset = checkpoint.getInt(8);
+
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    sequences.add(Long.valueOf(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment file
+                }
+            }
+        }
+        Collections.sort(sequences);
+
+        for (Long sequence : sequences) {
+            Path path = getSegmentPath(sequence.longValue());
+            if (sequence.longValue() < checkpointSequence || Files.size(path) != segmentSize) {
+                // Already sent, or written with another segment size
+                Files.deleteIfExists(path);
+                continue;
+            }
+            Segment segment = new Segment(sequence.longValue(), path, segmentSize);
+            segment.end = scan(segment);
+            segments.add(segment);
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(new Segment(checkpointSequence, getSegmentPath(checkpointSequence), segmentSize));
+        }
+
+        committedSegment = segments.getFirst();
+        committedOffset = committedSegment.sequence == checkpointSequence
+                ? Math.min(checkpointOffset, committedSegment.end)
+                : 0;
+        readSegment = committedSegment;
+        readOffset = committedOffset;
+
+        pendingHits = 0;
+        for (Segment segment : segments) {
+            int offset = segment == committedSegment ? committedOffset : 0;
+            while (offset < segment.end) {
+                offset += HEADER_BYTES + segment.buffer.getInt(offset);
+                pendingHits++;
+            }
+        }
+    }
+
+    /**
+     * Finds the end of the valid records in a segment.
+     */
+    private int scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        CRC32 crc = new CRC32();
+        int offset = 0;
+        while (offset + HEADER_BYTES <= segmentSize) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > segmentSize) {
+                break;
+            }
+            crc.reset();
+            for (int i = 0; i < length; i++) {
+                crc.update(buffer.get(offset + HEADER_BYTES + i));
+            }
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                // Torn write from a crash
+                break;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private Path getSegmentPath(long sequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, Long.valueOf(sequence), SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Sets how many hits may be appended before the written data is synced
+     * to disk. Data is also synced every time the transport flushes.
+     * 
+     * @param syncEveryHits
+     *            the number of hits between syncs, must be positive
+     * @return this spool, for chaining
+     */
+    public synchronized HitSpool setSyncEveryHits(int syncEveryHits) {
+        if (syncEveryHits < 1) {
+            throw new IllegalArgumentException("Sync interval must be positive");
+        }
+        this.syncEveryHits = syncEveryHits;
+        return this;
+    }
+
+    /**
+     * Gets the number of hits that are spooled but not yet accepted by the
+     * endpoint.
+     * 
+     * @return the number of pending hits
+     */
+    public synchronized int getPendingHitCount() {
+        return pendingHits;
+    }
+
+    /**
+     * Gets the number of hits that have been discarded because the spool was
+     * full or because they were too old to be sent.
+     * 
+     * @return the number of discarded hits
+     */
+    public long getDroppedHitCount() {
+        return droppedHits.sum();
+    }
+
+    /**
+     * Appends an encoded hit to the spool.
+     * 
+     * @param hit
+     *            the URL encoded hit payload, not <code>null</code>
+     * @param timestamp
+     *            the creation time of the hit in milliseconds since the epoch
+     * @return <code>true</code> if the hit was appended, <code>false</code> if
+     *         it doesn't fit in a segment
+     * @throws IOException
+     *             if a new segment cannot be created
+     */
+    boolean append(String hit, long timestamp) throws IOException {
+        byte[] bytes = hit.getBytes(StandardCharsets.US_ASCII);
+        if (HEADER_BYTES + bytes.length > segmentSize) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        MappedByteBuffer toSync = null;
+        synchronized (this) {
+            Segment segment = segments.getLast();
+            if (segment.end + HEADER_BYTES + bytes.length > segmentSize) {
+                segment = rotate();
+            }
+
+            MappedByteBuffer buffer = segment.buffer;
+            int offset = segment.end;
+            buffer.putInt(offset + 4, (int) crc.getValue());
+            buffer.putLong(offset + 8, timestamp);
+            buffer.position(offset + HEADER_BYTES);
+            buffer.put(bytes);
+            // Written last so that a partially written record has no length
+            buffer.putInt(offset, bytes.length);
+            segment.end = offset + HEADER_BYTES + bytes.length;
+            pendingHits++;
+
+            if (++unsyncedHits >= syncEveryHits) {
+                unsyncedHits = 0;
+                toSync = buffer;
+            }
+        }
+
+        if (toSync != null) {
+            // Other threads can keep appending while syncing
+            toSync.force();
+        }
+        return true;
+    }
+
+    private Segment rotate() throws IOException {
+        // The full segment is never synced by later appends or flushes
+        Segment full = segments.getLast();
+        full.buffer.force();
+        unsyncedHits = 0;
+
+        if (segments.size() >= maxSegments) {
+            discardOldestSegment();
+        }
+        long sequence = full.sequence + 1;
+        Segment segment = new Segment(sequence, getSegmentPath(sequence), segmentSize);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void discardOldestSegment() throws IOException {
+        Segment oldest = segments.removeFirst();
+        Segment next = segments.getFirst();
+
+        int offset = oldest == committedSegment ? committedOffset : 0;
+        int discarded = 0;
+        while (offset < oldest.end) {
+            offset += HEADER_BYTES + oldest.buffer.getInt(offset);
+            discarded++;
+        }
+        droppedHits.add(discarded);
+        pendingHits -= discarded;
+
+        if (committedSegment == oldest) {
+            committedSegment = next;
+            committedOffset = 0;
+            committedRecords += discarded;
+            writeCheckpoint();
+        }
+        if (readSegment == oldest) {
+            readSegment = next;
+            readOffset = 0;
+            readRecords = committedRecords;
+        }
+        delete(oldest);
+    }
+
+    private static void delete(Segment segment) {
+        segment.close();
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            // Deleted when the spool is opened the next time
+        }
+    }
+
+    /**
+     * Reads the next hits that have not yet been read. Hits that are too old
+     * to be sent are skipped.
+     * 
+     * @param maxHits
+     *            the maximum number of hits to read
+     * @param maxBytes
+     *            the maximum total size of the hits to read
+     * @return a batch of hits, or <code>null</code> if there are no unread hits
+     */
+    synchronized Batch read(int maxHits, int maxBytes) {
+        long oldest = System.currentTimeMillis() - MAX_HIT_AGE_MILLIS;
+        List<String> hits = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        int expired = 0;
+        int bytes = 0;
+
+        while (hits.size() < maxHits) {
+            if (readOffset >= readSegment.end) {
+                if (readSegment == segments.getLast()) {
+                    break;
+                }
+                readSegment = nextSegment(readSegment);
+                readOffset = 0;
+                continue;
+            }
+
+            MappedByteBuffer buffer = readSegment.buffer;
+            int length = buffer.getInt(readOffset);
+            if (!hits.isEmpty() && bytes + length > maxBytes) {
+                break;
+            }
+
+            long timestamp = buffer.getLong(readOffset + 8);
+            if (timestamp >= oldest) {
+                byte[] hit = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    hit[i] = buffer.get(readOffset + HEADER_BYTES + i);
+                }
+                hits.add(new String(hit, StandardCharsets.US_ASCII));
+                timestamps.add(Long.valueOf(timestamp));
+                bytes += length;
+            } else {
+                expired++;
+            }
+            readOffset += HEADER_BYTES + length;
+            readRecords++;
+        }
+
+        if (hits.isEmpty() && expired == 0) {
+            return null;
+        }
+        return new Batch(hits, timestamps, expired, readSegment, readOffset, readRecords);
+    }
+
+    private Segment nextSegment(Segment segment) {
+        boolean found = false;
+        for (Segment candidate : segments) {
+            if (found) {
+                return candidate;
+            }
+            found = candidate == segment;
+        }
+        throw new IllegalStateException("No segment after " + segment.sequence);
+    }
+
+    /**
+     * Marks all hits up to the end of the given batch as sent. Batches must be
+     * committed in the order they were read.
+     * 
+     * @param batch
+     *            the last sent batch, not <code>null</code>
+     */
+    synchronized void commit(Batch batch) {
+        if (batch.records <= committedRecords || !segments.contains(batch.segment)) {
+            // Already committed, or discarded meanwhile because the spool was full
+            return;
+        }
+        pendingHits -= batch.records - committedRecords;
+        droppedHits.add(batch.expiredHits);
+        committedSegment = batch.segment;
+        committedOffset = batch.offset;
+        committedRecords = batch.records;
+        writeCheckpoint();
+
+        while (segments.getFirst() != committedSegment) {
+            delete(segments.removeFirst());
+        }
+    }
+
+    /**
+     * Makes hits that have been read but not committed readable again, e.g.
+     * after a failed request.
+     */
+    synchronized void rewind() {
+        readSegment = committedSegment;
+        readOffset = committedOffset;
+        readRecords = committedRecords;
+    }
+
+    private void writeCheckpoint() {
+        checkpoint.putLong(0, committedSegment.sequence);
+        checkpoint.putInt(8, committedOffset);
+    }
+
+    /**
+     * Writes all appended hits and the checkpoint to disk.
+     */
+    void sync() {
+        MappedByteBuffer segment;
+        synchronized (this) {
+            segment = segments.getLast().buffer;
+            unsyncedHits = 0;
+        }
+        segment.force();
+        checkpoint.force();
+    }
+
+    /**
+     * Syncs all data to disk and closes the segment files.
+     */
+    @Override
+    public synchronized void close() {
+        sync();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        try {
+            checkpointChannel.close();
+        } catch (IOException e) {
+            // The mapping stays valid until garbage collected
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.List;
+
+import com.vaadin.flow.component.UI;
+
+/**
+ * Delivers commands queued through {@link GoogleAnalyticsTracker} to Google
+ * Analytics. The default transport, {@link ClientSideTransport}, forwards all
+ * commands to the <code>ga</code> function in the browser.
+ * {@link MeasurementProtocolTransport} instead sends hits directly from the
+ * server.
+ * <p>
+ * A transport instance is typically shared by all trackers that use the same
+ * configuration, so implementations must be thread safe.
+ * 
+ * @see TrackerConfiguration#setTransport(HitTransport)
+ */
+public interface HitTransport {
+    /**
+     * Prepares the transport for sending commands for the given UI. This is
+     * run once for each tracker, with the UI locked, before any command is
+     * sent.
+     * 
+     * @param ui
+     *            the UI to prepare for, not <code>null</code>
+     * @param config
+     *            the configuration of the tracker, not <code>null</code>
+     */
+    void init(UI ui, TrackerConfiguration config);
+
+    /**
+     * Sends commands for the given UI. Each command corresponds to the
+     * arguments of a client-side <code>ga</code> call, with an optional
+     * fields object as the last element. This is run with the UI locked while
+     * the next response is being prepared. The transport should not retain the
+     * provided list.
+     * 
+     * @param ui
+     *            the UI that queued the commands, not <code>null</code>
+     * @param commands
+     *            the commands to send, not <code>null</code>
+     */
+    void send(UI ui, List<Serializable[]> commands);
+}
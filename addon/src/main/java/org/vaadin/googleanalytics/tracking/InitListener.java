@@ -11,7 +11,11 @@ import com.vaadin.flow.server.VaadinServiceInitListener;
 
 /**
  * Automatically registers a navigation listener that sends page views to Google
- * Analytics.
+ * Analytics and optionally times navigations, and a bootstrap listener that
+ * adds the tracker to the initial page when configured to do so. A tracker is
+ * only created for a UI once it navigates to a route whose root layout enables
+ * tracking, so the listeners return immediately for other UIs. Also registers
+ * the {@link TrackerMetrics} MBean for the lifetime of the service.
  */
 public class InitListener implements VaadinServiceInitListener {
     @Override
@@ -19,18 +23,92 @@ public class InitListener implements VaadinServiceInitListener {
         event.getSource().addUIInitListener(uiInit -> {
             UI ui = uiInit.getUI();
 
-            ui.addAfterNavigationListener(navigationEvent -> {
-                GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(ui);
+            // The initial response is generated before the bootstrap page
+            GoogleAnalyticsTracker.markBootstrapRequest(ui);
 
-                if (shouldTrack(tracker, navigationEvent)) {
-                    tracker.sendPageView(navigationEvent.getLocation().getPathWithQueryParameters());
+            // A new navigation may leave a postponed one behind
+            ui.addBeforeLeaveListener(leaveEvent -> {
+                GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.find(ui);
+                if (tracker != null) {
+                    tracker.resetNavigationTiming();
                 }
             });
+            ui.addBeforeEnterListener(enterEvent -> beforeEnter(ui, enterEvent.getNavigationTarget()));
+            ui.addAfterNavigationListener(navigationEvent -> afterNavigation(ui, navigationEvent));
         });
+
+        event.addBootstrapListener(response -> {
+            UI ui = response.getUI();
+            GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.find(ui);
+            if (tracker == null && canInitialize(ui.getInternals().getActiveRouterTargetsChain())) {
+                tracker = GoogleAnalyticsTracker.get(ui);
+            }
+            if (tracker != null) {
+                tracker.injectIntoBootstrapPage(response.getDocument());
+            }
+        });
+
+        TrackerMetrics.get().registerMBean();
+        FlushScheduler.register();
+        event.getSource().addServiceDestroyListener(destroyEvent -> {
+            TrackerMetrics.get().unregisterMBean();
+            FlushScheduler.release();
+        });
+    }
+
+    /**
+     * Starts timing a navigation if the UI has a tracker or if the navigation
+     * target is tracked, so that the tracker for the first tracked navigation
+     * of a UI is created already at this point.
+     * 
+     * @param ui
+     *            the UI in which the navigation happens, not <code>null</code>
+     * @param navigationTarget
+     *            the navigation target class, not <code>null</code>
+     */
+    static void beforeEnter(UI ui, Class<?> navigationTarget) {
+        GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.find(ui);
+        if (tracker == null) {
+            if (!RouteMetadata.get(navigationTarget).isTrackedRoute()) {
+                return;
+            }
+            tracker = GoogleAnalyticsTracker.get(ui);
+        }
+        tracker.startNavigationTiming();
+    }
+
+    /**
+     * Sends a page view for a completed navigation unless it should be
+     * ignored, and records the duration of the navigation if navigation
+     * timing is enabled. No tracker is created if the navigation isn't
+     * tracked.
+     * 
+     * @param ui
+     *            the UI in which the navigation happened, not <code>null</code>
+     * @param navigationEvent
+     *            the navigation event, not <code>null</code>
+     */
+    static void afterNavigation(UI ui, AfterNavigationEvent navigationEvent) {
+        GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.find(ui);
+        List<HasElement> routerChain = navigationEvent.getActiveChain();
+        Class<?> navigationTarget = routerChain.isEmpty() ? null : routerChain.get(0).getClass();
+
+        if (shouldTrack(tracker, routerChain)) {
+            if (tracker == null) {
+                tracker = GoogleAnalyticsTracker.get(ui);
+            }
+            tracker.sendNavigationPageView(navigationEvent.getLocation(), navigationTarget);
+        } else {
+            TrackerMetrics.get().navigationIgnored();
+        }
+
+        if (tracker != null) {
+            tracker.completeNavigationTiming(navigationTarget);
+        }
     }
 
-    private static boolean shouldTrack(GoogleAnalyticsTracker tracker, AfterNavigationEvent navigationEvent) {
-        if (hasIgnore(navigationEvent)) {
+    private static boolean shouldTrack(GoogleAnalyticsTracker tracker, List<HasElement> routerChain) {
+        if (RouteMetadata.isIgnored(routerChain)) {
             return false;
         }
 
@@ -38,30 +116,14 @@ public class InitListener implements VaadinServiceInitListener {
          * Track if tracker is already initialized or if it can be initialized
          * based on the current navigation event.
          */
-        return tracker.isInitialized() || canInitialize(navigationEvent);
+        return tracker != null && tracker.isInitialized() || canInitialize(routerChain);
     }
 
-    private static boolean canInitialize(AfterNavigationEvent navigationEvent) {
-        List<HasElement> routerChain = navigationEvent.getActiveChain();
+    private static boolean canInitialize(List<HasElement> routerChain) {
         if (routerChain.isEmpty()) {
             return false;
         }
 
-        Class<? extends HasElement> rootLayoutClass = getRootLayout(routerChain);
-
-        return rootLayoutClass.getAnnotation(EnableGoogleAnalytics.class) != null
-                || TrackerConfigurator.class.isAssignableFrom(rootLayoutClass);
-    }
-
-    private static Class<? extends HasElement> getRootLayout(List<HasElement> routerChain) {
-        return routerChain.get(routerChain.size() - 1).getClass();
-    }
-
-    private static boolean hasIgnore(AfterNavigationEvent navigationEvent) {
-        return navigationEvent.getActiveChain().stream().anyMatch(InitListener::hasIgnoreAnnotation);
-    }
-
-    private static boolean hasIgnoreAnnotation(HasElement target) {
-        return target.getClass().getAnnotation(IgnorePageView.class) != null;
+        return RouteMetadata.getRootLayout(routerChain).enablesTracking();
     }
 }
@@ -0,0 +1,82 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with power of two buckets. Every bucket is a striped
+ * counter so that concurrent recording doesn't contend on a shared value.
+ * Percentiles are reported as the upper bound of the bucket that contains
+ * them, which is accurate to within a factor of two.
+ */
+final class LatencyHistogram {
+    private final LongAdder[] buckets = new LongAdder[64];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration.
+     * 
+     * @param nanos
+     *            the duration in nanoseconds
+     */
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        // Bucket i contains values from 2^i to 2^(i+1)-1, and 0 is in bucket 0
+        buckets[value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        totalNanos.add(value);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) totalNanos.sum() / n;
+    }
+
+    /**
+     * Gets an upper bound for the given percentile.
+     * 
+     * @param percentile
+     *            the percentile to get, between 0 and 100
+     * @return the upper bound of the bucket containing the percentile in
+     *         nanoseconds, or 0 if nothing has been recorded
+     */
+    long getPercentileNanos(double percentile) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= threshold && counts[i] > 0) {
+                return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        totalNanos.reset();
+    }
+}
@@ -0,0 +1,854 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.vaadin.flow.component.ComponentUtil;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinService;
+import com.vaadin.flow.server.VaadinSession;
+
+import elemental.json.JsonObject;
+import elemental.json.JsonType;
+import elemental.json.JsonValue;
+
+/**
+ * Sends hits to Google Analytics from the server using the <a href=
+ * "https://developers.google.com/analytics/devguides/collection/protocol/v1/">Measurement
+ * Protocol</a>. Hits are not affected by ad blockers and do not cost any
+ * client-side processing.
+ * <p>
+ * Hits from all trackers using the same transport instance are coalesced into
+ * <code>/batch</code> requests. A batch is sent when enough hits have been
+ * queued to fill it, or when the flush interval has elapsed. Batches are posted
+ * from a bounded pool of sender threads. Connections are reused through the
+ * JDK's keep-alive cache, which by default keeps up to 5 idle connections per
+ * destination (the <code>http.maxConnections</code> system property).
+ * <p>
+ * The <code>create</code>, <code>set</code> and <code>send</code> commands are
+ * translated to Measurement Protocol parameters. Other commands, such as
+ * plugin commands, have no server-side equivalent and are ignored.
+ * <p>
+ * Hits are kept in memory until they are sent unless a {@link HitSpool} is
+ * set, in which case hits are written to disk and only removed once the
+ * endpoint has accepted them.
+ * <p>
+ * One instance should be shared by all trackers and closed when the
+ * application is shut down.
+ */
+public class MeasurementProtocolTransport implements HitTransport, AutoCloseable {
+    /**
+     * The default Measurement Protocol batch endpoint.
+     */
+    public static final String DEFAULT_ENDPOINT = "https://www.google-analytics.com/batch";
+
+    /**
+     * The maximum number of hits that Google Analytics accepts in one batch.
+     */
+    public static final int MAX_HITS_PER_BATCH = 20;
+
+    /**
+     * The maximum size of a batch payload in bytes.
+     */
+    public static final int MAX_BATCH_BYTES = 16 * 1024;
+
+    /**
+     * The maximum size of a single hit payload in bytes.
+     */
+    public static final int MAX_HIT_BYTES = 8 * 1024;
+
+    /**
+     * Space reserved for the queue time parameter of each spooled hit.
+     */
+    private static final int QUEUE_TIME_BYTES = "&qt=".length() + 8;
+
+    /**
+     * Status used for a batch request that got no response.
+     */
+    private static final int NO_RESPONSE = -1;
+
+    private static final String CLIENT_ID_ATTRIBUTE = MeasurementProtocolTransport.class.getName() + ".clientId";
+
+    private static final Map<String, String> PARAMETERS = new HashMap<>();
+    static {
+        PARAMETERS.put("anonymizeIp", "aip");
+        PARAMETERS.put("appName", "an");
+        PARAMETERS.put("appVersion", "av");
+        PARAMETERS.put("campaignContent", "cc");
+        PARAMETERS.put("campaignId", "ci");
+        PARAMETERS.put("campaignKeyword", "ck");
+        PARAMETERS.put("campaignMedium", "cm");
+        PARAMETERS.put("campaignName", "cn");
+        PARAMETERS.put("campaignSource", "cs");
+        PARAMETERS.put("clientId", "cid");
+        PARAMETERS.put("dataSource", "ds");
+        PARAMETERS.put("encoding", "de");
+        PARAMETERS.put("eventAction", "ea");
+        PARAMETERS.put("eventCategory", "ec");
+        PARAMETERS.put("eventLabel", "el");
+        PARAMETERS.put("eventValue", "ev");
+        PARAMETERS.put("exDescription", "exd");
+        PARAMETERS.put("exFatal", "exf");
+        PARAMETERS.put("hostname", "dh");
+        PARAMETERS.put("language", "ul");
+        PARAMETERS.put("location", "dl");
+        PARAMETERS.put("nonInteraction", "ni");
+        PARAMETERS.put("page", "dp");
+        PARAMETERS.put("referrer", "dr");
+        PARAMETERS.put("screenName", "cd");
+        PARAMETERS.put("screenResolution", "sr");
+        PARAMETERS.put("sessionControl", "sc");
+        PARAMETERS.put("socialAction", "sa");
+        PARAMETERS.put("socialNetwork", "sn");
+        PARAMETERS.put("socialTarget", "st");
+        PARAMETERS.put("timingCategory", "utc");
+        PARAMETERS.put("timingLabel", "utl");
+        PARAMETERS.put("timingValue", "utt");
+        PARAMETERS.put("timingVar", "utv");
+        PARAMETERS.put("title", "dt");
+        PARAMETERS.put("userId", "uid");
+        PARAMETERS.put("viewportSize", "vp");
+    }
+
+    private static final String[] PAGEVIEW_FIELDS = { "dp" };
+    private static final String[] EVENT_FIELDS = { "ec", "ea", "el", "ev" };
+    private static final String[] TIMING_FIELDS = { "utc", "utv", "utt", "utl" };
+    private static final String[] SOCIAL_FIELDS = { "sn", "sa", "st" };
+    private static final String[] NO_FIELDS = {};
+
+    private final URL endpoint;
+    private final long flushIntervalMillis;
+
+    private int batchSize = MAX_HITS_PER_BATCH;
+    private int maxQueuedHits = 10000;
+    private int timeoutMillis = 5000;
+
+    private final ConcurrentLinkedQueue<String> hits = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedHits = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private volatile HitSpool spool;
+    private final AtomicInteger unflushedSpoolHits = new AtomicInteger();
+    private volatile long spoolRetryTime = 0;
+
+    private final ScheduledExecutorService flusher;
+    private final ThreadPoolExecutor senders;
+
+    private final LongAdder sentHits = new LongAdder();
+    private final LongAdder droppedHits = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+
+    /**
+     * Creates a transport that sends hits to the default Google Analytics
+     * endpoint using two sender threads and a one second flush interval.
+     */
+    public MeasurementProtocolTransport() {
+        this(DEFAULT_ENDPOINT, 2, 1000);
+    }
+
+    /**
+     * Creates a transport that sends hits to the given batch endpoint.
+     * 
+     * @param endpoint
+     *            the URL of the batch endpoint, not <code>null</code>
+     * @param senderThreads
+     *            the maximum number of concurrent batch requests
+     * @param flushIntervalMillis
+     *            the maximum time in milliseconds that a hit is kept in the
+     *            queue before it is sent
+     */
+    public MeasurementProtocolTransport(String endpoint, int senderThreads, long flushIntervalMillis) {
+        if (senderThreads < 1) {
+            throw new IllegalArgumentException("There must be at least one sender thread");
+        }
+        if (flushIntervalMillis < 1) {
+            throw new IllegalArgumentException("Flush interval must be positive");
+        }
+        try {
+            this.endpoint = new URL(endpoint);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid endpoint URL: " + endpoint, e);
+        }
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(createThreadFactory("ga-mp-flusher"));
+        flusher.scheduleWithFixedDelay(() -> flush(false), flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+
+        senders = new ThreadPoolExecutor(senderThreads, senderThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(senderThreads * 4), createThreadFactory("ga-mp-sender"));
+        senders.allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory createThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Sets the number of queued hits that triggers sending a batch before the
+     * flush interval has elapsed.
+     * 
+     * @param batchSize
+     *            the batch size, between 1 and {@value #MAX_HITS_PER_BATCH}
+     * @return this transport, for chaining
+     */
+    public MeasurementProtocolTransport setBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_HITS_PER_BATCH) {
+            throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_HITS_PER_BATCH);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of hits to keep in memory while waiting to be
+     * sent. Additional hits are dropped.
+     * 
+     * @param maxQueuedHits
+     *            the maximum number of queued hits
+     * @return this transport, for chaining
+     */
+    public MeasurementProtocolTransport setMaxQueuedHits(int maxQueuedHits) {
+        if (maxQueuedHits < 1) {
+            throw new IllegalArgumentException("Max queued hits must be positive");
+        }
+        this.maxQueuedHits = maxQueuedHits;
+        return this;
+    }
+
+    /**
+     * Sets a spool that keeps hits on disk until they have been accepted by the
+     * endpoint. Hits that are in the spool from a previous run are sent right
+     * away. When a batch request fails, the hits stay in the spool and are
+     * retried after the flush interval instead of being dropped. Hits from
+     * parallel batch requests after a failed request may be sent twice.
+     * Batches that the endpoint rejects with a client error, other than a
+     * request timeout or too many requests, are dropped instead since they
+     * would be rejected again.
+     * <p>
+     * The spool is not closed by this transport, it should be closed after
+     * the transport has been closed.
+     * 
+     * @param spool
+     *            the spool to use, or <code>null</code> to keep hits in memory
+     * @return this transport, for chaining
+     */
+    public MeasurementProtocolTransport setSpool(HitSpool spool) {
+        this.spool = spool;
+        if (spool != null && spool.getPendingHitCount() > 0) {
+            scheduleFlush();
+        }
+        return this;
+    }
+
+    /**
+     * Gets the spool used by this transport.
+     * 
+     * @return the spool, or <code>null</code> if hits are kept in memory
+     */
+    public HitSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Sets the connect and read timeout to use for batch requests.
+     * 
+     * @param timeoutMillis
+     *            the timeout in milliseconds
+     * @return this transport, for chaining
+     */
+    public MeasurementProtocolTransport setTimeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Gets the flush interval of this transport.
+     * 
+     * @return the flush interval in milliseconds
+     */
+    public long getFlushInterval() {
+        return flushIntervalMillis;
+    }
+
+    /**
+     * Gets the number of hits that have been accepted by the endpoint.
+     * 
+     * @return the number of sent hits
+     */
+    public long getSentHitCount() {
+        return sentHits.sum();
+    }
+
+    /**
+     * Gets the number of hits that have been dropped because a queue was full,
+     * the hit was too large or the batch request failed.
+     * 
+     * @return the number of dropped hits
+     */
+    public long getDroppedHitCount() {
+        return droppedHits.sum();
+    }
+
+    /**
+     * Gets the number of batch requests that have failed.
+     * 
+     * @return the number of failed batches
+     */
+    public long getFailedBatchCount() {
+        return failedBatches.sum();
+    }
+
+    /**
+     * Gets the number of hits currently waiting to be sent, including hits in
+     * the spool.
+     * 
+     * @return the number of queued hits
+     */
+    public int getQueuedHitCount() {
+        HitSpool currentSpool = spool;
+        return queuedHits.get() + (currentSpool == null ? 0 : currentSpool.getPendingHitCount());
+    }
+
+    @Override
+    public void init(UI ui, TrackerConfiguration config) {
+        ClientState state = new ClientState(getClientId(ui.getSession()));
+
+        VaadinRequest request = VaadinService.getCurrentRequest();
+        if (request != null) {
+            // Attribute hits to the browser rather than to the server
+            String userAgent = request.getHeader("User-Agent");
+            if (userAgent != null) {
+                state.parameters.put("ua", userAgent);
+            }
+            String remoteAddr = request.getRemoteAddr();
+            if (remoteAddr != null) {
+                state.parameters.put("uip", remoteAddr);
+            }
+        }
+
+        ComponentUtil.setData(ui, ClientState.class, state);
+    }
+
+    private static String getClientId(VaadinSession session) {
+        String clientId = (String) session.getAttribute(CLIENT_ID_ATTRIBUTE);
+        if (clientId == null) {
+            clientId = UUID.randomUUID().toString();
+            session.setAttribute(CLIENT_ID_ATTRIBUTE, clientId);
+        }
+        return clientId;
+    }
+
+    @Override
+    public void send(UI ui, List<Serializable[]> commands) {
+        ClientState state = ComponentUtil.getData(ui, ClientState.class);
+        if (state == null) {
+            throw new IllegalStateException("The transport has not been initialized for the UI");
+        }
+
+        for (int i = 0; i < commands.size(); i++) {
+            Serializable[] command = commands.get(i);
+            switch (String.valueOf(command[0])) {
+            case "create":
+                // ["create", trackingId, cookieDomain, fieldsObject]
+                state.trackingId = String.valueOf(command[1]);
+                state.applyFields(command, 2);
+                break;
+            case "set":
+                // ["set", name, value] or ["set", fieldsObject]
+                if (command.length == 3 && command[1] instanceof String) {
+                    state.applyField((String) command[1], command[2]);
+                } else {
+                    state.applyFields(command, 1);
+                }
+                break;
+            case "send":
+                if (state.sendHits) {
+                    enqueue(state.createHit(command));
+                }
+                break;
+            default:
+                // No server-side equivalent
+            }
+        }
+    }
+
+    /**
+     * Adds an encoded hit to the queue of hits to send.
+     * 
+     * @param hit
+     *            the URL encoded hit payload, not <code>null</code>
+     */
+    void enqueue(String hit) {
+        if (hit.length() > MAX_HIT_BYTES) {
+            droppedHits.increment();
+            return;
+        }
+
+        HitSpool currentSpool = spool;
+        if (currentSpool != null) {
+            spool(currentSpool, hit);
+            return;
+        }
+
+        int queued = queuedHits.incrementAndGet();
+        if (queued > maxQueuedHits) {
+            queuedHits.decrementAndGet();
+            droppedHits.increment();
+            return;
+        }
+        hits.add(hit);
+
+        if (queued >= batchSize) {
+            scheduleFlush();
+        }
+    }
+
+    private void spool(HitSpool currentSpool, String hit) {
+        try {
+            if (!currentSpool.append(hit, System.currentTimeMillis())) {
+                droppedHits.increment();
+                return;
+            }
+        } catch (IOException e) {
+            droppedHits.increment();
+            return;
+        }
+
+        // Don't retry a failing endpoint for every new hit
+        if (unflushedSpoolHits.incrementAndGet() >= batchSize && System.currentTimeMillis() >= spoolRetryTime) {
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.execute(() -> {
+                    flushScheduled.set(false);
+                    flush(false);
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed, remaining hits were flushed while closing
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Splits queued hits into batches and hands them over to the sender
+     * threads. This is only run by the flusher thread, or after it has been
+     * stopped, so there is always only one thread polling the queue and
+     * submitting batches. Spooled hits are sent after the hits kept in memory.
+     * 
+     * @param closing
+     *            <code>true</code> if the transport is being closed, so that
+     *            there will be no later flush
+     */
+    private void flush(boolean closing) {
+        flushQueue(closing);
+        HitSpool currentSpool = spool;
+        if (currentSpool != null) {
+            flushSpool(currentSpool);
+        }
+    }
+
+    /**
+     * Sends queued hits in batches. While every sender thread is busy and the
+     * queue of the senders is full, the remaining hits stay queued, counting
+     * against the max queued hits, until a sender has finished its batch.
+     * When closing, such batches are sent by the calling thread instead.
+     */
+    private void flushQueue(boolean closing) {
+        StringBuilder body = new StringBuilder(MAX_BATCH_BYTES);
+        while (true) {
+            // This is the only thread that submits, so the capacity can't be taken
+            boolean saturated = senders.getQueue().remainingCapacity() == 0;
+            if (saturated && !closing) {
+                return;
+            }
+
+            body.setLength(0);
+            int count = 0;
+
+            String hit;
+            while (count < batchSize && (hit = hits.peek()) != null) {
+                // Encoded hits are plain ASCII, so the length is the byte size
+                if (count > 0 && body.length() + hit.length() + 1 > MAX_BATCH_BYTES) {
+                    break;
+                }
+                hits.poll();
+                body.append(hit).append('\n');
+                count++;
+            }
+
+            if (count == 0) {
+                return;
+            }
+            queuedHits.addAndGet(-count);
+
+            byte[] payload = body.toString().getBytes(StandardCharsets.US_ASCII);
+            int batchCount = count;
+            if (saturated) {
+                sendBatch(payload, batchCount);
+                continue;
+            }
+            try {
+                senders.execute(() -> sendBatch(payload, batchCount));
+            } catch (RejectedExecutionException e) {
+                droppedHits.add(batchCount);
+            }
+        }
+    }
+
+    private void sendBatch(byte[] payload, int count) {
+        if (isAccepted(post(payload))) {
+            sentHits.add(count);
+        } else {
+            droppedHits.add(count);
+        }
+
+        // Hits may have been left queued while the senders were saturated
+        if (queuedHits.get() >= batchSize) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Sends the hits in the spool with up to one batch per sender thread at a
+     * time. Batches are committed in order once they have been accepted, and
+     * reading starts over from the first failed batch at the next flush.
+     */
+    private void flushSpool(HitSpool currentSpool) {
+        unflushedSpoolHits.set(0);
+        int maxBytes = MAX_BATCH_BYTES - batchSize * QUEUE_TIME_BYTES;
+
+        boolean failed = false;
+        while (!failed) {
+            long now = System.currentTimeMillis();
+            List<HitSpool.Batch> batches = new ArrayList<>();
+            List<Future<Integer>> results = new ArrayList<>();
+            while (batches.size() < senders.getMaximumPoolSize()) {
+                HitSpool.Batch batch = currentSpool.read(batchSize, maxBytes);
+                if (batch == null) {
+                    break;
+                }
+                batches.add(batch);
+                if (batch.getHits().isEmpty()) {
+                    // Only expired hits
+                    results.add(CompletableFuture.completedFuture(Integer.valueOf(HttpURLConnection.HTTP_OK)));
+                    continue;
+                }
+
+                byte[] payload = createPayload(batch, now);
+                try {
+                    results.add(senders.submit(() -> Integer.valueOf(post(payload))));
+                } catch (RejectedExecutionException e) {
+                    results.add(CompletableFuture.completedFuture(Integer.valueOf(NO_RESPONSE)));
+                }
+            }
+            if (batches.isEmpty()) {
+                break;
+            }
+
+            for (int i = 0; i < batches.size(); i++) {
+                int status;
+                try {
+                    status = results.get(i).get().intValue();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    status = NO_RESPONSE;
+                } catch (ExecutionException e) {
+                    status = NO_RESPONSE;
+                }
+
+                if (failed) {
+                    continue;
+                }
+                HitSpool.Batch batch = batches.get(i);
+                if (isAccepted(status)) {
+                    currentSpool.commit(batch);
+                    sentHits.add(batch.getHits().size());
+                } else if (isRejected(status)) {
+                    // Retrying would only fail again and block later hits
+                    currentSpool.commit(batch);
+                    droppedHits.add(batch.getHits().size());
+                } else {
+                    failed = true;
+                }
+            }
+        }
+
+        if (failed) {
+            currentSpool.rewind();
+            spoolRetryTime = System.currentTimeMillis() + flushIntervalMillis;
+        }
+        currentSpool.sync();
+    }
+
+    private static byte[] createPayload(HitSpool.Batch batch, long now) {
+        List<String> batchHits = batch.getHits();
+        StringBuilder body = new StringBuilder(MAX_BATCH_BYTES);
+        for (int i = 0; i < batchHits.size(); i++) {
+            long queueTime = Math.max(0, now - batch.getTimestamp(i));
+            body.append(batchHits.get(i)).append("&qt=").append(queueTime).append('\n');
+        }
+        return body.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isAccepted(int status) {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * Checks whether a status means that the endpoint will never accept the
+     * batch.
+     */
+    private static boolean isRejected(int status) {
+        return status >= 400 && status < 500 && status != HttpURLConnection.HTTP_CLIENT_TIMEOUT && status != 429;
+    }
+
+    /**
+     * Posts a batch to the endpoint.
+     * 
+     * @return the response status, or {@link #NO_RESPONSE} if the request
+     *         failed
+     */
+    private int post(byte[] payload) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setFixedLengthStreamingMode(payload.length);
+            connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(payload);
+            }
+
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                // Response must be fully read for the connection to be reused
+                try (InputStream toDrain = in) {
+                    byte[] buffer = new byte[512];
+                    while (toDrain.read(buffer) != -1) {
+                        // Discard
+                    }
+                }
+            }
+
+            if (!isAccepted(status)) {
+                failedBatches.increment();
+            }
+            return status;
+        } catch (IOException e) {
+            failedBatches.increment();
+            return NO_RESPONSE;
+        }
+    }
+
+    /**
+     * Stops the background threads of this transport after sending all queued
+     * hits.
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            flush(true);
+            senders.shutdown();
+            senders.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toParameterName(String fieldName) {
+        String parameter = PARAMETERS.get(fieldName);
+        if (parameter != null) {
+            return parameter;
+        }
+        if (fieldName.startsWith("dimension")) {
+            return "cd" + fieldName.substring("dimension".length());
+        }
+        if (fieldName.startsWith("metric")) {
+            return "cm" + fieldName.substring("metric".length());
+        }
+        return null;
+    }
+
+    private static String toParameterValue(Object value) {
+        if (value instanceof JsonValue) {
+            JsonValue json = (JsonValue) value;
+            JsonType type = json.getType();
+            if (type == JsonType.NUMBER) {
+                return toParameterValue(Double.valueOf(json.asNumber()));
+            } else if (type == JsonType.BOOLEAN) {
+                return json.asBoolean() ? "1" : "0";
+            } else if (type == JsonType.STRING) {
+                return json.asString();
+            }
+            return null;
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value).booleanValue() ? "1" : "0";
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (number == Math.rint(number) && !Double.isInfinite(number)) {
+                return Long.toString((long) number);
+            }
+            return Double.toString(number);
+        }
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Per-UI state corresponding to a client-side tracker object.
+     */
+    private static class ClientState implements Serializable {
+        private final String clientId;
+        private final Map<String, String> parameters = new LinkedHashMap<>();
+        private String trackingId;
+        private boolean sendHits = true;
+
+        private ClientState(String clientId) {
+            this.clientId = clientId;
+        }
+
+        private void applyFields(Serializable[] command, int from) {
+            Serializable last = command[command.length - 1];
+            if (command.length > from && last instanceof JsonObject) {
+                JsonObject fields = (JsonObject) last;
+                for (String name : fields.keys()) {
+                    applyField(name, fields.get(name));
+                }
+            }
+        }
+
+        private void applyField(String name, Object value) {
+            if ("sendHitTask".equals(name)) {
+                // Hits are disabled by setting the task to null
+                sendHits = value != null
+                        && !(value instanceof JsonValue && ((JsonValue) value).getType() == JsonType.NULL);
+                return;
+            }
+
+            String parameter = toParameterName(name);
+            if (parameter == null) {
+                return;
+            }
+
+            String parameterValue = toParameterValue(value);
+            if (parameterValue == null) {
+                parameters.remove(parameter);
+            } else {
+                parameters.put(parameter, parameterValue);
+            }
+        }
+
+        private String createHit(Serializable[] command) {
+            // ["send", hitType, positional fields..., fieldsObject]
+            String hitType = String.valueOf(command[1]);
+
+            Map<String, String> hit = new LinkedHashMap<>(parameters);
+            hit.put("t", hitType);
+
+            String[] positional = getPositionalFields(hitType);
+            for (int i = 2; i < command.length && i - 2 < positional.length; i++) {
+                if (command[i] instanceof JsonObject) {
+                    break;
+                }
+                String value = toParameterValue(command[i]);
+                if (value != null) {
+                    hit.put(positional[i - 2], value);
+                }
+            }
+
+            Serializable last = command[command.length - 1];
+            if (last instanceof JsonObject) {
+                JsonObject fields = (JsonObject) last;
+                for (String name : fields.keys()) {
+                    String parameter = toParameterName(name);
+                    String value = toParameterValue(fields.get(name));
+                    if (parameter != null && value != null) {
+                        hit.put(parameter, value);
+                    }
+                }
+            }
+
+            // A clientId field overrides the generated id
+            String cid = hit.remove("cid");
+            if (cid == null) {
+                cid = clientId;
+            }
+
+            StringBuilder payload = new StringBuilder(256);
+            payload.append("v=1&tid=").append(encode(trackingId)).append("&cid=").append(encode(cid));
+            for (Entry<String, String> entry : hit.entrySet()) {
+                payload.append('&').append(entry.getKey()).append('=').append(encode(entry.getValue()));
+            }
+            return payload.toString();
+        }
+
+        private static String[] getPositionalFields(String hitType) {
+            switch (hitType) {
+            case "pageview":
+                return PAGEVIEW_FIELDS;
+            case "event":
+                return EVENT_FIELDS;
+            case "timing":
+                return TIMING_FIELDS;
+            case "social":
+                return SOCIAL_FIELDS;
+            default:
+                return NO_FIELDS;
+            }
+        }
+    }
+}
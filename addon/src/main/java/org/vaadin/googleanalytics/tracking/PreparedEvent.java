@@ -0,0 +1,113 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Objects;
+
+import elemental.json.JsonObject;
+
+/**
+ * An event with a fixed category, action and fields object that can be sent
+ * repeatedly through {@link GoogleAnalyticsTracker#sendEvent(PreparedEvent)}.
+ * The fields object is encoded once when the event is prepared, so sending the
+ * event only copies a pre-built command and fills in the label and value.
+ * <p>
+ * Prepared events are immutable and can be shared by all UIs, e.g. by storing
+ * them in static fields.
+ * 
+ * @see GoogleAnalyticsTracker#prepareEvent(String, String, Map)
+ */
+public final class PreparedEvent implements Serializable {
+    private static final int LABEL_INDEX = 4;
+    private static final int VALUE_INDEX = 5;
+
+    private final String category;
+    private final String action;
+    private final JsonObject fields;
+
+    /**
+     * Commands without label, with a label and with a label and a value. The
+     * label and value slots are <code>null</code> and the encoded fields
+     * object, if any, is the last element.
+     */
+    private final Serializable[] withoutLabel;
+    private final Serializable[] withLabel;
+    private final Serializable[] withValue;
+
+    PreparedEvent(String category, String action, Map<String, ? extends Serializable> fieldsObject) {
+        this.category = Objects.requireNonNull(category);
+        this.action = Objects.requireNonNull(action);
+        fields = GoogleAnalyticsTracker.toJsonObject(fieldsObject);
+
+        withoutLabel = createTemplate(0);
+        withLabel = createTemplate(1);
+        withValue = createTemplate(2);
+    }
+
+    private Serializable[] createTemplate(int variableSlots) {
+        // ["send", "event", category, action, label, value, fieldsObject]
+        Serializable[] template = new Serializable[LABEL_INDEX + variableSlots + (fields == null ? 0 : 1)];
+        template[0] = "send";
+        template[1] = "event";
+        template[2] = category;
+        template[3] = action;
+        if (fields != null) {
+            template[template.length - 1] = fields;
+        }
+        return template;
+    }
+
+    /**
+     * Gets the event category.
+     * 
+     * @return the category, not <code>null</code>
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Gets the event action.
+     * 
+     * @return the action, not <code>null</code>
+     */
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * Checks whether this event has a fields object.
+     * 
+     * @return <code>true</code> if the event has fields, otherwise
+     *         <code>false</code>
+     */
+    boolean hasFields() {
+        return fields != null;
+    }
+
+    /**
+     * Creates a command for sending this event. The encoded fields object is
+     * shared by all commands and must not be modified.
+     * 
+     * @param label
+     *            the event label, or <code>null</code> to send no label
+     * @param value
+     *            the event value, or <code>null</code> to send no value. A
+     *            value is only sent together with a label.
+     * @return a new command, not <code>null</code>
+     */
+    Serializable[] createAction(String label, Integer value) {
+        if (label == null) {
+            return withoutLabel.clone();
+        } else if (value == null) {
+            Serializable[] action = withLabel.clone();
+            action[LABEL_INDEX] = label;
+            return action;
+        } else {
+            Serializable[] action = withValue.clone();
+            action[LABEL_INDEX] = label;
+            action[VALUE_INDEX] = value;
+            return action;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import com.vaadin.flow.function.SerializablePredicate;
+import com.vaadin.flow.server.RequestHandler;
+import com.vaadin.flow.server.ServiceInitEvent;
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinResponse;
+import com.vaadin.flow.server.VaadinSession;
+
+/**
+ * Serves live rollups of the commands sent by all trackers in the JVM as
+ * JSON, for a local view of traffic e.g. during incidents. Installing the
+ * handler enables collecting the rollups: page views per location, events per
+ * category and action, and hits and active UIs per minute for the last hour.
+ * Without an installed handler, nothing is collected.
+ * <p>
+ * The <code>minutes</code> request parameter selects how many of the most
+ * recent minutes are included, 5 by default. All requests are denied until an
+ * access check is set with {@link #setAccessCheck(SerializablePredicate)}.
+ * 
+ * <pre>
+ * public class MyServiceInitListener implements VaadinServiceInitListener {
+ *     &#64;Override
+ *     public void serviceInit(ServiceInitEvent event) {
+ *         new RollupHandler().setAccessCheck(request -&gt; request.isUserInRole("admin")).install(event);
+ *     }
+ * }
+ * </pre>
+ * 
+ * Locations are counted as sent, so enabling
+ * {@link TrackerConfiguration#setUseRouteTemplates(boolean)} gives page views
+ * per route instead of per URL.
+ */
+public class RollupHandler implements RequestHandler {
+    /**
+     * The path of the rollups relative to the servlet.
+     */
+    public static final String PATH = "ga-tracker/rollups.json";
+
+    private static final int DEFAULT_MINUTES = 5;
+
+    private SerializablePredicate<VaadinRequest> accessCheck = request -> false;
+
+    /**
+     * Sets the check for whether a request may read the rollups. By default,
+     * all requests are denied.
+     * 
+     * @param accessCheck
+     *            the check to use, not <code>null</code>
+     * @return this handler, for chaining
+     */
+    public RollupHandler setAccessCheck(SerializablePredicate<VaadinRequest> accessCheck) {
+        this.accessCheck = Objects.requireNonNull(accessCheck);
+        return this;
+    }
+
+    /**
+     * Registers this handler with a Vaadin service and starts collecting
+     * rollups. Collecting stops when the service is destroyed.
+     * 
+     * @param event
+     *            the service init event, not <code>null</code>
+     */
+    public void install(ServiceInitEvent event) {
+        Objects.requireNonNull(event);
+        TrackerRollups.enable();
+        event.addRequestHandler(this);
+        event.getSource().addServiceDestroyListener(destroyEvent -> TrackerRollups.disable());
+    }
+
+    /**
+     * Checks whether a request comes from a loopback address. This can be
+     * used as an access check when the application is reached directly, but
+     * it allows every request that is forwarded by a reverse proxy on the
+     * same host.
+     * 
+     * @param request
+     *            the request to check, not <code>null</code>
+     * @return <code>true</code> if the remote address is a loopback address,
+     *         otherwise <code>false</code>
+     */
+    public static boolean isLocalRequest(VaadinRequest request) {
+        String address = request.getRemoteAddr();
+        return "127.0.0.1".equals(address) || "0:0:0:0:0:0:0:1".equals(address) || "::1".equals(address);
+    }
+
+    @Override
+    public boolean handleRequest(VaadinSession session, VaadinRequest request, VaadinResponse response)
+            throws IOException {
+        String pathInfo = request.getPathInfo();
+        if (pathInfo == null || !pathInfo.equals("/" + PATH)) {
+            return false;
+        }
+
+        if (!accessCheck.test(request)) {
+            response.sendError(HttpURLConnection.HTTP_FORBIDDEN, "Forbidden");
+            return true;
+        }
+
+        int minutes = DEFAULT_MINUTES;
+        String minutesParameter = request.getParameter("minutes");
+        if (minutesParameter != null) {
+            try {
+                minutes = Integer.parseInt(minutesParameter);
+            } catch (NumberFormatException e) {
+                minutes = -1;
+            }
+            if (minutes < 1 || minutes > TrackerRollups.MINUTES) {
+                response.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+                        "minutes must be between 1 and " + TrackerRollups.MINUTES);
+                return true;
+            }
+        }
+
+        byte[] body = TrackerRollups.toJson(minutes).toJson().getBytes(StandardCharsets.UTF_8);
+        response.setStatus(HttpURLConnection.HTTP_OK);
+        response.setContentType("application/json; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.setContentLength(body.length);
+        if (!"HEAD".equals(request.getMethod())) {
+            OutputStream out = response.getOutputStream();
+            out.write(body);
+            out.flush();
+        }
+        return true;
+    }
+}
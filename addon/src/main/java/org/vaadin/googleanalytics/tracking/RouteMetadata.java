@@ -0,0 +1,269 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import com.vaadin.flow.component.HasElement;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.router.HasUrlParameter;
+import com.vaadin.flow.router.ParentLayout;
+import com.vaadin.flow.router.Route;
+import com.vaadin.flow.router.RoutePrefix;
+
+/**
+ * Tracking related metadata for a router target or router layout class. The
+ * metadata is derived from the class' annotations and type hierarchy, which
+ * never change at runtime, so it is computed once per class and then looked up
+ * without locking for every subsequent navigation.
+ */
+final class RouteMetadata {
+    private static final ClassValue<RouteMetadata> CACHE = new ClassValue<RouteMetadata>() {
+        @Override
+        protected RouteMetadata computeValue(Class<?> type) {
+            return new RouteMetadata(type);
+        }
+    };
+
+    private final boolean ignored;
+    private final EnableGoogleAnalytics annotation;
+    private final boolean configurator;
+    private final boolean configurationShared;
+    private final String routeTemplate;
+    private final int routeTemplateSegments;
+    private final boolean urlParameter;
+    private final boolean trackedRoute;
+
+    private RouteMetadata(Class<?> type) {
+        ignored = type.getAnnotation(IgnorePageView.class) != null;
+        annotation = type.getAnnotation(EnableGoogleAnalytics.class);
+        configurator = TrackerConfigurator.class.isAssignableFrom(type);
+        configurationShared = !configurator || SharedTrackerConfigurator.class.isAssignableFrom(type);
+
+        Route route = type.getAnnotation(Route.class);
+        routeTemplate = route == null ? null : getRoutePath(route);
+        routeTemplateSegments = routeTemplate == null ? 0 : countSegments(routeTemplate);
+        urlParameter = HasUrlParameter.class.isAssignableFrom(type);
+
+        Class<?> rootLayout = route == null ? type : getRootLayout(type, route);
+        trackedRoute = rootLayout.getAnnotation(EnableGoogleAnalytics.class) != null
+                || TrackerConfigurator.class.isAssignableFrom(rootLayout);
+    }
+
+    /**
+     * Resolves the outermost layout of a route from its layout annotations.
+     */
+    private static Class<?> getRootLayout(Class<?> type, Route route) {
+        Class<?> root = type;
+        Class<?> parent = route.layout();
+        while (parent != null && parent != UI.class) {
+            root = parent;
+            ParentLayout parentLayout = parent.getAnnotation(ParentLayout.class);
+            parent = parentLayout == null ? null : parentLayout.value();
+        }
+        return root;
+    }
+
+    /**
+     * Resolves the path of a route the same way as the router, including the
+     * prefixes of its parent layouts.
+     */
+    private static String getRoutePath(Route route) {
+        Deque<String> parts = new ArrayDeque<>();
+        parts.add(route.value());
+        if (!route.absolute()) {
+            Class<?> parent = route.layout();
+            while (parent != null) {
+                RoutePrefix prefix = parent.getAnnotation(RoutePrefix.class);
+                if (prefix != null) {
+                    parts.addFirst(prefix.value());
+                    if (prefix.absolute()) {
+                        break;
+                    }
+                }
+                ParentLayout parentLayout = parent.getAnnotation(ParentLayout.class);
+                parent = parentLayout == null ? null : parentLayout.value();
+            }
+        }
+
+        StringBuilder path = new StringBuilder();
+        for (String part : parts) {
+            String trimmed = trimSlashes(part);
+            if (!trimmed.isEmpty()) {
+                if (path.length() > 0) {
+                    path.append('/');
+                }
+                path.append(trimmed);
+            }
+        }
+        return path.toString();
+    }
+
+    private static String trimSlashes(String part) {
+        int start = 0;
+        int end = part.length();
+        while (start < end && part.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && part.charAt(end - 1) == '/') {
+            end--;
+        }
+        return part.substring(start, end);
+    }
+
+    /**
+     * Counts the segments of a location path without allocating.
+     * 
+     * @param path
+     *            a path without leading slash, not <code>null</code>
+     * @return the number of path segments
+     */
+    static int countSegments(String path) {
+        if (path.isEmpty()) {
+            return 0;
+        }
+        int segments = 1;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                segments++;
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Gets the metadata for the given class.
+     * 
+     * @param type
+     *            the router target or router layout class, not
+     *            <code>null</code>
+     * @return the metadata for the class, not <code>null</code>
+     */
+    static RouteMetadata get(Class<?> type) {
+        return CACHE.get(type);
+    }
+
+    /**
+     * Gets the metadata for the outermost element of a router chain.
+     * 
+     * @param routerChain
+     *            the active router chain, not <code>null</code> and not empty
+     * @return the metadata for the root layout class, not <code>null</code>
+     */
+    static RouteMetadata getRootLayout(List<HasElement> routerChain) {
+        return get(routerChain.get(routerChain.size() - 1).getClass());
+    }
+
+    /**
+     * Checks whether any element in a router chain is ignored.
+     * 
+     * @param routerChain
+     *            the active router chain, not <code>null</code>
+     * @return <code>true</code> if automatic page views should be ignored for
+     *         the chain, otherwise <code>false</code>
+     */
+    static boolean isIgnored(List<HasElement> routerChain) {
+        for (int i = 0; i < routerChain.size(); i++) {
+            if (get(routerChain.get(i).getClass()).ignored) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the class is annotated with @{@link IgnorePageView}.
+     * 
+     * @return <code>true</code> if the class is ignored, otherwise
+     *         <code>false</code>
+     */
+    boolean isIgnored() {
+        return ignored;
+    }
+
+    /**
+     * Gets the @{@link EnableGoogleAnalytics} annotation of the class.
+     * 
+     * @return the annotation, or <code>null</code> if the class isn't annotated
+     */
+    EnableGoogleAnalytics getAnnotation() {
+        return annotation;
+    }
+
+    /**
+     * Checks whether the class implements {@link TrackerConfigurator}.
+     * 
+     * @return <code>true</code> if the class is a configurator, otherwise
+     *         <code>false</code>
+     */
+    boolean isConfigurator() {
+        return configurator;
+    }
+
+    /**
+     * Checks whether the configuration based on this class can be shared by
+     * all UIs. This is the case unless the class implements
+     * {@link TrackerConfigurator} without implementing
+     * {@link SharedTrackerConfigurator}.
+     * 
+     * @return <code>true</code> if the configuration can be shared, otherwise
+     *         <code>false</code>
+     */
+    boolean isConfigurationShared() {
+        return configurationShared;
+    }
+
+    /**
+     * Checks whether a tracker can be configured based on this class if it is
+     * used as the root layout.
+     * 
+     * @return <code>true</code> if the class enables tracking, otherwise
+     *         <code>false</code>
+     */
+    boolean enablesTracking() {
+        return annotation != null || configurator;
+    }
+
+    /**
+     * Checks whether navigating to this class is tracked based on the root
+     * layout declared by its @{@link Route} and @{@link ParentLayout}
+     * annotations, or based on the class itself if it isn't a route. This can
+     * be checked before the layouts of a navigation have been created.
+     * 
+     * @return <code>true</code> if the root layout enables tracking, otherwise
+     *         <code>false</code>
+     */
+    boolean isTrackedRoute() {
+        return trackedRoute;
+    }
+
+    /**
+     * Gets the path template of the class' @{@link Route}, including route
+     * prefixes of its parent layouts but not any URL parameter.
+     * 
+     * @return the route template, or <code>null</code> if the class isn't a
+     *         route
+     */
+    String getRouteTemplate() {
+        return routeTemplate;
+    }
+
+    /**
+     * Gets the number of path segments in the route template.
+     * 
+     * @return the number of segments
+     */
+    int getRouteTemplateSegments() {
+        return routeTemplateSegments;
+    }
+
+    /**
+     * Checks whether the class implements {@link HasUrlParameter}.
+     * 
+     * @return <code>true</code> if the route takes a URL parameter, otherwise
+     *         <code>false</code>
+     */
+    boolean hasUrlParameter() {
+        return urlParameter;
+    }
+}
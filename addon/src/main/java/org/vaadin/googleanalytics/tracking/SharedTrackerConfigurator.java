@@ -0,0 +1,15 @@
+package org.vaadin.googleanalytics.tracking;
+
+/**
+ * A {@link TrackerConfigurator} whose configuration is the same for all users,
+ * so that it can be created once and shared by all UIs in all sessions.
+ * <p>
+ * The configuration is created once for each layout class and production mode
+ * setting. The configurator is run only for the layout instance of the first
+ * UI that is tracked, so it must not depend on the current session, user or
+ * UI. Use {@link GoogleAnalyticsTracker#invalidateConfiguration(Class)} if the
+ * configuration needs to change at runtime.
+ */
+public interface SharedTrackerConfigurator extends TrackerConfigurator {
+    // Marker interface
+}
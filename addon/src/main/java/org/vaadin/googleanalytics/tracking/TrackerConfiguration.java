@@ -1,19 +1,34 @@
 package org.vaadin.googleanalytics.tracking;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.vaadin.googleanalytics.tracking.EnableGoogleAnalytics.LogLevel;
 
+import com.vaadin.flow.router.Location;
+import com.vaadin.flow.router.QueryParameters;
+
 /**
  * Configuration for a Google Analytics tracker. By default, the configuration
  * is created based on an @{@link EnableGoogleAnalytics} annotation on the
  * application's outermost router layout class. The layout class can also
  * implement {@link TrackerConfigurator} to declaratively update the
  * configuration.
+ * <p>
+ * A configuration becomes immutable once it has been used to initialize a
+ * tracker. The same instance is then shared by all trackers with the same root
+ * layout class and production mode setting.
  */
 public class TrackerConfiguration {
     /**
@@ -21,10 +36,72 @@ public class TrackerConfiguration {
      */
     public static final String DEFAULT_COOKIE_DOMAIN = "auto";
 
+    /**
+     * The number of buckets that sessions are distributed into for sampling,
+     * giving a resolution of 0.01 percent.
+     */
+    static final int SAMPLING_BUCKETS = 10000;
+
+    /**
+     * The placeholder for the URL parameter in route templates.
+     */
+    public static final String URL_PARAMETER = ":parameter";
+
+    private static final String[] NO_ROUTE_LOCATIONS = new String[0];
+
+    /**
+     * The largest hit payload that Google Analytics accepts, in bytes.
+     */
+    public static final int MAX_HIT_BYTES = 8 * 1024;
+
+    /**
+     * The default limit for the estimated size of the fields of a hit. The
+     * rest of {@link #MAX_HIT_BYTES} is left for fields that are added to
+     * every hit, such as the tracking id, client id, user agent and document
+     * location.
+     */
+    public static final int DEFAULT_HIT_SIZE_LIMIT = 6 * 1024;
+
+    /**
+     * The timing category of server-side navigation timing hits.
+     */
+    public static final String NAVIGATION_TIMING_CATEGORY = "Server navigation";
+
+    /**
+     * The default percentage of timed navigations that are sent as timing
+     * hits, the same as the default site speed sample rate of analytics.js.
+     */
+    public static final double DEFAULT_NAVIGATION_TIMING_SAMPLE_RATE = 1;
+
     private String trackingId;
     private String cookieDomain = DEFAULT_COOKIE_DOMAIN;
     private String pageViewPrefix = "";
     private String scriptUrl = "https://www.google-analytics.com/analytics.js";
+    private HitTransport transport = new ClientSideTransport();
+    private boolean injectIntoBootstrapPage = false;
+
+    private boolean useRouteTemplates = false;
+    private Set<String> allowedQueryParameters;
+    private final Set<String> ignoredQueryParameters = new HashSet<>();
+
+    private int hitSizeLimit = DEFAULT_HIT_SIZE_LIMIT;
+    private final Map<String, String> hitSplitFields = new LinkedHashMap<>();
+
+    private HitRateLimiter.Limit rateLimit;
+    private String rateLimitSummaryCategory;
+    private String rateLimitSummaryAction;
+
+    private boolean navigationTiming = false;
+    private int navigationTimingSampleThreshold = toSampleThreshold(DEFAULT_NAVIGATION_TIMING_SAMPLE_RATE);
+
+    /**
+     * Prefixed route templates without and with a URL parameter, resolved
+     * once per navigation target. Targets without a route template are mapped
+     * to {@link #NO_ROUTE_LOCATIONS}. Kept in the configuration rather than in
+     * the navigation target classes so that the entries go away together with
+     * a discarded configuration.
+     */
+    private final Map<Class<?>, String[]> routeLocations = new ConcurrentHashMap<>();
 
     private final Map<String, Serializable> gaDebug = new LinkedHashMap<>();
 
@@ -32,10 +109,101 @@ public class TrackerConfiguration {
 
     private final Map<String, Serializable> initialValues = new LinkedHashMap<>();
 
+    /**
+     * Sampling thresholds expressed as the number of sampling buckets out of
+     * {@link #SAMPLING_BUCKETS} that are sampled in.
+     */
+    private int pageViewSampleThreshold = SAMPLING_BUCKETS;
+    private int eventSampleThreshold = SAMPLING_BUCKETS;
+    private final Map<String, Integer> eventCategorySampleThresholds = new HashMap<>();
+    private final Map<Class<?>, Integer> routeSampleThresholds = new HashMap<>();
+
+    /**
+     * Commands to send when a tracker is initialized, computed when the
+     * configuration is frozen.
+     */
+    private Serializable[][] bootstrapCommands;
+
+    /**
+     * The root layout class and production mode setting for which this
+     * configuration is cached, set when the configuration is frozen. Trackers
+     * refer to the shared configuration through these when serialized.
+     */
+    private Class<?> layoutClass;
+    private boolean productionMode;
+
     private TrackerConfiguration() {
         // Create through static factory methods
     }
 
+    private void checkNotFrozen() {
+        if (bootstrapCommands != null) {
+            throw new IllegalStateException(
+                    "The configuration cannot be modified after it has been used to initialize a tracker");
+        }
+    }
+
+    /**
+     * Makes this configuration immutable so that it can be shared between
+     * trackers, and encodes the commands to send when a tracker is
+     * initialized.
+     * 
+     * @param layoutClass
+     *            the root layout class for which the configuration is cached,
+     *            not <code>null</code>
+     * @param productionMode
+     *            the production mode setting for which the configuration is
+     *            cached
+     */
+    void freeze(Class<?> layoutClass, boolean productionMode) {
+        if (bootstrapCommands != null) {
+            return;
+        }
+        this.layoutClass = layoutClass;
+        this.productionMode = productionMode;
+
+        Serializable[] create = GoogleAnalyticsTracker.createAction("create", createParameters, trackingId,
+                cookieDomain);
+        if (initialValues.isEmpty()) {
+            bootstrapCommands = new Serializable[][] { create };
+        } else {
+            bootstrapCommands = new Serializable[][] { create,
+                    GoogleAnalyticsTracker.createAction("set", initialValues) };
+        }
+    }
+
+    /**
+     * Gets the <code>create</code> and <code>set</code> commands to send when
+     * a tracker is initialized. The commands are shared by all trackers using
+     * this configuration and must not be modified.
+     * 
+     * @return the bootstrap commands, not <code>null</code>
+     */
+    Serializable[][] getBootstrapCommands() {
+        if (bootstrapCommands == null) {
+            throw new IllegalStateException("The configuration has not been frozen");
+        }
+        return bootstrapCommands;
+    }
+
+    /**
+     * Gets the root layout class for which this configuration is cached.
+     * 
+     * @return the layout class, or <code>null</code> if not frozen
+     */
+    Class<?> getLayoutClass() {
+        return layoutClass;
+    }
+
+    /**
+     * Gets the production mode setting for which this configuration is cached.
+     * 
+     * @return the production mode setting
+     */
+    boolean isProductionMode() {
+        return productionMode;
+    }
+
     /**
      * Gets the Google Analytics tracking ID to use.
      * 
@@ -58,6 +226,7 @@ public class TrackerConfiguration {
      * @return this configuration, for chaining
      */
     public TrackerConfiguration setTrackingId(String trackingId) {
+        checkNotFrozen();
         if (trackingId == null || trackingId.trim().isEmpty()) {
             throw new IllegalArgumentException("Tracking id must be defined");
         }
@@ -89,6 +258,7 @@ public class TrackerConfiguration {
      * @return this configuration, for chaining
      */
     public TrackerConfiguration setCookieDomain(String cookieDomain) {
+        checkNotFrozen();
         this.cookieDomain = Objects.requireNonNull(cookieDomain);
         return this;
     }
@@ -102,6 +272,7 @@ public class TrackerConfiguration {
      * @return this configuration, for chaining
      */
     public TrackerConfiguration setPageViewPrefix(String pageViewPrefix) {
+        checkNotFrozen();
         this.pageViewPrefix = Objects.requireNonNull(pageViewPrefix);
         return this;
     }
@@ -123,6 +294,7 @@ public class TrackerConfiguration {
      * @return this configuration, for chaining
      */
     public TrackerConfiguration setScriptUrl(String scriptUrl) {
+        checkNotFrozen();
         this.scriptUrl = Objects.requireNonNull(scriptUrl);
         return this;
     }
@@ -136,6 +308,728 @@ public class TrackerConfiguration {
         return scriptUrl;
     }
 
+    /**
+     * Gets the URL from which clients should actually load the script. This is
+     * the local URL of an installed {@link AnalyticsScriptHandler} if it
+     * serves the configured script, otherwise the configured script URL.
+     * 
+     * @return the script URL to use, not <code>null</code>
+     */
+    String getEffectiveScriptUrl() {
+        String localUrl = AnalyticsScriptHandler.getLocalScriptUrl(scriptUrl);
+        return localUrl != null ? localUrl : scriptUrl;
+    }
+
+    /**
+     * Sets the transport through which commands are sent to Google Analytics.
+     * Transports that batch hits, such as
+     * {@link MeasurementProtocolTransport}, should be shared by all trackers
+     * rather than created for each configuration.
+     * 
+     * @param transport
+     *            the transport to use, not <code>null</code>
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setTransport(HitTransport transport) {
+        checkNotFrozen();
+        this.transport = Objects.requireNonNull(transport);
+        return this;
+    }
+
+    /**
+     * Gets the transport through which commands are sent to Google Analytics.
+     * By default, commands are sent through the browser using a
+     * {@link ClientSideTransport}.
+     * 
+     * @return the transport, not <code>null</code>
+     */
+    public HitTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets whether the Google Analytics script and the configuration commands
+     * should be included directly in the initial HTML page. The script is then
+     * loaded in parallel with the Flow client engine instead of after the
+     * first response has been processed. This only has an effect when the
+     * default {@link ClientSideTransport} is used.
+     * 
+     * @param injectIntoBootstrapPage
+     *            <code>true</code> to inject into the bootstrap page,
+     *            <code>false</code> to initialize through the first response
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setInjectIntoBootstrapPage(boolean injectIntoBootstrapPage) {
+        checkNotFrozen();
+        this.injectIntoBootstrapPage = injectIntoBootstrapPage;
+        return this;
+    }
+
+    /**
+     * Checks whether the Google Analytics script and the configuration
+     * commands are included in the initial HTML page.
+     * 
+     * @see #setInjectIntoBootstrapPage(boolean)
+     * 
+     * @return <code>true</code> if injecting into the bootstrap page,
+     *         otherwise <code>false</code>
+     */
+    public boolean isInjectIntoBootstrapPage() {
+        return injectIntoBootstrapPage;
+    }
+
+    /**
+     * Sets whether automatic page views should use the route template of the
+     * navigation target instead of the actual location. A location such as
+     * <code>order/12345</code> is then tracked as <code>order/:parameter</code>
+     * if the route class implements <code>HasUrlParameter</code>, which keeps
+     * the number of distinct page paths bounded. Locations of navigation
+     * targets without a @<code>Route</code> annotation are tracked as is.
+     * 
+     * @param useRouteTemplates
+     *            <code>true</code> to track route templates,
+     *            <code>false</code> to track actual locations
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setUseRouteTemplates(boolean useRouteTemplates) {
+        checkNotFrozen();
+        this.useRouteTemplates = useRouteTemplates;
+        return this;
+    }
+
+    /**
+     * Checks whether automatic page views use route templates.
+     * 
+     * @see #setUseRouteTemplates(boolean)
+     * 
+     * @return <code>true</code> if route templates are used, otherwise
+     *         <code>false</code>
+     */
+    public boolean isUseRouteTemplates() {
+        return useRouteTemplates;
+    }
+
+    /**
+     * Sets the query parameters to keep in the location of automatic page
+     * views. Other parameters are removed. By default, all query parameters
+     * are kept.
+     * 
+     * @param names
+     *            the names of the query parameters to keep, or
+     *            <code>null</code> to keep all parameters that are not
+     *            ignored
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setAllowedQueryParameters(String... names) {
+        checkNotFrozen();
+        allowedQueryParameters = names == null ? null : new HashSet<>(Arrays.asList(names));
+        return this;
+    }
+
+    /**
+     * Gets the query parameters to keep in the location of automatic page
+     * views.
+     * 
+     * @see #setAllowedQueryParameters(String...)
+     * 
+     * @return an unmodifiable set of parameter names, or <code>null</code> if
+     *         all parameters that are not ignored are kept
+     */
+    public Set<String> getAllowedQueryParameters() {
+        return allowedQueryParameters == null ? null : Collections.unmodifiableSet(allowedQueryParameters);
+    }
+
+    /**
+     * Adds query parameters to remove from the location of automatic page
+     * views, e.g. tracking or cache busting parameters.
+     * 
+     * @param names
+     *            the names of the query parameters to remove, not
+     *            <code>null</code>
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration addIgnoredQueryParameters(String... names) {
+        checkNotFrozen();
+        ignoredQueryParameters.addAll(Arrays.asList(names));
+        return this;
+    }
+
+    /**
+     * Gets the query parameters that are removed from the location of
+     * automatic page views.
+     * 
+     * @see #addIgnoredQueryParameters(String...)
+     * 
+     * @return an unmodifiable set of parameter names, not <code>null</code>
+     */
+    public Set<String> getIgnoredQueryParameters() {
+        return Collections.unmodifiableSet(ignoredQueryParameters);
+    }
+
+    /**
+     * Sets the limit for the estimated size of the fields of a hit. Larger
+     * hits are split according to {@link #setHitSplitField(String, String)}
+     * or rejected before they are sent, since Google Analytics would silently
+     * discard them. The size is estimated as the URL encoded length of the
+     * values passed to the tracker.
+     * 
+     * @param bytes
+     *            the size limit in bytes, between 1 and
+     *            {@link #MAX_HIT_BYTES}
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setHitSizeLimit(int bytes) {
+        checkNotFrozen();
+        if (bytes < 1 || bytes > MAX_HIT_BYTES) {
+            throw new IllegalArgumentException("Hit size limit must be between 1 and " + MAX_HIT_BYTES);
+        }
+        hitSizeLimit = bytes;
+        return this;
+    }
+
+    /**
+     * Gets the limit for the estimated size of the fields of a hit.
+     * 
+     * @see #setHitSizeLimit(int)
+     * 
+     * @return the size limit in bytes
+     */
+    public int getHitSizeLimit() {
+        return hitSizeLimit;
+    }
+
+    /**
+     * Sets a fields object field whose value is a list that may be divided
+     * between several hits when a hit exceeds the size limit. All other fields
+     * are repeated in each hit. Values that are JSON arrays are split by
+     * element and string values are split by the given separator. If a hit
+     * has several such fields, the first one that was set is split.
+     * 
+     * @see #setHitSizeLimit(int)
+     * 
+     * @param name
+     *            the field name, not <code>null</code>
+     * @param separator
+     *            the separator between items in string values, or
+     *            <code>null</code> to only split array values
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setHitSplitField(String name, String separator) {
+        checkNotFrozen();
+        hitSplitFields.put(Objects.requireNonNull(name), separator);
+        return this;
+    }
+
+    /**
+     * Removes a field that was set to be split between hits.
+     * 
+     * @see #setHitSplitField(String, String)
+     * 
+     * @param name
+     *            the field name, not <code>null</code>
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration removeHitSplitField(String name) {
+        checkNotFrozen();
+        hitSplitFields.remove(Objects.requireNonNull(name));
+        return this;
+    }
+
+    /**
+     * Gets the fields that may be split between hits.
+     * 
+     * @see #setHitSplitField(String, String)
+     * 
+     * @return an unmodifiable map from field names to item separators, not
+     *         <code>null</code>
+     */
+    public Map<String, String> getHitSplitFields() {
+        return Collections.unmodifiableMap(hitSplitFields);
+    }
+
+    /**
+     * Sets the maximum rate of hits sent by each UI. Hits beyond the limit are
+     * dropped before they are queued. Page views have priority over other
+     * hits, see {@link HitRateLimiter}. By default, the rate is not limited.
+     * Events tracked in the browser through
+     * {@link GoogleAnalyticsTracker#trackClientEvent(com.vaadin.flow.component.Component, String, String, String)}
+     * are not limited.
+     * 
+     * @see HitRateLimiter#global()
+     * 
+     * @param hitsPerSecond
+     *            the sustained number of hits per second, greater than 0
+     * @param burst
+     *            the number of hits that can be sent at once after a quiet
+     *            period, at least 1
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setRateLimit(double hitsPerSecond, int burst) {
+        checkNotFrozen();
+        rateLimit = new HitRateLimiter.Limit(hitsPerSecond, burst);
+        return this;
+    }
+
+    /**
+     * Removes the per UI rate limit.
+     * 
+     * @see #setRateLimit(double, int)
+     * 
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration removeRateLimit() {
+        checkNotFrozen();
+        rateLimit = null;
+        return this;
+    }
+
+    /**
+     * Gets the sustained number of hits per second for each UI.
+     * 
+     * @see #setRateLimit(double, int)
+     * 
+     * @return the rate, or 0 if the rate is not limited
+     */
+    public double getRateLimitHitsPerSecond() {
+        return rateLimit == null ? 0 : rateLimit.getHitsPerSecond();
+    }
+
+    /**
+     * Gets the number of hits that each UI can send at once.
+     * 
+     * @see #setRateLimit(double, int)
+     * 
+     * @return the burst size, or 0 if the rate is not limited
+     */
+    public int getRateLimitBurst() {
+        return rateLimit == null ? 0 : rateLimit.getBurst();
+    }
+
+    HitRateLimiter.Limit getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Sets an event that reports how many hits a UI has dropped because of
+     * rate limiting. The event is sent at most once per response in which
+     * hits were dropped, bypassing the rate limits, with the number of
+     * dropped hits as the event value. By default, no summary is sent.
+     * 
+     * @param category
+     *            the event category, or <code>null</code> to not send a
+     *            summary
+     * @param action
+     *            the event action, not <code>null</code> if a category is
+     *            given
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setRateLimitSummaryEvent(String category, String action) {
+        checkNotFrozen();
+        rateLimitSummaryCategory = category;
+        rateLimitSummaryAction = category == null ? null : Objects.requireNonNull(action);
+        return this;
+    }
+
+    /**
+     * Gets the category of the rate limit summary event.
+     * 
+     * @see #setRateLimitSummaryEvent(String, String)
+     * 
+     * @return the event category, or <code>null</code> if no summary is sent
+     */
+    public String getRateLimitSummaryCategory() {
+        return rateLimitSummaryCategory;
+    }
+
+    /**
+     * Gets the action of the rate limit summary event.
+     * 
+     * @see #setRateLimitSummaryEvent(String, String)
+     * 
+     * @return the event action, or <code>null</code> if no summary is sent
+     */
+    public String getRateLimitSummaryAction() {
+        return rateLimitSummaryAction;
+    }
+
+    /**
+     * Enables or disables measuring how long navigations take on the server,
+     * from the first before enter listener until the navigation has
+     * completed, including creating the route target and its layouts.
+     * Durations are recorded per navigation target in {@link TrackerMetrics}
+     * and a sample of them is sent as timing hits with the route template as
+     * the timing variable, see {@link #setNavigationTimingSampleRate(double)}.
+     * Navigation timing is disabled by default.
+     * 
+     * @param navigationTiming
+     *            <code>true</code> to measure navigations, <code>false</code>
+     *            to not measure them
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setNavigationTiming(boolean navigationTiming) {
+        checkNotFrozen();
+        this.navigationTiming = navigationTiming;
+        return this;
+    }
+
+    /**
+     * Checks whether navigations are measured on the server.
+     * 
+     * @see #setNavigationTiming(boolean)
+     * 
+     * @return <code>true</code> if navigations are measured, otherwise
+     *         <code>false</code>
+     */
+    public boolean isNavigationTiming() {
+        return navigationTiming;
+    }
+
+    /**
+     * Sets the percentage of measured navigations that are sent as timing
+     * hits. Unlike other sample rates, this is decided separately for each
+     * navigation. The default is
+     * {@value #DEFAULT_NAVIGATION_TIMING_SAMPLE_RATE} percent.
+     * 
+     * @see #setNavigationTiming(boolean)
+     * 
+     * @param percentage
+     *            the percentage of navigations to send, between 0 and 100
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setNavigationTimingSampleRate(double percentage) {
+        checkNotFrozen();
+        navigationTimingSampleThreshold = toSampleThreshold(percentage);
+        return this;
+    }
+
+    /**
+     * Gets the percentage of measured navigations that are sent as timing
+     * hits.
+     * 
+     * @see #setNavigationTimingSampleRate(double)
+     * 
+     * @return the sample rate in percent
+     */
+    public double getNavigationTimingSampleRate() {
+        return toPercentage(navigationTimingSampleThreshold);
+    }
+
+    /**
+     * Decides whether one measured navigation is sent as a timing hit.
+     * 
+     * @return <code>true</code> if the navigation should be sent, otherwise
+     *         <code>false</code>
+     */
+    boolean isNavigationTimingSampled() {
+        return navigationTimingSampleThreshold >= SAMPLING_BUCKETS
+                || ThreadLocalRandom.current().nextInt(SAMPLING_BUCKETS) < navigationTimingSampleThreshold;
+    }
+
+    /**
+     * Checks whether locations of automatic page views are rewritten.
+     * 
+     * @return <code>true</code> if route templates or query parameter filters
+     *         are used, otherwise <code>false</code>
+     */
+    boolean hasLocationNormalization() {
+        return useRouteTemplates || allowedQueryParameters != null || !ignoredQueryParameters.isEmpty();
+    }
+
+    private String[] getRouteLocations(Class<?> navigationTarget) {
+        String[] locations = routeLocations.get(navigationTarget);
+        if (locations == null) {
+            String template = RouteMetadata.get(navigationTarget).getRouteTemplate();
+            if (template == null) {
+                locations = NO_ROUTE_LOCATIONS;
+            } else {
+                String withParameter = template.isEmpty() ? URL_PARAMETER : template + "/" + URL_PARAMETER;
+                locations = new String[] { pageViewPrefix + template, pageViewPrefix + withParameter };
+            }
+            String[] existing = routeLocations.putIfAbsent(navigationTarget, locations);
+            if (existing != null) {
+                locations = existing;
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Discards the route locations resolved so far. Called when the
+     * configuration is no longer shared, so that it doesn't keep references to
+     * navigation target classes.
+     */
+    void clearRouteLocations() {
+        routeLocations.clear();
+    }
+
+    /**
+     * Gets the number of navigation targets for which route locations are
+     * currently cached.
+     * 
+     * @return the number of cached navigation targets
+     */
+    int getRouteLocationCount() {
+        return routeLocations.size();
+    }
+
+    /**
+     * Gets the location to track for a navigation, including the page view
+     * prefix. Route templates are cached per navigation target, so no strings
+     * are created for a templated location without query parameters.
+     * 
+     * @param location
+     *            the location navigated to, not <code>null</code>
+     * @param navigationTarget
+     *            the navigation target, or <code>null</code> if not known
+     * @return the location to track, not <code>null</code>
+     */
+    String getPageViewLocation(Location location, Class<?> navigationTarget) {
+        String path = location.getPath();
+        String trackedPath = null;
+        if (useRouteTemplates && navigationTarget != null) {
+            String[] templates = getRouteLocations(navigationTarget);
+            if (templates != NO_ROUTE_LOCATIONS) {
+                RouteMetadata metadata = RouteMetadata.get(navigationTarget);
+                // The parameter may be optional
+                boolean withParameter = metadata.hasUrlParameter()
+                        && RouteMetadata.countSegments(path) > metadata.getRouteTemplateSegments();
+                trackedPath = templates[withParameter ? 1 : 0];
+            }
+        }
+        if (trackedPath == null) {
+            trackedPath = pageViewPrefix.isEmpty() ? path : pageViewPrefix + path;
+        }
+
+        Map<String, List<String>> parameters = location.getQueryParameters().getParameters();
+        if (parameters.isEmpty()) {
+            return trackedPath;
+        }
+
+        QueryParameters queryParameters = location.getQueryParameters();
+        if (allowedQueryParameters != null || !ignoredQueryParameters.isEmpty()) {
+            Map<String, List<String>> kept = new LinkedHashMap<>();
+            for (Entry<String, List<String>> entry : parameters.entrySet()) {
+                String name = entry.getKey();
+                if ((allowedQueryParameters == null || allowedQueryParameters.contains(name))
+                        && !ignoredQueryParameters.contains(name)) {
+                    kept.put(name, entry.getValue());
+                }
+            }
+            if (kept.isEmpty()) {
+                return trackedPath;
+            }
+            queryParameters = new QueryParameters(kept);
+        }
+        return trackedPath + '?' + queryParameters.getQueryString();
+    }
+
+    /**
+     * Sets the percentage of sessions for which page views are sent. Page
+     * views from other sessions are dropped on the server before they are
+     * queued. Sampling is decided once per session, so a session that is
+     * sampled in with a lower percentage is also sampled in with any higher
+     * percentage.
+     * <p>
+     * Unlike the <code>sampleRate</code> create field, this also prevents
+     * sampled out commands from being sent to the browser.
+     * 
+     * @param percentage
+     *            the percentage of sessions to sample in, between 0 and 100
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setPageViewSampleRate(double percentage) {
+        checkNotFrozen();
+        pageViewSampleThreshold = toSampleThreshold(percentage);
+        return this;
+    }
+
+    /**
+     * Gets the percentage of sessions for which page views are sent.
+     * 
+     * @see #setPageViewSampleRate(double)
+     * 
+     * @return the page view sample rate, between 0 and 100
+     */
+    public double getPageViewSampleRate() {
+        return toPercentage(pageViewSampleThreshold);
+    }
+
+    /**
+     * Sets the percentage of sessions for which events are sent, unless
+     * overridden for the event's category.
+     * 
+     * @see #setPageViewSampleRate(double)
+     * @see #setEventSampleRate(String, double)
+     * 
+     * @param percentage
+     *            the percentage of sessions to sample in, between 0 and 100
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setEventSampleRate(double percentage) {
+        checkNotFrozen();
+        eventSampleThreshold = toSampleThreshold(percentage);
+        return this;
+    }
+
+    /**
+     * Gets the percentage of sessions for which events are sent, unless
+     * overridden for the event's category.
+     * 
+     * @see #setEventSampleRate(double)
+     * 
+     * @return the event sample rate, between 0 and 100
+     */
+    public double getEventSampleRate() {
+        return toPercentage(eventSampleThreshold);
+    }
+
+    /**
+     * Sets the percentage of sessions for which events with the given category
+     * are sent.
+     * 
+     * @see #setPageViewSampleRate(double)
+     * 
+     * @param category
+     *            the event category, not <code>null</code>
+     * @param percentage
+     *            the percentage of sessions to sample in, between 0 and 100
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setEventSampleRate(String category, double percentage) {
+        checkNotFrozen();
+        eventCategorySampleThresholds.put(Objects.requireNonNull(category),
+                Integer.valueOf(toSampleThreshold(percentage)));
+        return this;
+    }
+
+    /**
+     * Removes the event sample rate for a category so that the default event
+     * sample rate is used instead.
+     * 
+     * @see #setEventSampleRate(String, double)
+     * 
+     * @param category
+     *            the event category, not <code>null</code>
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration removeEventSampleRate(String category) {
+        checkNotFrozen();
+        eventCategorySampleThresholds.remove(Objects.requireNonNull(category));
+        return this;
+    }
+
+    /**
+     * Sets the percentage of sessions for which page views are sent while the
+     * given navigation target is active. This overrides the page view sample
+     * rate for that route.
+     * 
+     * @see #setPageViewSampleRate(double)
+     * 
+     * @param navigationTarget
+     *            the navigation target class, not <code>null</code>
+     * @param percentage
+     *            the percentage of sessions to sample in, between 0 and 100
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration setRouteSampleRate(Class<?> navigationTarget, double percentage) {
+        checkNotFrozen();
+        routeSampleThresholds.put(Objects.requireNonNull(navigationTarget),
+                Integer.valueOf(toSampleThreshold(percentage)));
+        return this;
+    }
+
+    /**
+     * Removes the sample rate for a navigation target so that the page view
+     * sample rate is used instead.
+     * 
+     * @see #setRouteSampleRate(Class, double)
+     * 
+     * @param navigationTarget
+     *            the navigation target class, not <code>null</code>
+     * @return this configuration, for chaining
+     */
+    public TrackerConfiguration removeRouteSampleRate(Class<?> navigationTarget) {
+        checkNotFrozen();
+        routeSampleThresholds.remove(Objects.requireNonNull(navigationTarget));
+        return this;
+    }
+
+    private static int toSampleThreshold(double percentage) {
+        if (!(percentage >= 0 && percentage <= 100)) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 100");
+        }
+        return (int) Math.round(percentage * SAMPLING_BUCKETS / 100);
+    }
+
+    private static double toPercentage(int threshold) {
+        return threshold * 100.0 / SAMPLING_BUCKETS;
+    }
+
+    /**
+     * Checks whether a page view should be sent for a session.
+     * 
+     * @param bucket
+     *            the sampling bucket of the session
+     * @param navigationTarget
+     *            the active navigation target, or <code>null</code> if not
+     *            known
+     * @return <code>true</code> if the page view is sampled in, otherwise
+     *         <code>false</code>
+     */
+    boolean isPageViewSampled(int bucket, Class<?> navigationTarget) {
+        int threshold = pageViewSampleThreshold;
+        if (navigationTarget != null && !routeSampleThresholds.isEmpty()) {
+            Integer routeThreshold = routeSampleThresholds.get(navigationTarget);
+            if (routeThreshold != null) {
+                threshold = routeThreshold.intValue();
+            }
+        }
+        return bucket < threshold;
+    }
+
+    /**
+     * Checks whether an event should be sent for a session.
+     * 
+     * @param bucket
+     *            the sampling bucket of the session
+     * @param category
+     *            the event category, or <code>null</code> if not known
+     * @return <code>true</code> if the event is sampled in, otherwise
+     *         <code>false</code>
+     */
+    boolean isEventSampled(int bucket, String category) {
+        int threshold = eventSampleThreshold;
+        if (category != null && !eventCategorySampleThresholds.isEmpty()) {
+            Integer categoryThreshold = eventCategorySampleThresholds.get(category);
+            if (categoryThreshold != null) {
+                threshold = categoryThreshold.intValue();
+            }
+        }
+        return bucket < threshold;
+    }
+
+    /**
+     * Checks whether any sampling rules are defined.
+     * 
+     * @return <code>true</code> if some hits may be sampled out, otherwise
+     *         <code>false</code>
+     */
+    boolean hasSampling() {
+        return pageViewSampleThreshold < SAMPLING_BUCKETS || eventSampleThreshold < SAMPLING_BUCKETS
+                || !eventCategorySampleThresholds.isEmpty() || !routeSampleThresholds.isEmpty();
+    }
+
+    /**
+     * Checks whether page view sampling depends on the active navigation
+     * target.
+     * 
+     * @return <code>true</code> if there are route specific sample rates,
+     *         otherwise <code>false</code>
+     */
+    boolean hasRouteSampling() {
+        return !routeSampleThresholds.isEmpty();
+    }
+
     /**
      * Sets a custom field value to use when creating the client-side tracker.
      * 
@@ -150,6 +1044,7 @@ public class TrackerConfiguration {
      * @return this configuration, for chaining
      */
     public TrackerConfiguration setCreateField(String name, Serializable value) {
+        checkNotFrozen();
         createParameters.put(Objects.requireNonNull(name), value);
         return this;
     }
@@ -164,6 +1059,7 @@ public class TrackerConfiguration {
      * @return this configuration, for chaining
      */
     public TrackerConfiguration removeCreateField(String name) {
+        checkNotFrozen();
         createParameters.remove(Objects.requireNonNull(name));
         return this;
     }
@@ -179,6 +1075,7 @@ public class TrackerConfiguration {
      * @return this configuration, for chaining
      */
     public TrackerConfiguration setInitialValue(String name, Serializable value) {
+        checkNotFrozen();
         initialValues.put(Objects.requireNonNull(name), value);
         return this;
     }
@@ -193,6 +1090,7 @@ public class TrackerConfiguration {
      * @return this configuration, for chaining
      */
     public TrackerConfiguration removeInitialValue(String name) {
+        checkNotFrozen();
         initialValues.remove(Objects.requireNonNull(name));
         return this;
     }
@@ -208,6 +1106,7 @@ public class TrackerConfiguration {
      * @return this configuration, for chaining
      */
     public TrackerConfiguration setGaDebug(String name, Serializable value) {
+        checkNotFrozen();
         gaDebug.put(Objects.requireNonNull(name), value);
         return this;
     }
@@ -222,6 +1121,7 @@ public class TrackerConfiguration {
      * @return this configuration, for chaining
      */
     public TrackerConfiguration removeGaDebug(String name) {
+        checkNotFrozen();
         gaDebug.remove(Objects.requireNonNull(name));
         return this;
     }
@@ -298,6 +1198,8 @@ public class TrackerConfiguration {
         config.setTrackingId(annotation.value());
         config.setCookieDomain(annotation.cookieDomain());
         config.setPageViewPrefix(annotation.pageviewPrefix());
+        config.setInjectIntoBootstrapPage(annotation.injectIntoBootstrapPage());
+        config.setUseRouteTemplates(annotation.useRouteTemplates());
 
         return config;
     }
@@ -3,6 +3,12 @@ package org.vaadin.googleanalytics.tracking;
 /**
  * Programmatically configures a Google Analytics tracker if implemented by the
  * application's main router layout.
+ * <p>
+ * The configurator is run for the layout instance of each UI when its tracker
+ * is initialized, so the configuration may depend on the current session, user
+ * or UI. A configuration that is the same for everyone can be created only
+ * once and shared by all UIs by implementing {@link SharedTrackerConfigurator}
+ * instead.
  */
 public interface TrackerConfigurator {
     /**
@@ -0,0 +1,450 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Operational metrics for all trackers in the application. Counters are
+ * striped so that recording from concurrent requests doesn't contend on
+ * shared values. The metrics are registered as a JMX MBean named
+ * <code>org.vaadin.googleanalytics.tracking:type=TrackerMetrics</code> when
+ * the service is initialized, and are also passed on to any registered
+ * {@link TrackerMetricsListener}.
+ */
+public final class TrackerMetrics implements TrackerMetricsMBean {
+    /**
+     * The name of the JMX MBean.
+     */
+    public static final String OBJECT_NAME = "org.vaadin.googleanalytics.tracking:type=TrackerMetrics";
+
+    private static final TrackerMetrics INSTANCE = new TrackerMetrics();
+
+    private final LongAdder pageViews = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder timings = new LongAdder();
+    private final LongAdder otherHits = new LongAdder();
+    private final LongAdder sentCommands = new LongAdder();
+    private final LongAdder droppedActions = new LongAdder();
+    private final LongAdder queueDepth = new LongAdder();
+    private final LongAdder failedInits = new LongAdder();
+    private final LongAdder ignoredNavigations = new LongAdder();
+    private final LongAdder sampledOutPageViews = new LongAdder();
+    private final LongAdder rejectedHits = new LongAdder();
+    private final LongAdder splitHits = new LongAdder();
+    private final LongAdder rateLimitedHits = new LongAdder();
+    private final LongAdder globallyRateLimitedHits = new LongAdder();
+
+    private final LatencyHistogram initLatency = new LatencyHistogram();
+    private final LatencyHistogram configurationLatency = new LatencyHistogram();
+    private final LatencyHistogram drainLatency = new LatencyHistogram();
+    private final LatencyHistogram navigationLatency = new LatencyHistogram();
+
+    /**
+     * Navigation latency per navigation target. A histogram is only created
+     * when a navigation to the target is timed, so that looking up the
+     * metrics of an arbitrary class doesn't allocate anything.
+     */
+    private final ConcurrentMap<Class<?>, LatencyHistogram> routeNavigationLatency = new ConcurrentHashMap<>();
+
+    /**
+     * Replaced as a whole when a listener is added so that recording can
+     * iterate without locking or allocating.
+     */
+    private volatile TrackerMetricsListener[] listeners;
+
+    private int registrations = 0;
+
+    private TrackerMetrics() {
+        TrackerMetricsListener[] loaded = new TrackerMetricsListener[0];
+        for (TrackerMetricsListener listener : ServiceLoader.load(TrackerMetricsListener.class,
+                TrackerMetrics.class.getClassLoader())) {
+            loaded = Arrays.copyOf(loaded, loaded.length + 1);
+            loaded[loaded.length - 1] = listener;
+        }
+        listeners = loaded;
+    }
+
+    /**
+     * Gets the metrics instance.
+     * 
+     * @return the metrics instance, not <code>null</code>
+     */
+    public static TrackerMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a listener that receives metrics as they are recorded, in addition
+     * to listeners discovered through {@link ServiceLoader}.
+     * 
+     * @param listener
+     *            the listener to add, not <code>null</code>
+     */
+    public synchronized void addListener(TrackerMetricsListener listener) {
+        Objects.requireNonNull(listener);
+        TrackerMetricsListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[updated.length - 1] = listener;
+        listeners = updated;
+    }
+
+    /**
+     * Registers the MBean with the platform MBean server unless already
+     * registered. Registrations are counted so that the MBean is only removed
+     * when the last service using this class is destroyed.
+     */
+    synchronized void registerMBean() {
+        if (registrations++ > 0) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException | SecurityException e) {
+            // Metrics are still collected and passed to listeners
+        }
+    }
+
+    /**
+     * Removes the MBean from the platform MBean server when the last
+     * registration is released.
+     */
+    synchronized void unregisterMBean() {
+        if (registrations == 0 || --registrations > 0) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException | SecurityException e) {
+            // Nothing to clean up
+        }
+    }
+
+    void commandSent(Object hitType) {
+        sentCommands.increment();
+        if ("pageview".equals(hitType)) {
+            pageViews.increment();
+        } else if ("event".equals(hitType)) {
+            events.increment();
+        } else if ("timing".equals(hitType)) {
+            timings.increment();
+        } else if (hitType != null) {
+            otherHits.increment();
+        }
+
+        String type = hitType instanceof String ? (String) hitType : null;
+        for (TrackerMetricsListener listener : listeners) {
+            listener.commandSent(type);
+        }
+    }
+
+    void actionsDropped(int count) {
+        droppedActions.add(count);
+        for (TrackerMetricsListener listener : listeners) {
+            listener.actionsDropped(count);
+        }
+    }
+
+    void queueDepthChanged(int delta) {
+        if (delta == 0) {
+            return;
+        }
+        queueDepth.add(delta);
+        for (TrackerMetricsListener listener : listeners) {
+            listener.queueDepthChanged(delta);
+        }
+    }
+
+    void initialized(long nanos, boolean success) {
+        initLatency.record(nanos);
+        if (!success) {
+            failedInits.increment();
+        }
+        for (TrackerMetricsListener listener : listeners) {
+            listener.initialized(nanos, success);
+        }
+    }
+
+    void configurationCreated(long nanos) {
+        configurationLatency.record(nanos);
+        for (TrackerMetricsListener listener : listeners) {
+            listener.configurationCreated(nanos);
+        }
+    }
+
+    void drained(long nanos, int commandCount) {
+        drainLatency.record(nanos);
+        for (TrackerMetricsListener listener : listeners) {
+            listener.drained(nanos, commandCount);
+        }
+    }
+
+    void navigationIgnored() {
+        ignoredNavigations.increment();
+        for (TrackerMetricsListener listener : listeners) {
+            listener.navigationIgnored();
+        }
+    }
+
+    void pageViewSampledOut() {
+        sampledOutPageViews.increment();
+        for (TrackerMetricsListener listener : listeners) {
+            listener.pageViewSampledOut();
+        }
+    }
+
+    void hitRejected(int estimatedBytes) {
+        rejectedHits.increment();
+        for (TrackerMetricsListener listener : listeners) {
+            listener.hitRejected(estimatedBytes);
+        }
+    }
+
+    void hitSplit(int parts) {
+        splitHits.increment();
+        for (TrackerMetricsListener listener : listeners) {
+            listener.hitSplit(parts);
+        }
+    }
+
+    void hitRateLimited(boolean global) {
+        rateLimitedHits.increment();
+        if (global) {
+            globallyRateLimitedHits.increment();
+        }
+        for (TrackerMetricsListener listener : listeners) {
+            listener.hitRateLimited(global);
+        }
+    }
+
+    void navigationTimed(Class<?> navigationTarget, long nanos) {
+        navigationLatency.record(nanos);
+        LatencyHistogram histogram = routeNavigationLatency.get(navigationTarget);
+        if (histogram == null) {
+            histogram = routeNavigationLatency.computeIfAbsent(navigationTarget, type -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+        for (TrackerMetricsListener listener : listeners) {
+            listener.navigationTimed(navigationTarget, nanos);
+        }
+    }
+
+    /**
+     * Gets the number of measured navigations to a navigation target.
+     * 
+     * @see TrackerConfiguration#setNavigationTiming(boolean)
+     * 
+     * @param navigationTarget
+     *            the navigation target class, not <code>null</code>
+     * @return the number of measured navigations
+     */
+    public long getNavigationCount(Class<?> navigationTarget) {
+        LatencyHistogram histogram = routeNavigationLatency.get(navigationTarget);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    /**
+     * Gets the mean server-side duration of navigations to a navigation
+     * target.
+     * 
+     * @see TrackerConfiguration#setNavigationTiming(boolean)
+     * 
+     * @param navigationTarget
+     *            the navigation target class, not <code>null</code>
+     * @return the mean duration in microseconds, or 0 if no navigations have
+     *         been measured
+     */
+    public double getNavigationMeanMicros(Class<?> navigationTarget) {
+        LatencyHistogram histogram = routeNavigationLatency.get(navigationTarget);
+        return histogram == null ? 0 : toMicros(histogram.getMeanNanos());
+    }
+
+    /**
+     * Gets an upper bound for a percentile of the server-side duration of
+     * navigations to a navigation target.
+     * 
+     * @see TrackerConfiguration#setNavigationTiming(boolean)
+     * 
+     * @param navigationTarget
+     *            the navigation target class, not <code>null</code>
+     * @param percentile
+     *            the percentile to get, between 0 and 100
+     * @return the duration in microseconds, or 0 if no navigations have been
+     *         measured
+     */
+    public long getNavigationPercentileMicros(Class<?> navigationTarget, double percentile) {
+        LatencyHistogram histogram = routeNavigationLatency.get(navigationTarget);
+        return histogram == null ? 0 : histogram.getPercentileNanos(percentile) / 1000;
+    }
+
+    /**
+     * Gets the number of navigation targets for which navigations have been
+     * timed.
+     * 
+     * @return the number of timed navigation targets
+     */
+    int getTimedNavigationTargetCount() {
+        return routeNavigationLatency.size();
+    }
+
+    private static double toMicros(double nanos) {
+        return nanos / 1000;
+    }
+
+    @Override
+    public long getPageViewCount() {
+        return pageViews.sum();
+    }
+
+    @Override
+    public long getEventCount() {
+        return events.sum();
+    }
+
+    @Override
+    public long getTimingCount() {
+        return timings.sum();
+    }
+
+    @Override
+    public long getOtherHitCount() {
+        return otherHits.sum();
+    }
+
+    @Override
+    public long getSentCommandCount() {
+        return sentCommands.sum();
+    }
+
+    @Override
+    public long getDroppedActionCount() {
+        return droppedActions.sum();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.sum();
+    }
+
+    @Override
+    public long getInitCount() {
+        return initLatency.getCount();
+    }
+
+    @Override
+    public long getFailedInitCount() {
+        return failedInits.sum();
+    }
+
+    @Override
+    public long getIgnoredNavigationCount() {
+        return ignoredNavigations.sum();
+    }
+
+    @Override
+    public long getSampledOutPageViewCount() {
+        return sampledOutPageViews.sum();
+    }
+
+    @Override
+    public long getRejectedHitCount() {
+        return rejectedHits.sum();
+    }
+
+    @Override
+    public long getSplitHitCount() {
+        return splitHits.sum();
+    }
+
+    @Override
+    public long getRateLimitedHitCount() {
+        return rateLimitedHits.sum();
+    }
+
+    @Override
+    public long getGloballyRateLimitedHitCount() {
+        return globallyRateLimitedHits.sum();
+    }
+
+    @Override
+    public double getInitMeanMicros() {
+        return toMicros(initLatency.getMeanNanos());
+    }
+
+    @Override
+    public long getInitP99Micros() {
+        return initLatency.getPercentileNanos(99) / 1000;
+    }
+
+    @Override
+    public double getConfigurationCreateMeanMicros() {
+        return toMicros(configurationLatency.getMeanNanos());
+    }
+
+    @Override
+    public long getDrainCount() {
+        return drainLatency.getCount();
+    }
+
+    @Override
+    public double getDrainMeanMicros() {
+        return toMicros(drainLatency.getMeanNanos());
+    }
+
+    @Override
+    public long getDrainP99Micros() {
+        return drainLatency.getPercentileNanos(99) / 1000;
+    }
+
+    @Override
+    public long getNavigationCount() {
+        return navigationLatency.getCount();
+    }
+
+    @Override
+    public double getNavigationMeanMicros() {
+        return toMicros(navigationLatency.getMeanNanos());
+    }
+
+    @Override
+    public long getNavigationP99Micros() {
+        return navigationLatency.getPercentileNanos(99) / 1000;
+    }
+
+    @Override
+    public void reset() {
+        pageViews.reset();
+        events.reset();
+        timings.reset();
+        otherHits.reset();
+        sentCommands.reset();
+        droppedActions.reset();
+        failedInits.reset();
+        ignoredNavigations.reset();
+        sampledOutPageViews.reset();
+        rejectedHits.reset();
+        splitHits.reset();
+        rateLimitedHits.reset();
+        globallyRateLimitedHits.reset();
+        initLatency.reset();
+        configurationLatency.reset();
+        drainLatency.reset();
+        navigationLatency.reset();
+        routeNavigationLatency.values().forEach(LatencyHistogram::reset);
+    }
+}
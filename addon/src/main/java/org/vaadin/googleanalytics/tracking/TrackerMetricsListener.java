@@ -0,0 +1,141 @@
+package org.vaadin.googleanalytics.tracking;
+
+/**
+ * Receives tracker metrics as they are recorded, e.g. to forward them to an
+ * application's own metrics library. Implementations are discovered through
+ * {@link java.util.ServiceLoader} from
+ * <code>META-INF/services/org.vaadin.googleanalytics.tracking.TrackerMetricsListener</code>,
+ * or can be added through {@link TrackerMetrics#addListener(TrackerMetricsListener)}.
+ * <p>
+ * Methods are run on request threads, often with a session locked, so they
+ * should return quickly and must be thread safe. All methods have empty
+ * default implementations.
+ */
+public interface TrackerMetricsListener {
+    /**
+     * Called when a command is handed to the transport.
+     * 
+     * @param hitType
+     *            the hit type of a <code>send</code> command, e.g.
+     *            <code>pageview</code> or <code>event</code>, or
+     *            <code>null</code> for other commands
+     */
+    default void commandSent(String hitType) {
+        // Ignored by default
+    }
+
+    /**
+     * Called when queued actions are dropped.
+     * 
+     * @param count
+     *            the number of dropped actions
+     */
+    default void actionsDropped(int count) {
+        // Ignored by default
+    }
+
+    /**
+     * Called when the total number of queued actions changes.
+     * 
+     * @param delta
+     *            the change in the number of queued actions
+     */
+    default void queueDepthChanged(int delta) {
+        // Ignored by default
+    }
+
+    /**
+     * Called when a tracker has been initialized or has failed to initialize.
+     * 
+     * @param nanos
+     *            the time spent initializing in nanoseconds
+     * @param success
+     *            <code>true</code> if the tracker was initialized,
+     *            <code>false</code> if initialization failed
+     */
+    default void initialized(long nanos, boolean success) {
+        // Ignored by default
+    }
+
+    /**
+     * Called when a tracker configuration has been created.
+     * 
+     * @param nanos
+     *            the time spent creating the configuration in nanoseconds
+     */
+    default void configurationCreated(long nanos) {
+        // Ignored by default
+    }
+
+    /**
+     * Called when queued actions have been handed to the transport.
+     * 
+     * @param nanos
+     *            the time spent draining the queue in nanoseconds
+     * @param commandCount
+     *            the number of commands that were sent
+     */
+    default void drained(long nanos, int commandCount) {
+        // Ignored by default
+    }
+
+    /**
+     * Called when a navigation doesn't result in an automatic page view
+     * because tracking is not enabled for it.
+     */
+    default void navigationIgnored() {
+        // Ignored by default
+    }
+
+    /**
+     * Called when the automatic page view of a tracked navigation is not sent
+     * because the session is sampled out.
+     */
+    default void pageViewSampledOut() {
+        // Ignored by default
+    }
+
+    /**
+     * Called when a hit is not sent because its estimated size exceeds the
+     * configured limit and it cannot be split.
+     * 
+     * @param estimatedBytes
+     *            the estimated size of the hit in bytes
+     */
+    default void hitRejected(int estimatedBytes) {
+        // Ignored by default
+    }
+
+    /**
+     * Called when an oversized hit has been split into several hits.
+     * 
+     * @param parts
+     *            the number of hits that are sent instead
+     */
+    default void hitSplit(int parts) {
+        // Ignored by default
+    }
+
+    /**
+     * Called when a hit is dropped because of rate limiting.
+     * 
+     * @param global
+     *            <code>true</code> if the global limit was exceeded,
+     *            <code>false</code> if the limit of the UI was exceeded
+     */
+    default void hitRateLimited(boolean global) {
+        // Ignored by default
+    }
+
+    /**
+     * Called when the server-side duration of a navigation has been measured.
+     * 
+     * @param navigationTarget
+     *            the navigation target class, not <code>null</code>
+     * @param nanos
+     *            the duration of the navigation in nanoseconds
+     */
+    default void navigationTimed(Class<?> navigationTarget, long nanos) {
+        // Ignored by default
+    }
+}
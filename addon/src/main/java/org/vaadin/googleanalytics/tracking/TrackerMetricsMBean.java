@@ -0,0 +1,60 @@
+package org.vaadin.googleanalytics.tracking;
+
+/**
+ * JMX management interface for {@link TrackerMetrics}. Durations are reported
+ * in microseconds.
+ */
+public interface TrackerMetricsMBean {
+    long getPageViewCount();
+
+    long getEventCount();
+
+    long getTimingCount();
+
+    long getOtherHitCount();
+
+    long getSentCommandCount();
+
+    long getDroppedActionCount();
+
+    long getQueueDepth();
+
+    long getInitCount();
+
+    long getFailedInitCount();
+
+    long getIgnoredNavigationCount();
+
+    long getSampledOutPageViewCount();
+
+    long getRejectedHitCount();
+
+    long getSplitHitCount();
+
+    long getRateLimitedHitCount();
+
+    long getGloballyRateLimitedHitCount();
+
+    double getInitMeanMicros();
+
+    long getInitP99Micros();
+
+    double getConfigurationCreateMeanMicros();
+
+    long getDrainCount();
+
+    double getDrainMeanMicros();
+
+    long getDrainP99Micros();
+
+    long getNavigationCount();
+
+    double getNavigationMeanMicros();
+
+    long getNavigationP99Micros();
+
+    /**
+     * Resets all counters and histograms, except the queue depth.
+     */
+    void reset();
+}
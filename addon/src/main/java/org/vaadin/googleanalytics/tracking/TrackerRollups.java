@@ -0,0 +1,304 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+
+/**
+ * In-memory per minute rollups of the commands sent by all trackers in the
+ * JVM, for a live local view of traffic that doesn't depend on Google
+ * Analytics. Rollups are only collected while enabled by an installed
+ * {@link RollupHandler}.
+ * <p>
+ * The rollups are kept in a fixed ring of minute buckets that are replaced
+ * with compare-and-set as time passes, and every counter is striped. Each
+ * bucket keeps at most {@link #MAX_KEYS} page locations and event keys, and
+ * counts anything beyond that as {@link #OTHER}, so memory stays bounded
+ * however many distinct values are sent.
+ */
+final class TrackerRollups {
+    /**
+     * The number of minutes that are kept.
+     */
+    static final int MINUTES = 60;
+
+    /**
+     * The maximum number of distinct page locations and distinct event keys
+     * per minute.
+     */
+    static final int MAX_KEYS = 500;
+
+    /**
+     * Keys are truncated to this length.
+     */
+    static final int MAX_KEY_LENGTH = 200;
+
+    /**
+     * The key that values are counted under once a bucket is full.
+     */
+    static final String OTHER = "(other)";
+
+    private static final String UNKNOWN_PAGE = "(unknown)";
+
+    /**
+     * Separates the category and action in event keys.
+     */
+    private static final char EVENT_KEY_SEPARATOR = '\u001f';
+
+    private static final AtomicReferenceArray<Bucket> BUCKETS = new AtomicReferenceArray<>(MINUTES);
+
+    private static int registrations = 0;
+
+    private static volatile boolean enabled = false;
+
+    /**
+     * The rollups of one minute.
+     */
+    static final class Bucket {
+        private final long minute;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder activeUis = new LongAdder();
+        private final ConcurrentHashMap<String, LongAdder> pageViews = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, LongAdder> events = new ConcurrentHashMap<>();
+
+        private Bucket(long minute) {
+            this.minute = minute;
+        }
+
+        long getMinute() {
+            return minute;
+        }
+
+        /**
+         * Counts a UI that sends commands during this minute. Each tracker
+         * only calls this once per minute.
+         */
+        void uiActive() {
+            activeUis.increment();
+        }
+
+        /**
+         * Counts one command.
+         * 
+         * @param action
+         *            the command, not <code>null</code>
+         * @param page
+         *            the page location most recently set by the same tracker,
+         *            or <code>null</code> if not known
+         * @return the page location after the command
+         */
+        String record(Serializable[] action, String page) {
+            if (action.length < 2) {
+                return page;
+            }
+            Serializable command = action[0];
+            if ("set".equals(command)) {
+                if ("page".equals(action[1]) && action.length > 2 && action[2] instanceof String) {
+                    return (String) action[2];
+                }
+                return page;
+            }
+            if (!"send".equals(command)) {
+                return page;
+            }
+
+            hits.increment();
+            Serializable hitType = action[1];
+            JsonObject fields = action[action.length - 1] instanceof JsonObject
+                    ? (JsonObject) action[action.length - 1]
+                    : null;
+            if ("pageview".equals(hitType)) {
+                String location = getString(fields, "page");
+                if (location == null) {
+                    location = action.length > 2 && action[2] instanceof String ? (String) action[2] : page;
+                }
+                increment(pageViews, location == null ? UNKNOWN_PAGE : location);
+            } else if ("event".equals(hitType)) {
+                String category = action.length > 2 && action[2] instanceof String ? (String) action[2]
+                        : getString(fields, "eventCategory");
+                String eventAction = action.length > 3 && action[3] instanceof String ? (String) action[3]
+                        : getString(fields, "eventAction");
+                if (category != null && eventAction != null) {
+                    increment(events, truncate(category) + EVENT_KEY_SEPARATOR + truncate(eventAction));
+                }
+            }
+            return page;
+        }
+    }
+
+    private TrackerRollups() {
+        // Only static helpers
+    }
+
+    /**
+     * Starts collecting rollups. Registrations are counted so that collecting
+     * only stops when the last service using the rollups is destroyed.
+     */
+    static synchronized void enable() {
+        registrations++;
+        enabled = true;
+    }
+
+    /**
+     * Stops collecting rollups and discards them when the last registration
+     * is released.
+     */
+    static synchronized void disable() {
+        if (registrations == 0 || --registrations > 0) {
+            return;
+        }
+        enabled = false;
+        for (int i = 0; i < MINUTES; i++) {
+            BUCKETS.set(i, null);
+        }
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    private static long currentMinute() {
+        return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+    /**
+     * Gets the bucket of the current minute, replacing the bucket of the same
+     * slot in the ring if it is from an earlier minute.
+     * 
+     * @return the current bucket, not <code>null</code>
+     */
+    static Bucket getCurrentBucket() {
+        return getBucket(currentMinute());
+    }
+
+    /**
+     * Gets the bucket of a minute, replacing the bucket of the same slot in
+     * the ring if it is from an earlier minute.
+     * 
+     * @param minute
+     *            the minute since the epoch
+     * @return the bucket of the minute, or a newer bucket of the same slot,
+     *         not <code>null</code>
+     */
+    static Bucket getBucket(long minute) {
+        int index = (int) (minute % MINUTES);
+        Bucket bucket = BUCKETS.get(index);
+        while (bucket == null || bucket.minute < minute) {
+            Bucket fresh = new Bucket(minute);
+            if (BUCKETS.compareAndSet(index, bucket, fresh)) {
+                return fresh;
+            }
+            bucket = BUCKETS.get(index);
+        }
+        // A thread that read the clock earlier may see a newer bucket
+        return bucket;
+    }
+
+    private static void increment(ConcurrentHashMap<String, LongAdder> counters, String key) {
+        String truncated = truncate(key);
+        LongAdder counter = counters.get(truncated);
+        if (counter == null) {
+            // Concurrent inserts may go slightly over the limit
+            String bounded = counters.size() >= MAX_KEYS ? OTHER : truncated;
+            counter = counters.computeIfAbsent(bounded, ignore -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    private static String truncate(String key) {
+        return key.length() > MAX_KEY_LENGTH ? key.substring(0, MAX_KEY_LENGTH) : key;
+    }
+
+    private static String getString(JsonObject fields, String name) {
+        if (fields == null || !fields.hasKey(name)) {
+            return null;
+        }
+        return fields.get(name).asString();
+    }
+
+    /**
+     * Creates a JSON snapshot of the rollups of the given number of most
+     * recent minutes, including the current minute. Page views and events are
+     * summed over the whole period, while hits and active UIs are listed per
+     * minute.
+     * 
+     * @param minutes
+     *            the number of minutes to include, between 1 and
+     *            {@link #MINUTES}
+     * @return the snapshot, not <code>null</code>
+     */
+    static JsonObject toJson(int minutes) {
+        return toJson(currentMinute(), minutes);
+    }
+
+    /**
+     * Creates a JSON snapshot of the rollups of the given number of minutes
+     * up to and including the given minute.
+     * 
+     * @param current
+     *            the last minute to include, as minutes since the epoch
+     * @param minutes
+     *            the number of minutes to include, between 1 and
+     *            {@link #MINUTES}
+     * @return the snapshot, not <code>null</code>
+     */
+    static JsonObject toJson(long current, int minutes) {
+        Map<String, Long> pageViews = new TreeMap<>();
+        Map<String, Long> events = new TreeMap<>();
+        JsonArray series = Json.createArray();
+
+        for (long minute = current - minutes + 1; minute <= current; minute++) {
+            Bucket bucket = BUCKETS.get((int) (minute % MINUTES));
+            JsonObject entry = Json.createObject();
+            entry.put("minute", TimeUnit.MINUTES.toMillis(minute));
+            if (bucket != null && bucket.minute == minute) {
+                entry.put("hits", bucket.hits.sum());
+                entry.put("activeUis", bucket.activeUis.sum());
+                sum(bucket.pageViews, pageViews);
+                sum(bucket.events, events);
+            } else {
+                entry.put("hits", 0);
+                entry.put("activeUis", 0);
+            }
+            series.set(series.length(), entry);
+        }
+
+        JsonObject pageViewJson = Json.createObject();
+        for (Entry<String, Long> pageView : pageViews.entrySet()) {
+            pageViewJson.put(pageView.getKey(), pageView.getValue().longValue());
+        }
+
+        JsonObject eventJson = Json.createObject();
+        for (Entry<String, Long> event : events.entrySet()) {
+            String key = event.getKey();
+            int separator = key.indexOf(EVENT_KEY_SEPARATOR);
+            String category = separator < 0 ? key : key.substring(0, separator);
+            String action = separator < 0 ? OTHER : key.substring(separator + 1);
+
+            if (!eventJson.hasKey(category)) {
+                eventJson.put(category, Json.createObject());
+            }
+            JsonObject actions = eventJson.get(category);
+            actions.put(action, event.getValue().longValue());
+        }
+
+        JsonObject json = Json.createObject();
+        json.put("minutes", series);
+        json.put("pageViews", pageViewJson);
+        json.put("events", eventJson);
+        return json;
+    }
+
+    private static void sum(ConcurrentHashMap<String, LongAdder> counters, Map<String, Long> totals) {
+        counters.forEach((key, counter) -> totals.merge(key, Long.valueOf(counter.sum()), Long::sum));
+    }
+}
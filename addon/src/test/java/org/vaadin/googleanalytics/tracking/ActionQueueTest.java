@@ -0,0 +1,172 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.vaadin.googleanalytics.tracking.GoogleAnalyticsTracker.OverflowPolicy;
+
+import com.vaadin.flow.component.UI;
+
+public class ActionQueueTest {
+    private static final Serializable[] CREATE = { "create", "UA-000000-0", "auto" };
+    private static final Serializable[] SET_INITIAL = { "set", "anonymizeIp", Boolean.TRUE };
+
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private static Serializable[] event(String action) {
+        return new Serializable[] { "send", "event", "Category", action };
+    }
+
+    private static Serializable[] page(String location) {
+        return new Serializable[] { "set", "page", location };
+    }
+
+    private static Serializable[] pageView() {
+        return new Serializable[] { "send", "pageview" };
+    }
+
+    private static List<String> describe(ActionQueue queue) {
+        List<String> descriptions = new ArrayList<>();
+        for (Serializable[] action : queue) {
+            descriptions.add(String.valueOf(action[action.length - 1]));
+        }
+        return descriptions;
+    }
+
+    private static ActionQueue createFullQueue(OverflowPolicy overflowPolicy) {
+        ActionQueue queue = new ActionQueue(2, overflowPolicy);
+        Assert.assertEquals(0, queue.offer(event("first")));
+        Assert.assertEquals(0, queue.offer(event("second")));
+        queue.addAllFirst(new Serializable[][] { CREATE, SET_INITIAL });
+        return queue;
+    }
+
+    @Test
+    public void dropOldest_bootstrapCommandsKept() {
+        ActionQueue queue = createFullQueue(OverflowPolicy.DROP_OLDEST);
+
+        Assert.assertEquals(1, queue.offer(event("third")));
+
+        Assert.assertSame(CREATE, queue.get(0));
+        Assert.assertSame(SET_INITIAL, queue.get(1));
+        Assert.assertEquals("[auto, true, second, third]", describe(queue).toString());
+    }
+
+    @Test
+    public void dropNewest_bootstrapCommandsKept() {
+        ActionQueue queue = createFullQueue(OverflowPolicy.DROP_NEWEST);
+
+        Assert.assertEquals(1, queue.offer(event("third")));
+
+        Assert.assertEquals("[auto, true, first, second]", describe(queue).toString());
+    }
+
+    @Test
+    public void dropEvents_noEventsQueued_bootstrapCommandsKept() {
+        ActionQueue queue = new ActionQueue(2, OverflowPolicy.DROP_EVENTS_KEEP_PAGEVIEWS);
+        queue.offer(page("a"));
+        queue.offer(pageView());
+        queue.addAllFirst(new Serializable[][] { CREATE });
+
+        Assert.assertEquals(1, queue.offer(event("event")));
+
+        Assert.assertSame(CREATE, queue.get(0));
+        Assert.assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void dropEvents_eventsQueued_oldestEventDropped() {
+        ActionQueue queue = createFullQueue(OverflowPolicy.DROP_EVENTS_KEEP_PAGEVIEWS);
+
+        Assert.assertEquals(1, queue.offer(page("a")));
+
+        Assert.assertEquals("[auto, true, second, a]", describe(queue).toString());
+    }
+
+    @Test
+    public void dropEvents_onlyPageViews_oldestPageViewDroppedAsUnit() {
+        ActionQueue queue = new ActionQueue(4, OverflowPolicy.DROP_EVENTS_KEEP_PAGEVIEWS);
+        queue.offer(page("a"));
+        queue.offer(pageView());
+        queue.offer(page("b"));
+        queue.offer(pageView());
+
+        Assert.assertEquals(2, queue.offer(page("c")));
+        Assert.assertEquals(0, queue.offer(pageView()));
+
+        Assert.assertEquals("[b, pageview, c, pageview]", describe(queue).toString());
+    }
+
+    @Test
+    public void dropOldest_oldestPageViewDroppedAsUnit() {
+        ActionQueue queue = new ActionQueue(3, OverflowPolicy.DROP_OLDEST);
+        queue.offer(page("a"));
+        queue.offer(pageView());
+        queue.offer(event("event"));
+
+        Assert.assertEquals(2, queue.offer(event("other")));
+
+        Assert.assertEquals("[event, other]", describe(queue).toString());
+    }
+
+    @Test
+    public void dropNewest_pageViewDroppedWithItsLocation() {
+        ActionQueue queue = new ActionQueue(2, OverflowPolicy.DROP_NEWEST);
+        queue.offer(event("event"));
+        queue.offer(page("a"));
+
+        Assert.assertEquals(2, queue.offer(pageView()));
+
+        Assert.assertEquals("[event]", describe(queue).toString());
+    }
+
+    @Test
+    public void pageViewLargerThanCapacity_droppedWithItsLocation() {
+        for (OverflowPolicy overflowPolicy : OverflowPolicy.values()) {
+            ActionQueue queue = new ActionQueue(1, overflowPolicy);
+            queue.addAllFirst(new Serializable[][] { CREATE });
+            queue.offer(page("a"));
+
+            Assert.assertEquals(overflowPolicy.name(), 2, queue.offer(pageView()));
+            Assert.assertEquals(overflowPolicy.name(), 1, queue.size());
+            Assert.assertSame(overflowPolicy.name(), CREATE, queue.get(0));
+        }
+    }
+
+    @Test
+    public void clear_pinnedActionsReleased() {
+        ActionQueue queue = createFullQueue(OverflowPolicy.DROP_OLDEST);
+        queue.clear();
+
+        queue.offer(event("first"));
+        queue.offer(event("second"));
+        Assert.assertEquals(1, queue.offer(event("third")));
+        Assert.assertEquals("[second, third]", describe(queue).toString());
+    }
+
+    @Test
+    public void trackerAtCapacity_bootstrapCommandsSentWithEveryPolicy() {
+        for (OverflowPolicy overflowPolicy : OverflowPolicy.values()) {
+            uis.configure(config -> config.setRateLimit(1, 2).setRateLimitSummaryEvent("Tracker", "limited"));
+            UI ui = uis.createUI();
+            GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(ui);
+            tracker.setMaxPendingActions(2);
+            tracker.setOverflowPolicy(overflowPolicy);
+
+            // Fills the queue, and the summary is queued after initializing
+            for (int i = 0; i < 5; i++) {
+                tracker.sendEvent("Category", "Action");
+            }
+            TestUIs.drain(ui);
+
+            List<Serializable[]> commands = uis.getTransport().getCommands();
+            Assert.assertEquals(overflowPolicy.name(), "create", commands.get(0)[0]);
+            Assert.assertEquals(overflowPolicy.name(), 3, commands.size());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+import com.vaadin.flow.component.UI;
+
+/**
+ * Checks that queueing commands through the tracker stays within a per call
+ * allocation budget. Draining is not included since it depends on the
+ * transport. The budgets leave room for the command arrays and little else.
+ */
+public class AllocationBudgetTest {
+    private static final long SEND_EVENT_BUDGET = 96;
+    private static final long SEND_PAGE_VIEW_BUDGET = 128;
+
+    private static final int CALLS_PER_DRAIN = 10;
+    private static final int WARMUP_ROUNDS = 5000;
+    private static final int MEASURED_ROUNDS = 1000;
+
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private ThreadMXBean threads;
+    private UI ui;
+    private GoogleAnalyticsTracker tracker;
+
+    @Before
+    public void setup() {
+        java.lang.management.ThreadMXBean platformThreads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(platformThreads instanceof ThreadMXBean);
+        threads = (ThreadMXBean) platformThreads;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.sendPageView("setup");
+        TestUIs.drain(ui);
+    }
+
+    private long measure(Runnable call) {
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (int j = 0; j < CALLS_PER_DRAIN; j++) {
+                call.run();
+            }
+            TestUIs.drain(ui);
+        }
+
+        long allocated = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = threads.getThreadAllocatedBytes(threadId);
+            for (int j = 0; j < CALLS_PER_DRAIN; j++) {
+                call.run();
+            }
+            allocated += threads.getThreadAllocatedBytes(threadId) - start;
+            TestUIs.drain(ui);
+        }
+        return allocated / (MEASURED_ROUNDS * CALLS_PER_DRAIN);
+    }
+
+    @Test
+    public void sendEvent_withinBudget() {
+        long perCall = measure(() -> tracker.sendEvent("Category", "Action", "Label"));
+        Assert.assertTrue(perCall + " bytes per call", perCall <= SEND_EVENT_BUDGET);
+    }
+
+    @Test
+    public void sendPageView_withinBudget() {
+        long perCall = measure(() -> tracker.sendPageView("view"));
+        Assert.assertTrue(perCall + " bytes per call", perCall <= SEND_PAGE_VIEW_BUDGET);
+    }
+}
@@ -0,0 +1,191 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinResponse;
+
+public class AnalyticsScriptHandlerTest {
+    private static final String SCRIPT = "(function(){window.analytics=true;})();";
+
+    private HttpServer upstream;
+    private final List<String> conditionalRequests = new CopyOnWriteArrayList<>();
+    private AnalyticsScriptHandler handler;
+
+    private int status;
+    private final Map<String, String> headers = new HashMap<>();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    @Before
+    public void setup() throws IOException {
+        upstream = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        upstream.createContext("/analytics.js", this::serveUpstream);
+        upstream.start();
+
+        InetSocketAddress address = upstream.getAddress();
+        handler = new AnalyticsScriptHandler().setUpstreamUrl(
+                "http://" + address.getHostString() + ":" + address.getPort() + "/analytics.js");
+    }
+
+    @After
+    public void stopUpstream() {
+        upstream.stop(0);
+    }
+
+    private void serveUpstream(HttpExchange exchange) throws IOException {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if ("\"upstream\"".equals(ifNoneMatch)) {
+            conditionalRequests.add(ifNoneMatch);
+            exchange.sendResponseHeaders(304, -1);
+        } else {
+            byte[] bytes = SCRIPT.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("ETag", "\"upstream\"");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        exchange.close();
+    }
+
+    private static VaadinRequest createRequest(Map<String, String> requestHeaders, String version) {
+        return (VaadinRequest) Proxy.newProxyInstance(AnalyticsScriptHandlerTest.class.getClassLoader(),
+                new Class<?>[] { VaadinRequest.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getPathInfo":
+                        return "/" + AnalyticsScriptHandler.PATH;
+                    case "getHeader":
+                        return requestHeaders.get(args[0]);
+                    case "getParameter":
+                        return "v".equals(args[0]) ? version : null;
+                    case "getMethod":
+                        return "GET";
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    private VaadinResponse createResponse() {
+        status = 0;
+        headers.clear();
+        body.reset();
+        return (VaadinResponse) Proxy.newProxyInstance(AnalyticsScriptHandlerTest.class.getClassLoader(),
+                new Class<?>[] { VaadinResponse.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "setStatus":
+                    case "sendError":
+                        status = ((Integer) args[0]).intValue();
+                        return null;
+                    case "setHeader":
+                        headers.put((String) args[0], (String) args[1]);
+                        return null;
+                    case "getOutputStream":
+                        return body;
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    private void request(Map<String, String> requestHeaders, String version) throws IOException {
+        Assert.assertTrue(handler.handleRequest(null, createRequest(requestHeaders, version), createResponse()));
+    }
+
+    private static String gunzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void notLoaded_notFound() throws IOException {
+        request(new HashMap<>(), null);
+        Assert.assertEquals(404, status);
+    }
+
+    @Test
+    public void otherPath_notHandled() throws IOException {
+        VaadinRequest request = (VaadinRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { VaadinRequest.class },
+                (proxy, method, args) -> "getPathInfo".equals(method.getName()) ? "/other" : null);
+        Assert.assertFalse(handler.handleRequest(null, request, createResponse()));
+    }
+
+    @Test
+    public void gzipAccepted_compressedVariantServed() throws IOException {
+        handler.refresh();
+        Map<String, String> requestHeaders = new HashMap<>();
+        requestHeaders.put("Accept-Encoding", "br;q=0, gzip");
+        request(requestHeaders, null);
+
+        Assert.assertEquals(200, status);
+        Assert.assertEquals("gzip", headers.get("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", headers.get("Vary"));
+        Assert.assertTrue(headers.get("ETag"), headers.get("ETag").endsWith("-gzip\""));
+        Assert.assertEquals(SCRIPT, gunzip(body.toByteArray()));
+    }
+
+    @Test
+    public void matchingETag_notModified() throws IOException {
+        handler.refresh();
+        request(new HashMap<>(), null);
+        String etag = headers.get("ETag");
+        Assert.assertEquals(SCRIPT, new String(body.toByteArray(), StandardCharsets.UTF_8));
+
+        Map<String, String> requestHeaders = new HashMap<>();
+        requestHeaders.put("If-None-Match", etag);
+        request(requestHeaders, null);
+        Assert.assertEquals(304, status);
+        Assert.assertEquals(0, body.size());
+    }
+
+    @Test
+    public void currentVersion_cachedImmutably() throws IOException {
+        handler.refresh();
+        request(new HashMap<>(), null);
+        String version = headers.get("ETag").replace("\"", "");
+        Assert.assertEquals("public, max-age=600", headers.get("Cache-Control"));
+
+        request(new HashMap<>(), version);
+        Assert.assertTrue(headers.get("Cache-Control"), headers.get("Cache-Control").endsWith(", immutable"));
+    }
+
+    @Test
+    public void refresh_upstreamValidatorsSent() throws IOException {
+        handler.refresh();
+        request(new HashMap<>(), null);
+        String etag = headers.get("ETag");
+
+        handler.refresh();
+        Assert.assertEquals(1, conditionalRequests.size());
+        request(new HashMap<>(), null);
+        Assert.assertEquals(etag, headers.get("ETag"));
+    }
+}
@@ -0,0 +1,84 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.vaadin.flow.component.UI;
+
+public class BackgroundEnqueueTest {
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private UI ui;
+    private GoogleAnalyticsTracker tracker;
+
+    @Before
+    public void setup() {
+        uis.configure(config -> {
+        });
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.sendPageView("setup");
+        TestUIs.drain(ui);
+    }
+
+    private int getEventCount() {
+        return uis.getTransport().getHits("event").size();
+    }
+
+    /**
+     * Enqueues events from another thread while the session is locked by the
+     * test thread, and then releases the lock the way a request would.
+     */
+    private void enqueueWhileLocked(int count) throws InterruptedException {
+        Lock lock = ui.getSession().getLockInstance();
+        lock.lock();
+        try {
+            Thread background = new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    tracker.enqueueEvent("Background", "Action " + i, null);
+                }
+            });
+            background.start();
+            background.join(TimeUnit.SECONDS.toMillis(5));
+
+            Assert.assertFalse("Background thread blocked", background.isAlive());
+            Assert.assertEquals(0, getEventCount());
+        } finally {
+            // Runs the accesses that were scheduled meanwhile
+            ui.getSession().unlock();
+        }
+        TestUIs.drain(ui);
+    }
+
+    @Test
+    public void lockFree_sentWithNextResponse() throws InterruptedException {
+        Thread background = new Thread(() -> tracker.enqueuePageView("background"));
+        background.start();
+        background.join();
+        TestUIs.drain(ui);
+
+        Assert.assertEquals(2, uis.getTransport().getHits("pageview").size());
+    }
+
+    @Test
+    public void sessionLocked_callerNotBlocked() throws InterruptedException {
+        enqueueWhileLocked(3);
+
+        Assert.assertEquals(3, getEventCount());
+        Assert.assertEquals("Action 0", uis.getTransport().getHits("event").get(0)[3]);
+    }
+
+    @Test
+    public void sessionLocked_callsCappedAtQueueCapacity() throws InterruptedException {
+        tracker.setMaxPendingActions(5);
+        enqueueWhileLocked(8);
+
+        Assert.assertEquals(5, getEventCount());
+    }
+}
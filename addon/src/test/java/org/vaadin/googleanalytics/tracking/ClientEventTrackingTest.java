@@ -0,0 +1,104 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.vaadin.googleanalytics.tracking.TestUIs.OtherView;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.internal.UIInternals.JavaScriptInvocation;
+import com.vaadin.flow.dom.DomEvent;
+import com.vaadin.flow.internal.nodefeature.ElementListenerMap;
+import com.vaadin.flow.shared.Registration;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+
+public class ClientEventTrackingTest {
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    /**
+     * Runs what would happen when a response is written and returns the
+     * JavaScript invocations that install or uninstall tracking listeners.
+     */
+    private static List<JavaScriptInvocation> respond(UI ui) {
+        List<JavaScriptInvocation> invocations = new ArrayList<>();
+        Lock lock = ui.getSession().getLockInstance();
+        lock.lock();
+        try {
+            ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+            for (JavaScriptInvocation invocation : ui.getInternals().dumpPendingJavaScriptInvocations()) {
+                if (invocation.getExpression().contains("$gaTracking")) {
+                    invocations.add(invocation);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return invocations;
+    }
+
+    @Test
+    public void clientSideTransport_listenerInstalledInBrowser() {
+        uis.configure(config -> config.setTransport(new ClientSideTransport()));
+        UI ui = uis.createUI();
+        OtherView button = new OtherView();
+        ui.add(button);
+
+        GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(ui);
+        Registration registration = tracker.trackClientEvent(button, "click", "Category", "Click");
+        Assert.assertSame(registration, tracker.trackClientEvent(button, "click", "Category", "Click"));
+
+        List<JavaScriptInvocation> invocations = respond(ui);
+        Assert.assertEquals(1, invocations.size());
+        List<Object> parameters = invocations.get(0).getParameters();
+        Assert.assertEquals("click", parameters.get(2));
+        Assert.assertEquals("[\"send\",\"event\",\"Category\",\"Click\"]", ((JsonArray) parameters.get(3)).toJson());
+        Assert.assertTrue(respond(ui).isEmpty());
+
+        registration.remove();
+        invocations = respond(ui);
+        Assert.assertEquals(1, invocations.size());
+        Assert.assertTrue(invocations.get(0).getExpression().contains("removeEventListener"));
+    }
+
+    @Test
+    public void serverSideTransport_eventSentFromServer() {
+        uis.configure(config -> {
+        });
+        UI ui = uis.createUI();
+        OtherView button = new OtherView();
+        ui.add(button);
+
+        GoogleAnalyticsTracker.get(ui).trackClientEvent(button, "click", "Category", "Click", "Label");
+        TestUIs.drain(ui);
+        Assert.assertTrue(uis.getTransport().getHits("event").isEmpty());
+
+        button.getElement().getNode().getFeature(ElementListenerMap.class)
+                .fireEvent(new DomEvent(button.getElement(), "click", Json.createObject()));
+        TestUIs.drain(ui);
+
+        List<Serializable[]> hits = uis.getTransport().getHits("event");
+        Assert.assertEquals(1, hits.size());
+        Assert.assertEquals("Label", hits.get(0)[4]);
+    }
+
+    @Test
+    public void noActiveRoute_installPostponed() {
+        uis.configure(config -> config.setTransport(new ClientSideTransport()));
+        UI ui = uis.createUI();
+        UI empty = new UI();
+        empty.getInternals().setSession(ui.getSession());
+        OtherView button = new OtherView();
+        empty.add(button);
+
+        GoogleAnalyticsTracker.get(empty).trackClientEvent(button, "click", "Category", "Click");
+        Assert.assertTrue(respond(empty).isEmpty());
+    }
+}
@@ -0,0 +1,187 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.internal.UIInternals.JavaScriptInvocation;
+import com.vaadin.flow.internal.CurrentInstance;
+import com.vaadin.flow.server.VaadinRequest;
+
+import elemental.json.JsonArray;
+
+public class ClientSideTransportTest {
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private UI ui;
+    private GoogleAnalyticsTracker tracker;
+
+    @Before
+    public void setup() {
+        uis.configure(config -> config.setTransport(new ClientSideTransport()));
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+    }
+
+    /**
+     * Runs what would happen when a response is written and returns the
+     * dispatched command batches.
+     */
+    private List<JsonArray> respond() {
+        List<JsonArray> batches = new ArrayList<>();
+        Lock lock = ui.getSession().getLockInstance();
+        lock.lock();
+        try {
+            ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+            for (JavaScriptInvocation invocation : ui.getInternals().dumpPendingJavaScriptInvocations()) {
+                if (invocation.getExpression().startsWith("window.vaadinGaDispatch(")) {
+                    batches.add((JsonArray) invocation.getParameters().get(0));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return batches;
+    }
+
+    @Test
+    public void initAndActions_dispatchedInOneInvocation() {
+        tracker.sendPageView("first");
+        tracker.sendEvent("Category", "Action");
+
+        List<JsonArray> batches = respond();
+        Assert.assertEquals(1, batches.size());
+        JsonArray batch = batches.get(0);
+        Assert.assertEquals("create", batch.getArray(0).getString(0));
+        Assert.assertEquals("UA-000000-0", batch.getArray(0).getString(1));
+
+        JsonArray event = batch.getArray(batch.length() - 1);
+        Assert.assertEquals("[\"send\",\"event\",\"Category\",\"Action\"]", event.toJson());
+    }
+
+    @Test
+    public void laterResponses_onlyNewActionsDispatched() {
+        tracker.sendPageView("first");
+        respond();
+
+        tracker.sendEvent("Category", "First");
+        tracker.sendEvent("Category", "Second");
+        List<JsonArray> batches = respond();
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals(2, batches.get(0).length());
+
+        Assert.assertTrue(respond().isEmpty());
+    }
+
+    private static Document createBootstrapPage() {
+        return Jsoup.parse("<html><head><title>Test</title></head><body></body></html>");
+    }
+
+    @Test
+    public void injectIntoBootstrapPage_commandsInlinedInHead() {
+        uis.configure(config -> config.setTransport(new ClientSideTransport()).setInjectIntoBootstrapPage(true)
+                .setInitialValue("title", "</script>"));
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.startBootstrap();
+        tracker.sendPageView("first");
+
+        // The initial response only has the page view
+        List<JsonArray> batches = respond();
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals("[[\"set\",\"page\",\"first\"],[\"send\",\"pageview\"]]", batches.get(0).toJson());
+
+        Document page = createBootstrapPage();
+        tracker.injectIntoBootstrapPage(page);
+
+        Elements head = page.head().children();
+        Assert.assertEquals("link", head.get(0).tagName());
+        Assert.assertEquals("https://www.google-analytics.com", head.get(0).attr("href"));
+
+        String script = head.get(1).data();
+        Assert.assertTrue(script, script.contains("[\"create\",\"UA-000000-0\",\"auto\"]"));
+        Assert.assertTrue(script, script.contains("<\\/script>"));
+        Assert.assertFalse(script, script.contains("</script>"));
+
+        Element async = head.get(2);
+        Assert.assertEquals("https://www.google-analytics.com/analytics.js", async.attr("src"));
+        Assert.assertTrue(async.hasAttr("async"));
+
+        // Later responses don't initialize again
+        tracker.sendEvent("Category", "Action");
+        Assert.assertEquals("[[\"send\",\"event\",\"Category\",\"Action\"]]", respond().get(0).toJson());
+    }
+
+    /**
+     * Creates a request that only keeps its attributes.
+     */
+    private static VaadinRequest createRequest() {
+        Map<Object, Object> attributes = new HashMap<>();
+        return (VaadinRequest) Proxy.newProxyInstance(ClientSideTransportTest.class.getClassLoader(),
+                new Class<?>[] { VaadinRequest.class }, (proxy, method, args) -> {
+                    if ("setAttribute".equals(method.getName())) {
+                        attributes.put(args[0], args[1]);
+                        return null;
+                    }
+                    return "getAttribute".equals(method.getName()) ? attributes.get(args[0]) : null;
+                });
+    }
+
+    @Test
+    public void trackerCreatedInBootstrapRequest_commandsLeftForBootstrapPage() {
+        uis.configure(config -> config.setTransport(new ClientSideTransport()).setInjectIntoBootstrapPage(true));
+        ui = uis.createUI();
+        CurrentInstance.set(VaadinRequest.class, createRequest());
+        GoogleAnalyticsTracker.markBootstrapRequest(ui);
+
+        tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.sendPageView("first");
+        Assert.assertEquals("[[\"set\",\"page\",\"first\"],[\"send\",\"pageview\"]]", respond().get(0).toJson());
+
+        // Not marked for other UIs
+        UI other = uis.createUI();
+        GoogleAnalyticsTracker.get(other).sendPageView("first");
+        ui = other;
+        Assert.assertEquals("create", respond().get(0).getArray(0).getString(0));
+    }
+
+    @Test
+    public void injectIntoBootstrapPage_nothingTracked_injectedAnyway() {
+        uis.configure(config -> config.setTransport(new ClientSideTransport()).setInjectIntoBootstrapPage(true));
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.startBootstrap();
+        respond();
+
+        Document page = createBootstrapPage();
+        tracker.injectIntoBootstrapPage(page);
+
+        Assert.assertTrue(tracker.isInitialized());
+        Assert.assertEquals(3, page.head().select("link, script").size());
+    }
+
+    @Test
+    public void injectionDisabled_initializedInResponse() {
+        tracker.startBootstrap();
+        tracker.sendPageView("first");
+        Assert.assertEquals("create", respond().get(0).getArray(0).getString(0));
+
+        Document page = createBootstrapPage();
+        tracker.injectIntoBootstrapPage(page);
+        Assert.assertTrue(page.head().select("link, script").isEmpty());
+    }
+}
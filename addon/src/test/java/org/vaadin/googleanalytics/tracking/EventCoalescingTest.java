@@ -0,0 +1,104 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.vaadin.googleanalytics.tracking.GoogleAnalyticsTracker.EventCoalescing;
+import org.vaadin.googleanalytics.tracking.GoogleAnalyticsTracker.OverflowPolicy;
+
+import com.vaadin.flow.component.UI;
+
+public class EventCoalescingTest {
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private UI ui;
+    private GoogleAnalyticsTracker tracker;
+
+    @Before
+    public void setup() {
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+    }
+
+    private List<Serializable[]> getEvents(String category) {
+        List<Serializable[]> events = uis.getTransport().getHits("event");
+        events.removeIf(event -> !category.equals(event[2]));
+        return events;
+    }
+
+    @Test
+    public void windowElapsed_heldEventsSentWithoutFurtherCalls() throws InterruptedException {
+        tracker.setEventCoalescing(EventCoalescing.COUNT, 50);
+
+        tracker.sendEvent("Category", "Action", "Label");
+        tracker.sendEvent("Category", "Action", "Label");
+        TestUIs.drain(ui);
+        Assert.assertEquals(0, getEvents("Category").size());
+
+        // Merged after the first flush has already held the event back
+        tracker.sendEvent("Category", "Action", "Label");
+        TestUIs.drain(ui);
+
+        Assert.assertTrue(TestUIs.drainUntil(ui, () -> !getEvents("Category").isEmpty(), 5000));
+        List<Serializable[]> events = getEvents("Category");
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(Integer.valueOf(3), events.get(0)[5]);
+    }
+
+    @Test
+    public void windowElapsed_eventsHeldAgainAfterRelease() throws InterruptedException {
+        tracker.setEventCoalescing(EventCoalescing.COUNT, 20);
+
+        tracker.sendEvent("Category", "Action", "Label");
+        TestUIs.drain(ui);
+        Assert.assertTrue(TestUIs.drainUntil(ui, () -> getEvents("Category").size() == 1, 5000));
+
+        tracker.sendEvent("Category", "Action", "Label");
+        tracker.sendEvent("Category", "Action", "Label");
+        TestUIs.drain(ui);
+        Assert.assertEquals(1, getEvents("Category").size());
+
+        Assert.assertTrue(TestUIs.drainUntil(ui, () -> getEvents("Category").size() == 2, 5000));
+        Assert.assertEquals(Integer.valueOf(2), getEvents("Category").get(1)[5]);
+    }
+
+    @Test
+    public void noWindow_mergedInOneRoundTrip() {
+        tracker.setEventCoalescing(EventCoalescing.SUM);
+
+        tracker.sendEvent("Category", "Action", "Label", 2);
+        tracker.sendEvent("Category", "Action", "Label", 3);
+        TestUIs.drain(ui);
+
+        List<Serializable[]> events = getEvents("Category");
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(Integer.valueOf(5), events.get(0)[5]);
+    }
+
+    @Test
+    public void noWindow_queuedEventEvicted_mergedEventQueuedAgain() {
+        tracker.sendEvent("Init", "Init");
+        TestUIs.drain(ui);
+
+        tracker.setMaxPendingActions(2);
+        tracker.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        tracker.setEventCoalescing(EventCoalescing.COUNT);
+
+        tracker.sendEvent("Category", "Action", "Label");
+        tracker.sendEvent("Other", "First");
+        tracker.sendEvent("Other", "Second");
+        // The queued event has been evicted by now
+        tracker.sendEvent("Category", "Action", "Label");
+        TestUIs.drain(ui);
+
+        List<Serializable[]> events = getEvents("Category");
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(Integer.valueOf(2), events.get(0)[5]);
+        Assert.assertEquals(2, tracker.getDroppedActionCount());
+    }
+}
@@ -0,0 +1,126 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.vaadin.googleanalytics.tracking.GoogleAnalyticsTracker.FlushPolicy;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.internal.CurrentInstance;
+import com.vaadin.flow.server.VaadinRequest;
+
+public class FlushPolicyTest {
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private UI ui;
+    private GoogleAnalyticsTracker tracker;
+
+    @Before
+    public void setup() {
+        uis.configure(config -> {
+        });
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.sendPageView("setup");
+        TestUIs.drain(ui);
+    }
+
+    @After
+    public void clearRequest() {
+        CurrentInstance.clearAll();
+    }
+
+    /**
+     * Makes the current thread appear to handle a request from the client.
+     */
+    private static void startRequest() {
+        VaadinRequest request = (VaadinRequest) Proxy.newProxyInstance(FlushPolicyTest.class.getClassLoader(),
+                new Class<?>[] { VaadinRequest.class }, (proxy, method, args) -> null);
+        CurrentInstance.set(VaadinRequest.class, request);
+    }
+
+    private int getEventCount() {
+        return uis.getTransport().getHits("event").size();
+    }
+
+    /**
+     * Runs scheduled accesses and responds until an event has been sent.
+     */
+    private boolean awaitEvent() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (getEventCount() == 0) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(5);
+            Lock lock = ui.getSession().getLockInstance();
+            lock.lock();
+            // Runs the accesses that were scheduled meanwhile
+            ui.getSession().unlock();
+            TestUIs.drain(ui);
+        }
+        return true;
+    }
+
+    @Test
+    public void immediate_sentWithNextResponse() {
+        tracker.sendEvent("Category", "Background");
+        TestUIs.drain(ui);
+
+        Assert.assertEquals(1, getEventCount());
+    }
+
+    @Test
+    public void piggyback_heldUntilTrackerUsedInLaterRequest() {
+        tracker.setFlushPolicy(FlushPolicy.PIGGYBACK);
+        tracker.sendEvent("Category", "Background");
+        TestUIs.drain(ui);
+        Assert.assertEquals(0, getEventCount());
+
+        // A request that doesn't use the tracker doesn't send them either
+        startRequest();
+        TestUIs.drain(ui);
+        Assert.assertEquals(0, getEventCount());
+
+        tracker.sendEvent("Category", "Request");
+        TestUIs.drain(ui);
+        Assert.assertEquals(2, getEventCount());
+    }
+
+    @Test
+    public void delayed_pushedAfterDelay() throws InterruptedException {
+        tracker.setFlushPolicy(FlushPolicy.DELAYED, 50);
+        long start = System.nanoTime();
+        tracker.sendEvent("Category", "Background");
+        TestUIs.drain(ui);
+        Assert.assertEquals(0, getEventCount());
+
+        Assert.assertTrue(awaitEvent());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void scheduler_stoppedWhenLastServiceReleases() throws InterruptedException {
+        FlushScheduler.register();
+        FlushScheduler.register();
+        try {
+            tracker.setFlushPolicy(FlushPolicy.DELAYED, 50);
+            tracker.sendEvent("Category", "Background");
+
+            // Another service is destroyed while this one is still running
+            FlushScheduler.release();
+            Assert.assertTrue(FlushScheduler.isRunning());
+            Assert.assertTrue(awaitEvent());
+        } finally {
+            FlushScheduler.release();
+        }
+        Assert.assertFalse(FlushScheduler.isRunning());
+    }
+}
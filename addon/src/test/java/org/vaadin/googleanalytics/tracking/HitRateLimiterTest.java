@@ -0,0 +1,99 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.vaadin.flow.component.UI;
+
+import elemental.json.JsonObject;
+
+public class HitRateLimiterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    /**
+     * Acquires tokens at the same instant until one is rejected.
+     */
+    private static int acquireAll(HitRateLimiter.Limit limit, long now, boolean priority) {
+        long arrival = HitRateLimiter.REJECTED;
+        int acquired = 0;
+        while ((arrival = limit.acquire(arrival, now, priority)) != HitRateLimiter.REJECTED) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    @Test
+    public void burst_quarterReservedForPageViews() {
+        HitRateLimiter.Limit limit = new HitRateLimiter.Limit(1, 8);
+
+        Assert.assertEquals(8, acquireAll(limit, 0, true));
+        Assert.assertEquals(6, acquireAll(limit, 0, false));
+    }
+
+    @Test
+    public void emptyBucket_refilledAtRate() {
+        HitRateLimiter.Limit limit = new HitRateLimiter.Limit(2, 1);
+
+        long arrival = limit.acquire(HitRateLimiter.REJECTED, 0, true);
+        Assert.assertEquals(HitRateLimiter.REJECTED, limit.acquire(arrival, SECOND / 4, true));
+        Assert.assertTrue(limit.acquire(arrival, SECOND / 2, true) != HitRateLimiter.REJECTED);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroRate_rejected() {
+        new HitRateLimiter.Limit(0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroBurst_rejected() {
+        new HitRateLimiter.Limit(1, 0);
+    }
+
+    @Test
+    public void uiLimit_excessDroppedAndSummarized() {
+        uis.configure(config -> config.setRateLimit(0.001, 4).setRateLimitSummaryEvent("Tracker", "Limited"));
+        UI ui = uis.createUI();
+        GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(ui);
+        for (int i = 0; i < 10; i++) {
+            tracker.sendEvent("Category", "Action " + i);
+        }
+        TestUIs.drain(ui);
+
+        List<Serializable[]> events = uis.getTransport().getHits("event");
+        Assert.assertEquals(4, events.size());
+        Serializable[] summary = events.get(3);
+        Assert.assertEquals("Limited", summary[3]);
+        Assert.assertEquals(7, (int) ((JsonObject) summary[4]).getNumber("eventValue"));
+    }
+
+    @Test
+    public void globalLimit_sharedByAllUIs() {
+        uis.configure(config -> {
+        });
+        HitRateLimiter.global().setLimit(0.001, 4);
+        try {
+            for (int i = 0; i < 3; i++) {
+                UI ui = uis.createUI();
+                GoogleAnalyticsTracker.get(ui).sendPageView("view");
+                TestUIs.drain(ui);
+            }
+            UI ui = uis.createUI();
+            GoogleAnalyticsTracker.get(ui).sendEvent("Category", "Action");
+            GoogleAnalyticsTracker.get(ui).sendPageView("view");
+            TestUIs.drain(ui);
+        } finally {
+            HitRateLimiter.global().removeLimit();
+        }
+
+        Assert.assertEquals(4, uis.getTransport().getHits("pageview").size());
+        Assert.assertTrue(uis.getTransport().getHits("event").isEmpty());
+    }
+}
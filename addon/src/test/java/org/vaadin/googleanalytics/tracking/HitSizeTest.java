@@ -0,0 +1,128 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.vaadin.flow.component.UI;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+
+public class HitSizeTest {
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private static Serializable[] createEvent(JsonObject fields) {
+        return new Serializable[] { "send", "event", "Category", "Action", fields };
+    }
+
+    private static JsonObject createFields(String name, String value) {
+        JsonObject fields = Json.createObject();
+        fields.put("other", "kept");
+        fields.put(name, value);
+        return fields;
+    }
+
+    private static String createList(int count) {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                list.append(',');
+            }
+            list.append("item").append(i);
+        }
+        return list.toString();
+    }
+
+    @Test
+    public void encodedLength_utf8PercentEncoded() {
+        Assert.assertEquals(3, HitSize.encodedLength("a-Z"));
+        Assert.assertEquals(3, HitSize.encodedLength(" "));
+        Assert.assertEquals(6, HitSize.encodedLength("\u00e9"));
+        Assert.assertEquals(9, HitSize.encodedLength("\u20ac"));
+        Assert.assertEquals(12, HitSize.encodedLength("\ud83d\ude00"));
+    }
+
+    @Test
+    public void estimate_valuesWithParameterOverhead() {
+        Serializable[] event = new Serializable[] { "send", "event", "Category", "Action" };
+        Assert.assertEquals(3 * HitSize.PARAMETER_OVERHEAD + 5 + 8 + 6, HitSize.estimate(event, 1000));
+        Assert.assertTrue(HitSize.estimate(event, 10) > 10);
+    }
+
+    @Test
+    public void stringList_splitWithinLimit() {
+        Serializable[] event = createEvent(createFields("products", createList(40)));
+        int limit = HitSize.estimate(event, Integer.MAX_VALUE) / 3;
+
+        List<Serializable[]> parts = HitSize.split(event, Collections.singletonMap("products", ","), limit);
+        Assert.assertTrue(parts.size() >= 3);
+
+        StringBuilder joined = new StringBuilder();
+        for (Serializable[] part : parts) {
+            Assert.assertTrue(HitSize.estimate(part, Integer.MAX_VALUE) <= limit);
+            JsonObject fields = (JsonObject) part[4];
+            Assert.assertEquals("kept", fields.getString("other"));
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(fields.getString("products"));
+        }
+        Assert.assertEquals(createList(40), joined.toString());
+    }
+
+    @Test
+    public void arrayList_splitByElement() {
+        JsonArray products = Json.createArray();
+        for (int i = 0; i < 20; i++) {
+            products.set(i, "item" + i);
+        }
+        JsonObject fields = Json.createObject();
+        fields.put("products", products);
+        Serializable[] event = createEvent(fields);
+        int limit = HitSize.estimate(event, Integer.MAX_VALUE) / 2;
+
+        List<Serializable[]> parts = HitSize.split(event, Collections.singletonMap("products", null), limit);
+        int items = 0;
+        for (Serializable[] part : parts) {
+            items += ((JsonObject) part[4]).getArray("products").length();
+        }
+        Assert.assertEquals(20, items);
+    }
+
+    @Test
+    public void unsplittable_null() {
+        Serializable[] event = createEvent(createFields("products", createList(40)));
+        Map<String, String> splitFields = Collections.singletonMap("products", ",");
+
+        Assert.assertNull(HitSize.split(event, Collections.emptyMap(), 50));
+        // A single item and the other fields don't fit
+        Assert.assertNull(HitSize.split(event, splitFields, 50));
+    }
+
+    @Test
+    public void oversizedHits_splitOrRejectedBeforeSending() {
+        uis.configure(config -> config.setHitSizeLimit(200).setHitSplitField("products", ","));
+        UI ui = uis.createUI();
+        GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(ui);
+
+        tracker.sendEvent("Category", "Split", Collections.singletonMap("products", createList(40)));
+        tracker.sendEvent("Category", "Rejected", Collections.singletonMap("other", createList(40)));
+        tracker.sendEvent("Category", "Small");
+        TestUIs.drain(ui);
+
+        List<Serializable[]> events = uis.getTransport().getHits("event");
+        Assert.assertTrue(events.size() > 2);
+        for (int i = 0; i < events.size() - 1; i++) {
+            Assert.assertEquals("Split", events.get(i)[3]);
+        }
+        Assert.assertEquals("Small", events.get(events.size() - 1)[3]);
+    }
+}
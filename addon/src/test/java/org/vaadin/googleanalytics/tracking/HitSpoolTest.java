@@ -0,0 +1,197 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HitSpoolTest {
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String hit(int index) {
+        return "v=1&t=event&ea=" + index;
+    }
+
+    private static List<String> readAll(HitSpool spool) {
+        List<String> hits = new ArrayList<>();
+        HitSpool.Batch batch;
+        while ((batch = spool.read(MeasurementProtocolTransport.MAX_HITS_PER_BATCH,
+                MeasurementProtocolTransport.MAX_BATCH_BYTES)) != null) {
+            hits.addAll(batch.getHits());
+        }
+        return hits;
+    }
+
+    private List<Path> getSegmentFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.getRoot().toPath(), "*.seg")) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        return files;
+    }
+
+    @Test
+    public void reopen_unsentHitsRecovered() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long timestamp = System.currentTimeMillis();
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            Assert.assertTrue(spool.append(hit(1), timestamp));
+            Assert.assertTrue(spool.append(hit(2), timestamp + 1));
+        }
+
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            Assert.assertEquals(2, spool.getPendingHitCount());
+            HitSpool.Batch batch = spool.read(10, 1000);
+            Assert.assertEquals(Arrays.asList(hit(1), hit(2)), batch.getHits());
+            Assert.assertEquals(timestamp, batch.getTimestamp(0));
+            Assert.assertEquals(timestamp + 1, batch.getTimestamp(1));
+        }
+    }
+
+    @Test
+    public void reopen_tornRecordIgnoredAndOverwritten() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long timestamp = System.currentTimeMillis();
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            spool.append(hit(1), timestamp);
+            spool.append(hit(2), timestamp);
+        }
+
+        // Corrupt the payload of the second record as if it was half written
+        int secondPayload = 16 + hit(1).length() + 16;
+        try (RandomAccessFile file = new RandomAccessFile(getSegmentFiles().get(0).toFile(), "rw")) {
+            file.seek(secondPayload);
+            file.write('X');
+        }
+
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            Assert.assertEquals(1, spool.getPendingHitCount());
+            spool.append(hit(3), timestamp);
+            Assert.assertEquals(Arrays.asList(hit(1), hit(3)), readAll(spool));
+        }
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            Assert.assertEquals(Arrays.asList(hit(1), hit(3)), readAll(spool));
+        }
+    }
+
+    @Test
+    public void segmentFull_hitsContinueInNextSegment() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long timestamp = System.currentTimeMillis();
+        List<String> expected = new ArrayList<>();
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            for (int i = 0; i < 80; i++) {
+                spool.append(hit(i), timestamp);
+                expected.add(hit(i));
+            }
+            Assert.assertEquals(3, getSegmentFiles().size());
+            Assert.assertEquals(expected, readAll(spool));
+        }
+
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            Assert.assertEquals(80, spool.getPendingHitCount());
+            Assert.assertEquals(expected, readAll(spool));
+        }
+    }
+
+    @Test
+    public void maxSegmentsReached_oldestSegmentDropped() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long timestamp = System.currentTimeMillis();
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 2)) {
+            for (int i = 0; i < 80; i++) {
+                spool.append(hit(i), timestamp);
+            }
+
+            Assert.assertEquals(2, getSegmentFiles().size());
+            Assert.assertTrue(spool.getDroppedHitCount() > 0);
+            Assert.assertEquals(80, spool.getPendingHitCount() + spool.getDroppedHitCount());
+            List<String> hits = readAll(spool);
+            Assert.assertEquals(spool.getPendingHitCount(), hits.size());
+            Assert.assertEquals(hit(79), hits.get(hits.size() - 1));
+        }
+    }
+
+    @Test
+    public void commit_checkpointSurvivesReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long timestamp = System.currentTimeMillis();
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            for (int i = 0; i < 3; i++) {
+                spool.append(hit(i), timestamp);
+            }
+            HitSpool.Batch batch = spool.read(2, 1000);
+            spool.commit(batch);
+            Assert.assertEquals(1, spool.getPendingHitCount());
+        }
+
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            Assert.assertEquals(1, spool.getPendingHitCount());
+            Assert.assertEquals(Arrays.asList(hit(2)), readAll(spool));
+        }
+    }
+
+    @Test
+    public void commitAcrossSegments_sentSegmentsDeleted() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long timestamp = System.currentTimeMillis();
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            for (int i = 0; i < 60; i++) {
+                spool.append(hit(i), timestamp);
+            }
+            HitSpool.Batch batch;
+            while ((batch = spool.read(20, 10000)) != null) {
+                spool.commit(batch);
+            }
+            Assert.assertEquals(0, spool.getPendingHitCount());
+            Assert.assertEquals(1, getSegmentFiles().size());
+        }
+
+        try (HitSpool spool = new HitSpool(directory, SEGMENT_SIZE, 4)) {
+            Assert.assertEquals(0, spool.getPendingHitCount());
+            Assert.assertNull(spool.read(20, 10000));
+        }
+    }
+
+    @Test
+    public void rewind_uncommittedHitsReadAgain() throws IOException {
+        try (HitSpool spool = new HitSpool(folder.getRoot().toPath(), SEGMENT_SIZE, 4)) {
+            long timestamp = System.currentTimeMillis();
+            spool.append(hit(1), timestamp);
+            spool.append(hit(2), timestamp);
+
+            spool.commit(spool.read(1, 1000));
+            Assert.assertEquals(Arrays.asList(hit(2)), spool.read(1, 1000).getHits());
+            spool.rewind();
+            Assert.assertEquals(Arrays.asList(hit(2)), readAll(spool));
+        }
+    }
+
+    @Test
+    public void expiredHits_skippedAndCountedAsDropped() throws IOException {
+        try (HitSpool spool = new HitSpool(folder.getRoot().toPath(), SEGMENT_SIZE, 4)) {
+            long now = System.currentTimeMillis();
+            spool.append(hit(1), now - 5 * 60 * 60 * 1000);
+            spool.append(hit(2), now);
+
+            HitSpool.Batch batch = spool.read(10, 1000);
+            Assert.assertEquals(Arrays.asList(hit(2)), batch.getHits());
+            spool.commit(batch);
+            Assert.assertEquals(1, spool.getDroppedHitCount());
+            Assert.assertEquals(0, spool.getPendingHitCount());
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.vaadin.flow.component.UI;
+
+public class MeasurementProtocolTransportTest {
+    /**
+     * Stand-in for the batch endpoint that records the request bodies.
+     */
+    private static class Endpoint {
+        private final HttpServer server;
+        private final List<String> bodies = new ArrayList<>();
+        private volatile int status = 200;
+        private volatile long delayMillis = 0;
+
+        private Endpoint() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/batch", this::handle);
+            server.start();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            synchronized (bodies) {
+                bodies.add(new String(body.toByteArray(), StandardCharsets.US_ASCII));
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        }
+
+        private String getUrl() {
+            return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/batch";
+        }
+
+        private List<String> getBodies() {
+            synchronized (bodies) {
+                return new ArrayList<>(bodies);
+            }
+        }
+
+        private void stop() {
+            server.stop(0);
+        }
+    }
+
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Endpoint endpoint;
+
+    @Before
+    public void startEndpoint() throws IOException {
+        endpoint = new Endpoint();
+    }
+
+    @After
+    public void stopEndpoint() {
+        endpoint.stop();
+    }
+
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private static String hit(int index, int length) {
+        StringBuilder hit = new StringBuilder("v=1&t=event&ea=").append(index).append("&el=");
+        while (hit.length() < length) {
+            hit.append('x');
+        }
+        return hit.toString();
+    }
+
+    private static List<String> getLines(List<String> bodies) {
+        List<String> lines = new ArrayList<>();
+        for (String body : bodies) {
+            lines.addAll(Arrays.asList(body.split("\n")));
+        }
+        return lines;
+    }
+
+    @Test
+    public void send_commandsEncodedAsBatchLines() {
+        UI ui = uis.createUI();
+        MeasurementProtocolTransport transport = new MeasurementProtocolTransport(endpoint.getUrl(), 1, 20);
+        transport.init(ui, null);
+        transport.send(ui,
+                Arrays.asList(new Serializable[] { "create", "UA-000000-0", "auto" },
+                        new Serializable[] { "set", "page", "/view" }, new Serializable[] { "send", "pageview" },
+                        new Serializable[] { "send", "event", "Category", "Action & more", "Label", 5 },
+                        new Serializable[] { "require", "plugin" }));
+        transport.close();
+
+        List<String> lines = getLines(endpoint.getBodies());
+        Assert.assertEquals(2, lines.size());
+        Assert.assertTrue(lines.get(0),
+                lines.get(0).matches("v=1&tid=UA-000000-0&cid=[-0-9a-f]+&dp=%2Fview&t=pageview"));
+        Assert.assertTrue(lines.get(1),
+                lines.get(1).matches("v=1&tid=UA-000000-0&cid=[-0-9a-f]+&dp=%2Fview&t=event"
+                        + "&ec=Category&ea=Action\\+%26\\+more&el=Label&ev=5"));
+        Assert.assertEquals(2, transport.getSentHitCount());
+    }
+
+    @Test
+    public void manyHits_atMostTwentyPerBatch() {
+        MeasurementProtocolTransport transport = new MeasurementProtocolTransport(endpoint.getUrl(), 1, 60000);
+        for (int i = 0; i < 45; i++) {
+            transport.enqueue(hit(i, 20));
+        }
+        transport.close();
+
+        List<String> bodies = endpoint.getBodies();
+        Assert.assertTrue(bodies.size() >= 3);
+        for (String body : bodies) {
+            Assert.assertTrue(body.split("\n").length <= MeasurementProtocolTransport.MAX_HITS_PER_BATCH);
+        }
+        Assert.assertEquals(45, getLines(bodies).size());
+        Assert.assertEquals(45, transport.getSentHitCount());
+    }
+
+    @Test
+    public void burstWhileSendersBusy_nothingDropped() throws InterruptedException {
+        endpoint.delayMillis = 2;
+        MeasurementProtocolTransport transport = new MeasurementProtocolTransport(endpoint.getUrl(), 1, 60000);
+        for (int i = 0; i < 2000; i++) {
+            transport.enqueue(hit(i, 20));
+        }
+
+        Assert.assertTrue(await(() -> transport.getSentHitCount() == 2000));
+        transport.close();
+
+        Assert.assertEquals(0, transport.getDroppedHitCount());
+        Assert.assertEquals(2000, getLines(endpoint.getBodies()).size());
+    }
+
+    @Test
+    public void largeHits_batchesWithinByteLimit() {
+        MeasurementProtocolTransport transport = new MeasurementProtocolTransport(endpoint.getUrl(), 1, 60000);
+        for (int i = 0; i < 5; i++) {
+            transport.enqueue(hit(i, 7000));
+        }
+        transport.close();
+
+        List<String> bodies = endpoint.getBodies();
+        Assert.assertEquals(3, bodies.size());
+        for (String body : bodies) {
+            Assert.assertTrue(body.length() <= MeasurementProtocolTransport.MAX_BATCH_BYTES);
+        }
+        Assert.assertEquals(5, transport.getSentHitCount());
+    }
+
+    @Test
+    public void tooLargeHit_droppedWithoutRequest() {
+        MeasurementProtocolTransport transport = new MeasurementProtocolTransport(endpoint.getUrl(), 1, 60000);
+        transport.enqueue(hit(1, MeasurementProtocolTransport.MAX_HIT_BYTES + 1));
+        transport.close();
+
+        Assert.assertTrue(endpoint.getBodies().isEmpty());
+        Assert.assertEquals(1, transport.getDroppedHitCount());
+    }
+
+    @Test
+    public void spooledHits_queueTimeAddedWithinByteLimit() throws IOException {
+        try (HitSpool spool = new HitSpool(folder.getRoot().toPath())) {
+            MeasurementProtocolTransport transport = new MeasurementProtocolTransport(endpoint.getUrl(), 1, 60000)
+                    .setSpool(spool);
+            // Two of these fit in a batch only without the queue time
+            for (int i = 0; i < 4; i++) {
+                transport.enqueue(hit(i, MeasurementProtocolTransport.MAX_BATCH_BYTES / 2 - 2));
+            }
+            transport.close();
+        }
+
+        List<String> bodies = endpoint.getBodies();
+        Assert.assertEquals(4, bodies.size());
+        for (String body : bodies) {
+            Assert.assertTrue(body.length() <= MeasurementProtocolTransport.MAX_BATCH_BYTES);
+        }
+        for (String line : getLines(bodies)) {
+            Assert.assertTrue(line.matches("v=1&t=event&ea=\\d&el=x+&qt=\\d+"));
+        }
+    }
+
+    @Test
+    public void serverError_batchDropped() {
+        endpoint.status = 500;
+        MeasurementProtocolTransport transport = new MeasurementProtocolTransport(endpoint.getUrl(), 1, 60000);
+        transport.enqueue(hit(1, 20));
+        transport.enqueue(hit(2, 20));
+        transport.close();
+
+        Assert.assertEquals(1, endpoint.getBodies().size());
+        Assert.assertEquals(2, transport.getDroppedHitCount());
+        Assert.assertEquals(1, transport.getFailedBatchCount());
+        Assert.assertEquals(0, transport.getSentHitCount());
+    }
+
+    @Test
+    public void endpointUnreachable_batchDropped() {
+        String url = endpoint.getUrl();
+        endpoint.stop();
+        MeasurementProtocolTransport transport = new MeasurementProtocolTransport(url, 1, 60000).setTimeout(1000);
+        transport.enqueue(hit(1, 20));
+        transport.close();
+
+        Assert.assertEquals(1, transport.getDroppedHitCount());
+        Assert.assertEquals(1, transport.getFailedBatchCount());
+    }
+
+    @Test
+    public void spool_permanentClientError_batchDropped() throws Exception {
+        endpoint.status = 400;
+        try (HitSpool spool = new HitSpool(folder.getRoot().toPath())) {
+            MeasurementProtocolTransport transport = new MeasurementProtocolTransport(endpoint.getUrl(), 1, 20)
+                    .setSpool(spool);
+            transport.enqueue("v=1&t=event&ea=1");
+            transport.enqueue("v=1&t=event&ea=2");
+
+            Assert.assertTrue(await(() -> spool.getPendingHitCount() == 0));
+            transport.close();
+
+            Assert.assertEquals(2, transport.getDroppedHitCount());
+            Assert.assertEquals(0, transport.getSentHitCount());
+            Assert.assertEquals(0, transport.getQueuedHitCount());
+        }
+    }
+
+    @Test
+    public void spool_temporaryError_batchRetried() throws Exception {
+        endpoint.status = 503;
+        try (HitSpool spool = new HitSpool(folder.getRoot().toPath())) {
+            MeasurementProtocolTransport transport = new MeasurementProtocolTransport(endpoint.getUrl(), 1, 20)
+                    .setSpool(spool);
+            transport.enqueue("v=1&t=event&ea=1");
+            transport.enqueue("v=1&t=event&ea=2");
+
+            Assert.assertTrue(await(() -> endpoint.getBodies().size() >= 2));
+            Assert.assertEquals(2, spool.getPendingHitCount());
+            Assert.assertEquals(0, transport.getDroppedHitCount());
+
+            endpoint.status = 200;
+            Assert.assertTrue(await(() -> spool.getPendingHitCount() == 0));
+            transport.close();
+            Assert.assertEquals(2, transport.getSentHitCount());
+        }
+    }
+
+    @Test
+    public void spool_rateLimited_batchRetried() throws Exception {
+        endpoint.status = 429;
+        try (HitSpool spool = new HitSpool(folder.getRoot().toPath())) {
+            MeasurementProtocolTransport transport = new MeasurementProtocolTransport(endpoint.getUrl(), 1, 20)
+                    .setSpool(spool);
+            transport.enqueue("v=1&t=event&ea=1");
+
+            Assert.assertTrue(await(() -> endpoint.getBodies().size() >= 2));
+            transport.close();
+            Assert.assertEquals(1, spool.getPendingHitCount());
+            Assert.assertEquals(0, transport.getDroppedHitCount());
+        }
+    }
+}
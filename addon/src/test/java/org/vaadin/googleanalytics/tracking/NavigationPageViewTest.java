@@ -0,0 +1,104 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.vaadin.flow.component.Component;
+import com.vaadin.flow.component.Tag;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.router.RouterLayout;
+
+public class NavigationPageViewTest {
+    @Tag("div")
+    static class UntrackedLayout extends Component implements RouterLayout {
+    }
+
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private UI ui;
+    private GoogleAnalyticsTracker tracker;
+
+    @Before
+    public void setup() {
+        uis.configure(config -> {
+        });
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.sendPageView("setup");
+        TestUIs.drain(ui);
+    }
+
+    private void navigate(String location) {
+        InitListener.afterNavigation(ui, TestUIs.createNavigationEvent(ui, location));
+    }
+
+    /**
+     * Gets the locations of the page views sent after the setup.
+     */
+    private List<Serializable> getPageLocations() {
+        List<Serializable> locations = new ArrayList<>();
+        for (Serializable[] command : uis.getTransport().getCommands()) {
+            if ("set".equals(command[0]) && "page".equals(command[1])) {
+                locations.add(command[2]);
+            }
+        }
+        return locations.subList(1, locations.size());
+    }
+
+    @Test
+    public void untrackedNavigation_noTrackerCreated() {
+        UI untracked = uis.createUI();
+        TestUIs.showRoute(untracked, new TestUIs.View(), new UntrackedLayout());
+
+        InitListener.afterNavigation(untracked, TestUIs.createNavigationEvent(untracked, "view"));
+
+        Assert.assertNull(GoogleAnalyticsTracker.find(untracked));
+    }
+
+    @Test
+    public void forwardedNavigation_onlyFinalLocationTracked() {
+        navigate("first");
+        navigate("forwarded");
+        TestUIs.drain(ui);
+
+        Assert.assertEquals("[forwarded]", getPageLocations().toString());
+        Assert.assertEquals(2, uis.getTransport().getHits("pageview").size());
+    }
+
+    @Test
+    public void separateRoundTrips_allTracked() {
+        navigate("first");
+        TestUIs.drain(ui);
+        navigate("second");
+        TestUIs.drain(ui);
+
+        Assert.assertEquals("[first, second]", getPageLocations().toString());
+    }
+
+    @Test
+    public void manualPageView_notCollapsed() {
+        navigate("first");
+        tracker.sendPageView("manual");
+        navigate("second");
+        TestUIs.drain(ui);
+
+        Assert.assertEquals("[manual, second]", getPageLocations().toString());
+    }
+
+    @Test
+    public void collapsingDisabled_allTracked() {
+        tracker.setCollapseNavigationPageViews(false);
+        navigate("first");
+        navigate("second");
+        TestUIs.drain(ui);
+
+        Assert.assertEquals("[first, second]", getPageLocations().toString());
+    }
+}
@@ -0,0 +1,117 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.vaadin.googleanalytics.tracking.TestUIs.View;
+
+import com.vaadin.flow.component.UI;
+
+public class NavigationTimingTest {
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private UI createUI() {
+        UI ui = uis.createUI();
+        GoogleAnalyticsTracker.get(ui).sendPageView("setup");
+        TestUIs.drain(ui);
+        return ui;
+    }
+
+    private static void navigate(UI ui, String location) {
+        GoogleAnalyticsTracker.get(ui).startNavigationTiming();
+        InitListener.afterNavigation(ui, TestUIs.createNavigationEvent(ui, location));
+        TestUIs.drain(ui);
+    }
+
+    @Test
+    public void enabled_timingSentForNavigationTarget() {
+        uis.configure(config -> config.setNavigationTiming(true).setNavigationTimingSampleRate(100));
+        UI ui = createUI();
+        long count = TrackerMetrics.get().getNavigationCount(View.class);
+
+        navigate(ui, "view");
+
+        List<Serializable[]> timings = uis.getTransport().getHits("timing");
+        Assert.assertEquals(1, timings.size());
+        Assert.assertEquals(TrackerConfiguration.NAVIGATION_TIMING_CATEGORY, timings.get(0)[2]);
+        Assert.assertEquals(View.class.getName(), timings.get(0)[3]);
+        Assert.assertTrue(((Integer) timings.get(0)[4]).intValue() >= 0);
+        Assert.assertEquals(count + 1, TrackerMetrics.get().getNavigationCount(View.class));
+    }
+
+    @Test
+    public void sampledOut_onlyRecordedInMetrics() {
+        uis.configure(config -> config.setNavigationTiming(true).setNavigationTimingSampleRate(0));
+        UI ui = createUI();
+        long count = TrackerMetrics.get().getNavigationCount(View.class);
+
+        navigate(ui, "view");
+
+        Assert.assertTrue(uis.getTransport().getHits("timing").isEmpty());
+        Assert.assertEquals(count + 1, TrackerMetrics.get().getNavigationCount(View.class));
+    }
+
+    @Test
+    public void disabled_nothingTimed() {
+        uis.configure(config -> {
+        });
+        navigate(createUI(), "view");
+
+        Assert.assertTrue(uis.getTransport().getHits("timing").isEmpty());
+    }
+
+    @Test
+    public void resetNavigation_notTimed() {
+        uis.configure(config -> config.setNavigationTiming(true).setNavigationTimingSampleRate(100));
+        UI ui = createUI();
+        GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.startNavigationTiming();
+        tracker.resetNavigationTiming();
+
+        InitListener.afterNavigation(ui, TestUIs.createNavigationEvent(ui, "view"));
+        TestUIs.drain(ui);
+
+        Assert.assertTrue(uis.getTransport().getHits("timing").isEmpty());
+    }
+
+    @Test
+    public void untrackedNavigation_noTrackerCreatedForTiming() {
+        UI ui = uis.createUI();
+        TestUIs.showRoute(ui, new View(), new NavigationPageViewTest.UntrackedLayout());
+
+        InitListener.beforeEnter(ui, View.class);
+        InitListener.afterNavigation(ui, TestUIs.createNavigationEvent(ui, "view"));
+
+        Assert.assertNull(GoogleAnalyticsTracker.find(ui));
+    }
+
+    @Test
+    public void trackedRoute_trackerCreatedBeforeEnter() {
+        UI ui = uis.createUI();
+
+        InitListener.beforeEnter(ui, RouteMetadataTest.NestedRoute.class);
+
+        Assert.assertNotNull(GoogleAnalyticsTracker.find(ui));
+    }
+
+    @Test
+    public void histogram_percentilesWithinFactorOfTwo() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentileNanos(50));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(50500, histogram.getMeanNanos(), 0.001);
+
+        long median = histogram.getPercentileNanos(50);
+        Assert.assertTrue(median + "", median >= 50000 && median < 2 * 50000);
+        long max = histogram.getPercentileNanos(100);
+        Assert.assertTrue(max + "", max >= 100000 && max < 2 * 100000);
+    }
+}
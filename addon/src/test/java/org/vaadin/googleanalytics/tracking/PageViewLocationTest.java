@@ -0,0 +1,101 @@
+package org.vaadin.googleanalytics.tracking;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.vaadin.googleanalytics.tracking.EnableGoogleAnalytics.LogLevel;
+
+import com.vaadin.flow.component.Component;
+import com.vaadin.flow.component.Tag;
+import com.vaadin.flow.router.BeforeEvent;
+import com.vaadin.flow.router.HasUrlParameter;
+import com.vaadin.flow.router.Location;
+import com.vaadin.flow.router.OptionalParameter;
+import com.vaadin.flow.router.ParentLayout;
+import com.vaadin.flow.router.Route;
+import com.vaadin.flow.router.RouteAlias;
+import com.vaadin.flow.router.RoutePrefix;
+import com.vaadin.flow.router.RouterLayout;
+
+public class PageViewLocationTest {
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    @Tag("div")
+    @RoutePrefix("app")
+    public static class MainLayout extends Component implements RouterLayout {
+    }
+
+    @Tag("div")
+    @RoutePrefix("/admin/")
+    @ParentLayout(MainLayout.class)
+    public static class AdminLayout extends Component implements RouterLayout {
+    }
+
+    @Tag("div")
+    @Route(value = "users", layout = AdminLayout.class)
+    public static class UserView extends Component implements HasUrlParameter<String> {
+        @Override
+        public void setParameter(BeforeEvent event, @OptionalParameter String parameter) {
+            // Not navigated to
+        }
+    }
+
+    @Tag("div")
+    @Route(value = "login", layout = AdminLayout.class, absolute = true)
+    @RouteAlias("signin")
+    public static class LoginView extends Component {
+    }
+
+    private static TrackerConfiguration createConfig() {
+        return TrackerConfiguration.create(LogLevel.NONE, false).setUseRouteTemplates(true);
+    }
+
+    @Test
+    public void routeTemplate_includesParentPrefixes() {
+        Assert.assertEquals("app/admin/users", RouteMetadata.get(UserView.class).getRouteTemplate());
+        Assert.assertEquals(3, RouteMetadata.get(UserView.class).getRouteTemplateSegments());
+        Assert.assertEquals("login", RouteMetadata.get(LoginView.class).getRouteTemplate());
+        Assert.assertNull(RouteMetadata.get(MainLayout.class).getRouteTemplate());
+    }
+
+    @Test
+    public void urlParameter_replacedWithPlaceholder() {
+        TrackerConfiguration config = createConfig().setPageViewPrefix("/");
+
+        Assert.assertEquals("/app/admin/users/" + TrackerConfiguration.URL_PARAMETER,
+                config.getPageViewLocation(new Location("app/admin/users/42"), UserView.class));
+        // The parameter is optional
+        Assert.assertEquals("/app/admin/users",
+                config.getPageViewLocation(new Location("app/admin/users"), UserView.class));
+    }
+
+    @Test
+    public void routeTemplatesDisabled_actualPathTracked() {
+        TrackerConfiguration config = createConfig().setUseRouteTemplates(false);
+
+        Assert.assertEquals("app/admin/users/42",
+                config.getPageViewLocation(new Location("app/admin/users/42"), UserView.class));
+        Assert.assertEquals("login", config.getPageViewLocation(new Location("login"), null));
+    }
+
+    @Test
+    public void queryParameters_filtered() {
+        Location location = new Location("login?tab=details&utm_source=mail&token=secret");
+
+        // Parameter order is not preserved by the router
+        String unfiltered = createConfig().getPageViewLocation(location, LoginView.class);
+        Assert.assertEquals(unfiltered.length(), location.getPathWithQueryParameters().length());
+        Assert.assertTrue(unfiltered, unfiltered.contains("token=secret"));
+
+        String ignored = createConfig().addIgnoredQueryParameters("token").getPageViewLocation(location,
+                LoginView.class);
+        Assert.assertTrue(ignored, ignored.contains("tab=details") && ignored.contains("utm_source=mail"));
+        Assert.assertFalse(ignored, ignored.contains("token"));
+
+        Assert.assertEquals("login?tab=details", createConfig().setAllowedQueryParameters("tab", "token")
+                .addIgnoredQueryParameters("token").getPageViewLocation(location, LoginView.class));
+        Assert.assertEquals("login", createConfig().setAllowedQueryParameters("other")
+                .getPageViewLocation(location, LoginView.class));
+    }
+}
@@ -0,0 +1,81 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.vaadin.flow.component.UI;
+
+import elemental.json.JsonObject;
+
+public class PreparedEventTest {
+    private static final PreparedEvent EVENT = GoogleAnalyticsTracker.prepareEvent("Category", "Action");
+
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private static final PreparedEvent EVENT_WITH_FIELDS = GoogleAnalyticsTracker.prepareEvent("Category", "Action",
+            Collections.singletonMap("nonInteraction", Boolean.TRUE));
+
+    private UI ui;
+    private GoogleAnalyticsTracker tracker;
+
+    @Before
+    public void setup() {
+        uis.configure(config -> {
+        });
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+    }
+
+    private List<Serializable[]> getEvents() {
+        return uis.getTransport().getHits("event");
+    }
+
+    @Test
+    public void preparedEvent_sameCommandsAsRegularEvents() {
+        tracker.sendEvent(EVENT);
+        tracker.sendEvent(EVENT, "Label");
+        tracker.sendEvent(EVENT, "Label", 5);
+        tracker.sendEvent("Category", "Action");
+        tracker.sendEvent("Category", "Action", "Label");
+        tracker.sendEvent("Category", "Action", "Label", 5);
+        TestUIs.drain(ui);
+
+        List<Serializable[]> events = getEvents();
+        Assert.assertEquals(6, events.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertArrayEquals(events.get(i + 3), events.get(i));
+        }
+    }
+
+    @Test
+    public void fields_sharedEncodedObjectSent() {
+        tracker.sendEvent(EVENT_WITH_FIELDS, "First");
+        tracker.sendEvent(EVENT_WITH_FIELDS, "Second");
+        TestUIs.drain(ui);
+
+        List<Serializable[]> events = getEvents();
+        Assert.assertEquals(6, events.get(0).length);
+        Assert.assertEquals("First", events.get(0)[4]);
+        Assert.assertEquals("Second", events.get(1)[4]);
+
+        JsonObject fields = (JsonObject) events.get(0)[5];
+        Assert.assertTrue(fields.getBoolean("nonInteraction"));
+        Assert.assertSame(fields, events.get(1)[5]);
+    }
+
+    @Test
+    public void commands_notSharedBetweenSends() {
+        Serializable[] first = EVENT.createAction("Label", null);
+        first[4] = "Changed";
+
+        Assert.assertEquals("Label", EVENT.createAction("Label", null)[4]);
+        Assert.assertEquals(4, EVENT.createAction(null, null).length);
+    }
+}
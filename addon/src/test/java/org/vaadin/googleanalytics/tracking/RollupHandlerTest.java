@@ -0,0 +1,70 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinResponse;
+
+public class RollupHandlerTest {
+    private final AtomicInteger status = new AtomicInteger();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private static VaadinRequest createRequest(String remoteAddress) {
+        return (VaadinRequest) Proxy.newProxyInstance(RollupHandlerTest.class.getClassLoader(),
+                new Class<?>[] { VaadinRequest.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getPathInfo":
+                        return "/" + RollupHandler.PATH;
+                    case "getRemoteAddr":
+                        return remoteAddress;
+                    case "getMethod":
+                        return "GET";
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    private VaadinResponse createResponse() {
+        return (VaadinResponse) Proxy.newProxyInstance(RollupHandlerTest.class.getClassLoader(),
+                new Class<?>[] { VaadinResponse.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "setStatus":
+                    case "sendError":
+                        status.set(((Integer) args[0]).intValue());
+                        return null;
+                    case "getOutputStream":
+                        return body;
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void noAccessCheck_localRequestDenied() throws IOException {
+        RollupHandler handler = new RollupHandler();
+
+        Assert.assertTrue(handler.handleRequest(null, createRequest("127.0.0.1"), createResponse()));
+        Assert.assertEquals(403, status.get());
+        Assert.assertEquals(0, body.size());
+    }
+
+    @Test
+    public void localAccessCheck_onlyLoopbackAllowed() throws IOException {
+        RollupHandler handler = new RollupHandler().setAccessCheck(RollupHandler::isLocalRequest);
+
+        Assert.assertTrue(handler.handleRequest(null, createRequest("192.0.2.1"), createResponse()));
+        Assert.assertEquals(403, status.get());
+
+        Assert.assertTrue(handler.handleRequest(null, createRequest("::1"), createResponse()));
+        Assert.assertEquals(200, status.get());
+        Assert.assertTrue(body.toString("UTF-8").contains("\"minutes\""));
+    }
+}
@@ -0,0 +1,94 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vaadin.flow.component.Component;
+import com.vaadin.flow.component.HasElement;
+import com.vaadin.flow.component.Tag;
+import com.vaadin.flow.router.ParentLayout;
+import com.vaadin.flow.router.Route;
+import com.vaadin.flow.router.RouterLayout;
+
+public class RouteMetadataTest {
+    @Tag("div")
+    static class View extends Component {
+    }
+
+    @Tag("div")
+    @EnableGoogleAnalytics("UA-000000-0")
+    static class TestLayout extends Component implements RouterLayout {
+    }
+
+    @Tag("div")
+    @IgnorePageView
+    static class IgnoredView extends Component {
+    }
+
+    @Tag("div")
+    static class ConfiguratorLayout extends Component implements TrackerConfigurator {
+        @Override
+        public void configureTracker(TrackerConfiguration configuration) {
+            // Only the type matters
+        }
+    }
+
+    @Tag("div")
+    @ParentLayout(TestLayout.class)
+    static class NestedLayout extends Component implements RouterLayout {
+    }
+
+    @Tag("div")
+    @Route(value = "nested", layout = NestedLayout.class)
+    static class NestedRoute extends Component {
+    }
+
+    @Tag("div")
+    @Route("plain")
+    static class PlainRoute extends Component {
+    }
+
+    @Test
+    public void get_computedOncePerClass() {
+        Assert.assertSame(RouteMetadata.get(View.class), RouteMetadata.get(View.class));
+        Assert.assertNotSame(RouteMetadata.get(View.class), RouteMetadata.get(IgnoredView.class));
+    }
+
+    @Test
+    public void plainView_nothingEnabled() {
+        RouteMetadata metadata = RouteMetadata.get(View.class);
+        Assert.assertFalse(metadata.isIgnored());
+        Assert.assertNull(metadata.getAnnotation());
+        Assert.assertFalse(metadata.isConfigurator());
+        Assert.assertFalse(metadata.enablesTracking());
+    }
+
+    @Test
+    public void annotationOrConfigurator_enablesTracking() {
+        RouteMetadata annotated = RouteMetadata.get(TestLayout.class);
+        Assert.assertEquals("UA-000000-0", annotated.getAnnotation().value());
+        Assert.assertTrue(annotated.enablesTracking());
+
+        RouteMetadata configurator = RouteMetadata.get(ConfiguratorLayout.class);
+        Assert.assertNull(configurator.getAnnotation());
+        Assert.assertTrue(configurator.isConfigurator());
+        Assert.assertTrue(configurator.enablesTracking());
+    }
+
+    @Test
+    public void isIgnored_anyIgnoredElementInChain() {
+        Assert.assertFalse(RouteMetadata.isIgnored(Arrays.<HasElement> asList(new View(), new TestLayout())));
+        Assert.assertTrue(RouteMetadata.isIgnored(Arrays.<HasElement> asList(new IgnoredView(), new TestLayout())));
+        Assert.assertTrue(RouteMetadata.getRootLayout(Arrays.<HasElement> asList(new View(), new TestLayout()))
+                .enablesTracking());
+    }
+
+    @Test
+    public void isTrackedRoute_rootLayoutFromAnnotations() {
+        Assert.assertTrue(RouteMetadata.get(NestedRoute.class).isTrackedRoute());
+        Assert.assertFalse(RouteMetadata.get(PlainRoute.class).isTrackedRoute());
+        Assert.assertTrue(RouteMetadata.get(TestLayout.class).isTrackedRoute());
+    }
+}
@@ -0,0 +1,105 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.vaadin.googleanalytics.tracking.EnableGoogleAnalytics.LogLevel;
+import org.vaadin.googleanalytics.tracking.TestUIs.View;
+
+import com.vaadin.flow.component.UI;
+
+public class SamplingTest {
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private void sendAndDrain() {
+        UI ui = uis.createUI();
+        GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.sendPageView("view");
+        tracker.sendEvent("Category", "Action");
+        tracker.sendEvent("Other", "Action");
+        TestUIs.drain(ui);
+    }
+
+    @Test
+    public void rates_nestedAcrossBuckets() {
+        TrackerConfiguration config = TrackerConfiguration.create(LogLevel.NONE, false).setEventSampleRate(50)
+                .setEventSampleRate("Rare", 10);
+        int sampled = 0;
+        for (int bucket = 0; bucket < TrackerConfiguration.SAMPLING_BUCKETS; bucket++) {
+            if (config.isEventSampled(bucket, "Rare")) {
+                Assert.assertTrue(config.isEventSampled(bucket, "Category"));
+            }
+            if (config.isEventSampled(bucket, "Category")) {
+                sampled++;
+            }
+        }
+        Assert.assertEquals(TrackerConfiguration.SAMPLING_BUCKETS / 2, sampled);
+    }
+
+    @Test
+    public void noPageViews_eventsStillSent() {
+        uis.configure(config -> config.setPageViewSampleRate(0));
+        sendAndDrain();
+
+        Assert.assertTrue(uis.getTransport().getHits("pageview").isEmpty());
+        Assert.assertEquals(2, uis.getTransport().getHits("event").size());
+    }
+
+    @Test
+    public void categoryRate_overridesEventRate() {
+        uis.configure(config -> config.setEventSampleRate(0).setEventSampleRate("Category", 100));
+        sendAndDrain();
+
+        Assert.assertEquals(1, uis.getTransport().getHits("pageview").size());
+        Assert.assertEquals(1, uis.getTransport().getHits("event").size());
+        Assert.assertEquals("Category", uis.getTransport().getHits("event").get(0)[2]);
+    }
+
+    @Test
+    public void nullFields_hitTypeFromFieldsObject() {
+        uis.configure(config -> config.setEventSampleRate(0));
+        UI ui = uis.createUI();
+        Map<String, Serializable> fieldsObject = new HashMap<>();
+        fieldsObject.put("hitType", "event");
+        fieldsObject.put("eventCategory", "Category");
+        GoogleAnalyticsTracker.get(ui).ga("send", fieldsObject, (Serializable[]) null);
+        GoogleAnalyticsTracker.get(ui).ga("send", null, (Serializable[]) null);
+        TestUIs.drain(ui);
+
+        // Only the hit without a known type is sent
+        int sends = 0;
+        for (Serializable[] command : uis.getTransport().getCommands()) {
+            if ("send".equals(command[0])) {
+                sends++;
+            }
+        }
+        Assert.assertEquals(1, sends);
+    }
+
+    @Test
+    public void routeRate_overridesPageViewRate() {
+        uis.configure(config -> config.setPageViewSampleRate(0).setRouteSampleRate(View.class, 100));
+        sendAndDrain();
+
+        Assert.assertEquals(1, uis.getTransport().getHits("pageview").size());
+    }
+
+    @Test
+    public void sameSession_sameDecisionForAllUIs() {
+        uis.configure(config -> config.setPageViewSampleRate(50));
+        for (int i = 0; i < 20; i++) {
+            UI first = uis.createUI();
+            UI other = new UI();
+            other.getInternals().setSession(first.getSession());
+            TestUIs.showRoute(other, new View());
+
+            Assert.assertEquals(GoogleAnalyticsTracker.get(first).isPageViewSampled(),
+                    GoogleAnalyticsTracker.get(other).isPageViewSampled());
+        }
+    }
+}
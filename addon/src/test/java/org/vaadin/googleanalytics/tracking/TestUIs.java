@@ -0,0 +1,390 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+import org.junit.rules.ExternalResource;
+
+import com.vaadin.flow.component.Component;
+import com.vaadin.flow.component.HasElement;
+import com.vaadin.flow.component.Tag;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.function.DeploymentConfiguration;
+import com.vaadin.flow.function.SerializableConsumer;
+import com.vaadin.flow.internal.CurrentInstance;
+import com.vaadin.flow.router.AfterNavigationEvent;
+import com.vaadin.flow.router.Location;
+import com.vaadin.flow.router.LocationChangeEvent;
+import com.vaadin.flow.router.NavigationTrigger;
+import com.vaadin.flow.router.Router;
+import com.vaadin.flow.router.RouterLayout;
+import com.vaadin.flow.server.Constants;
+import com.vaadin.flow.server.DefaultDeploymentConfiguration;
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinService;
+import com.vaadin.flow.server.VaadinSession;
+import com.vaadin.flow.server.WebBrowser;
+import com.vaadin.flow.server.startup.RouteRegistry;
+import com.vaadin.flow.theme.AbstractTheme;
+
+/**
+ * Creates UI instances with an active router chain without running a servlet
+ * container, and records the commands that trackers send. Used as a
+ * <code>@Rule</code> so that every test starts with the default configuration
+ * and no global rate limit, and nothing is left behind for the next test.
+ */
+final class TestUIs extends ExternalResource {
+    /**
+     * Root layout whose configuration is adjusted as set with
+     * {@link TestUIs#configure(SerializableConsumer)} for the running test and
+     * sends through a {@link RecordingTransport}.
+     */
+    @Tag("div")
+    @EnableGoogleAnalytics("UA-000000-0")
+    static class TestLayout extends Component implements RouterLayout, TrackerConfigurator {
+        @Override
+        public void configureTracker(TrackerConfiguration configuration) {
+            TestUIs fixture = active;
+            if (fixture == null) {
+                throw new IllegalStateException("No test is running with the " + TestUIs.class.getSimpleName()
+                        + " rule");
+            }
+            configuration.setTransport(fixture.transport);
+            fixture.configurator.accept(configuration);
+        }
+    }
+
+    /**
+     * A {@link TestLayout} whose configuration is shared by all UIs.
+     */
+    @Tag("div")
+    @EnableGoogleAnalytics("UA-000000-0")
+    static class SharedTestLayout extends TestLayout implements SharedTrackerConfigurator {
+    }
+
+    @Tag("div")
+    static class View extends Component {
+    }
+
+    @Tag("div")
+    static class OtherView extends Component {
+    }
+
+    /**
+     * Keeps every command sent through it.
+     */
+    static class RecordingTransport implements HitTransport {
+        private final List<Serializable[]> commands = Collections.synchronizedList(new ArrayList<>());
+
+        private volatile TrackerConfiguration config;
+
+        @Override
+        public void init(UI ui, TrackerConfiguration config) {
+            this.config = config;
+        }
+
+        @Override
+        public void send(UI ui, List<Serializable[]> commands) {
+            this.commands.addAll(commands);
+        }
+
+        List<Serializable[]> getCommands() {
+            synchronized (commands) {
+                return new ArrayList<>(commands);
+            }
+        }
+
+        /**
+         * Gets the configuration of the tracker that was last initialized.
+         */
+        TrackerConfiguration getConfiguration() {
+            return config;
+        }
+
+        /**
+         * Gets the sent <code>send</code> commands of the given hit type.
+         */
+        List<Serializable[]> getHits(String hitType) {
+            List<Serializable[]> hits = new ArrayList<>();
+            for (Serializable[] command : getCommands()) {
+                if ("send".equals(command[0]) && hitType.equals(command[1])) {
+                    hits.add(command);
+                }
+            }
+            return hits;
+        }
+    }
+
+    /**
+     * A service without a servlet that has no routes and no resources.
+     */
+    static class TestService extends VaadinService {
+        private final Router router = new Router(new EmptyRouteRegistry());
+
+        TestService(DeploymentConfiguration configuration) {
+            super(configuration);
+        }
+
+        @Override
+        protected RouteRegistry getRouteRegistry() {
+            return router.getRegistry();
+        }
+
+        @Override
+        public Router getRouter() {
+            return router;
+        }
+
+        @Override
+        public String getMimeType(String resourceName) {
+            return null;
+        }
+
+        @Override
+        protected boolean requestCanCreateSession(VaadinRequest request) {
+            return false;
+        }
+
+        @Override
+        public String getServiceName() {
+            return "test";
+        }
+
+        @Override
+        public String getMainDivId(VaadinSession session, VaadinRequest request) {
+            return "test";
+        }
+
+        @Override
+        public URL getStaticResource(String url) {
+            return null;
+        }
+
+        @Override
+        public URL getResource(String url, WebBrowser browser, AbstractTheme theme) {
+            return null;
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String url, WebBrowser browser, AbstractTheme theme) {
+            return null;
+        }
+
+        @Override
+        public String resolveResource(String url, WebBrowser browser) {
+            return url;
+        }
+
+        @Override
+        public Optional<String> getThemedUrl(String url, WebBrowser browser, AbstractTheme theme) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * A session that the test thread always owns. Scheduled accesses lock a
+     * real lock, so tests that wait for them should go through
+     * {@link TestUIs#drain(UI)}.
+     */
+    static class TestSession extends VaadinSession {
+        private transient ReentrantLock lock;
+
+        TestSession(VaadinService service) {
+            super(service);
+        }
+
+        @Override
+        public DeploymentConfiguration getConfiguration() {
+            return getService().getDeploymentConfiguration();
+        }
+
+        @Override
+        public boolean hasLock() {
+            return true;
+        }
+
+        @Override
+        public synchronized Lock getLockInstance() {
+            if (lock == null) {
+                lock = new ReentrantLock();
+            }
+            return lock;
+        }
+    }
+
+    private static class EmptyRouteRegistry extends RouteRegistry {
+    }
+
+    /**
+     * The fixture of the running test, used by {@link TestLayout}.
+     */
+    private static volatile TestUIs active;
+
+    /**
+     * Applied to the configuration of {@link TestLayout} when it is created.
+     */
+    private SerializableConsumer<TrackerConfiguration> configurator = config -> {
+    };
+
+    private RecordingTransport transport = new RecordingTransport();
+
+    @Override
+    protected void before() {
+        active = this;
+        invalidateConfigurations();
+    }
+
+    @Override
+    protected void after() {
+        invalidateConfigurations();
+        HitRateLimiter.global().removeLimit();
+        active = null;
+        CurrentInstance.clearAll();
+    }
+
+    /**
+     * Sets how the configuration of {@link TestLayout} is adjusted for the
+     * rest of the running test, discards the cached configuration and starts
+     * recording with a new transport.
+     * 
+     * @param configurator
+     *            the configurator to use, not <code>null</code>
+     */
+    void configure(SerializableConsumer<TrackerConfiguration> configurator) {
+        this.configurator = configurator;
+        transport = new RecordingTransport();
+        invalidateConfigurations();
+    }
+
+    private static void invalidateConfigurations() {
+        GoogleAnalyticsTracker.invalidateConfiguration(TestLayout.class);
+        GoogleAnalyticsTracker.invalidateConfiguration(SharedTestLayout.class);
+    }
+
+    /**
+     * Creates a production mode UI that shows a view inside a
+     * {@link TestLayout}.
+     * 
+     * @return a new UI, not <code>null</code>
+     */
+    UI createUI() {
+        Properties properties = new Properties();
+        properties.setProperty(Constants.SERVLET_PARAMETER_PRODUCTION_MODE, "true");
+        VaadinSession session = new TestSession(
+                new TestService(new DefaultDeploymentConfiguration(TestUIs.class, properties)));
+
+        UI ui = new UI();
+        ui.getInternals().setSession(session);
+        showRoute(ui, new View());
+        return ui;
+    }
+
+    /**
+     * Shows a view inside a {@link TestLayout}.
+     * 
+     * @param ui
+     *            the UI to update, not <code>null</code>
+     * @param view
+     *            the view to show, not <code>null</code>
+     * @return the active router chain, not <code>null</code>
+     */
+    static List<HasElement> showRoute(UI ui, Component view) {
+        return showRoute(ui, view, new TestLayout());
+    }
+
+    /**
+     * Shows a view inside the given root layout.
+     * 
+     * @param ui
+     *            the UI to update, not <code>null</code>
+     * @param view
+     *            the view to show, not <code>null</code>
+     * @param layout
+     *            the root layout, not <code>null</code>
+     * @return the active router chain, not <code>null</code>
+     */
+    static List<HasElement> showRoute(UI ui, Component view, RouterLayout layout) {
+        List<RouterLayout> layouts = new ArrayList<>();
+        layouts.add(layout);
+        ui.getInternals().showRouteTarget(new Location("view"), "view", view, layouts);
+        return ui.getInternals().getActiveRouterTargetsChain();
+    }
+
+    /**
+     * Creates an after navigation event for the active router chain.
+     * 
+     * @param ui
+     *            the UI, not <code>null</code>
+     * @param location
+     *            the navigation location, not <code>null</code>
+     * @return a navigation event, not <code>null</code>
+     */
+    static AfterNavigationEvent createNavigationEvent(UI ui, String location) {
+        return new AfterNavigationEvent(new LocationChangeEvent(ui.getRouter(), ui, NavigationTrigger.PROGRAMMATIC,
+                new Location(location), ui.getInternals().getActiveRouterTargetsChain()));
+    }
+
+    /**
+     * Gets the transport of the configuration set with
+     * {@link #configure(SerializableConsumer)}.
+     * 
+     * @return the transport, not <code>null</code>
+     */
+    RecordingTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Runs everything that would happen when a response is written, with the
+     * session locked.
+     * 
+     * @param ui
+     *            the UI to drain, not <code>null</code>
+     */
+    static void drain(UI ui) {
+        Lock lock = ui.getSession().getLockInstance();
+        lock.lock();
+        try {
+            ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+            ui.getInternals().dumpPendingJavaScriptInvocations();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drains the UI until a condition holds.
+     * 
+     * @param ui
+     *            the UI to drain, not <code>null</code>
+     * @param condition
+     *            the condition to wait for, not <code>null</code>
+     * @param timeoutMillis
+     *            the maximum time to wait
+     * @return <code>true</code> if the condition holds, <code>false</code> if
+     *         the time ran out
+     */
+    static boolean drainUntil(UI ui, BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            drain(ui);
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+    }
+}
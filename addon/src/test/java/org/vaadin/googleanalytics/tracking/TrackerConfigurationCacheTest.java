@@ -0,0 +1,76 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.vaadin.googleanalytics.tracking.TestUIs.SharedTestLayout;
+
+import com.vaadin.flow.component.Component;
+import com.vaadin.flow.component.Tag;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.router.Location;
+import com.vaadin.flow.router.Route;
+
+public class TrackerConfigurationCacheTest {
+    @Tag("div")
+    @Route("routed")
+    public static class RoutedView extends Component {
+    }
+
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private TrackerConfiguration initTracker(boolean shared) {
+        UI ui = uis.createUI();
+        if (shared) {
+            TestUIs.showRoute(ui, new TestUIs.View(), new SharedTestLayout());
+        }
+        GoogleAnalyticsTracker.get(ui).sendPageView("view");
+        TestUIs.drain(ui);
+        return uis.getTransport().getConfiguration();
+    }
+
+    @Test
+    public void configurator_runForEachUI() {
+        AtomicInteger runs = new AtomicInteger();
+        uis.configure(config -> runs.incrementAndGet());
+
+        TrackerConfiguration first = initTracker(false);
+        TrackerConfiguration second = initTracker(false);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void sharedConfigurator_runOnceForAllSessions() {
+        AtomicInteger runs = new AtomicInteger();
+        uis.configure(config -> runs.incrementAndGet());
+
+        TrackerConfiguration first = initTracker(true);
+        TrackerConfiguration second = initTracker(true);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, runs.get());
+
+        GoogleAnalyticsTracker.invalidateConfiguration(SharedTestLayout.class);
+        Assert.assertNotSame(first, initTracker(true));
+        Assert.assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void invalidateConfiguration_routeLocationsCleared() {
+        uis.configure(config -> config.setUseRouteTemplates(true).setPageViewPrefix("/app/"));
+        TrackerConfiguration config = initTracker(true);
+
+        Assert.assertEquals("/app/routed", config.getPageViewLocation(new Location("routed"), RoutedView.class));
+        Assert.assertEquals("/app/other", config.getPageViewLocation(new Location("other"), TestUIs.View.class));
+        Assert.assertEquals(2, config.getRouteLocationCount());
+
+        GoogleAnalyticsTracker.invalidateConfiguration(SharedTestLayout.class);
+        Assert.assertEquals(0, config.getRouteLocationCount());
+
+        // Trackers still using the discarded configuration resolve them again
+        Assert.assertEquals("/app/routed", config.getPageViewLocation(new Location("routed"), RoutedView.class));
+    }
+}
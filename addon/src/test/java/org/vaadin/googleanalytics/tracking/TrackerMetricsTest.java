@@ -0,0 +1,108 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.vaadin.googleanalytics.tracking.GoogleAnalyticsTracker.OverflowPolicy;
+
+import com.vaadin.flow.component.UI;
+
+public class TrackerMetricsTest {
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private final TrackerMetrics metrics = TrackerMetrics.get();
+
+    private UI ui;
+    private GoogleAnalyticsTracker tracker;
+
+    @Before
+    public void setup() {
+        uis.configure(config -> config.setPageViewSampleRate(0));
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+    }
+
+    @Test
+    public void uiDetached_queuedActionsRemovedFromQueueDepth() {
+        long depth = metrics.getQueueDepth();
+        tracker.sendEvent("Category", "First");
+        tracker.sendEvent("Category", "Second");
+        Assert.assertTrue(metrics.getQueueDepth() > depth);
+
+        UI.setCurrent(ui);
+        try {
+            ui.getSession().removeUI(ui);
+        } finally {
+            UI.setCurrent(null);
+        }
+        Assert.assertEquals(depth, metrics.getQueueDepth());
+
+        // Nothing is counted for a UI that is gone
+        tracker.sendEvent("Category", "Third");
+        Assert.assertEquals(depth, metrics.getQueueDepth());
+    }
+
+    @Test
+    public void queueRestored_restoredActionsNotCountedAgain() throws IOException, ClassNotFoundException {
+        ActionQueue queue = new ActionQueue(10, OverflowPolicy.DROP_OLDEST);
+        queue.offer(new Serializable[] { "send", "event", "Category", "First" });
+        queue.offer(new Serializable[] { "send", "event", "Category", "Second" });
+        long depth = metrics.getQueueDepth();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            queue.writeTo(out);
+        }
+        ActionQueue restored = new ActionQueue(1, OverflowPolicy.DROP_NEWEST);
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            restored.readFrom(in);
+        }
+        Assert.assertEquals(2, restored.size());
+        Assert.assertEquals(depth, metrics.getQueueDepth());
+
+        // Sending the restored actions doesn't take the gauge below its value
+        restored.offer(new Serializable[] { "send", "event", "Category", "Third" });
+        restored.clear();
+        Assert.assertEquals(depth, metrics.getQueueDepth());
+
+        queue.clear();
+        Assert.assertEquals(depth - 2, metrics.getQueueDepth());
+    }
+
+    @Test
+    public void navigationGetters_noHistogramCreated() {
+        class Target {
+        }
+        int targets = metrics.getTimedNavigationTargetCount();
+
+        Assert.assertEquals(0, metrics.getNavigationCount(Target.class));
+        Assert.assertEquals(0, metrics.getNavigationMeanMicros(Target.class), 0);
+        Assert.assertEquals(0, metrics.getNavigationPercentileMicros(Target.class, 99));
+        Assert.assertEquals(targets, metrics.getTimedNavigationTargetCount());
+
+        metrics.navigationTimed(Target.class, 1000);
+        Assert.assertEquals(1, metrics.getNavigationCount(Target.class));
+        Assert.assertEquals(targets + 1, metrics.getTimedNavigationTargetCount());
+    }
+
+    @Test
+    public void pageViewSampledOut_notCountedAsIgnoredNavigation() {
+        long ignored = metrics.getIgnoredNavigationCount();
+        long sampledOut = metrics.getSampledOutPageViewCount();
+
+        InitListener.afterNavigation(ui, TestUIs.createNavigationEvent(ui, "view"));
+
+        Assert.assertEquals(ignored, metrics.getIgnoredNavigationCount());
+        Assert.assertEquals(sampledOut + 1, metrics.getSampledOutPageViewCount());
+        Assert.assertTrue(uis.getTransport().getHits("pageview").isEmpty());
+    }
+}
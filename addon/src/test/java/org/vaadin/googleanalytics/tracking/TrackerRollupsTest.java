@@ -0,0 +1,105 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+
+public class TrackerRollupsTest {
+    /**
+     * A minute far from the current time so that recorded traffic doesn't
+     * end up in buckets of other minutes.
+     */
+    private static final long MINUTE = 1000 * TrackerRollups.MINUTES;
+
+    private static Serializable[] pageView(String location) {
+        return new Serializable[] { "send", "pageview", location };
+    }
+
+    private static Serializable[] event(String category, String action) {
+        return new Serializable[] { "send", "event", category, action };
+    }
+
+    private static long getHits(JsonObject json) {
+        JsonArray minutes = json.getArray("minutes");
+        return (long) minutes.getObject(minutes.length() - 1).getNumber("hits");
+    }
+
+    @Test
+    public void nextRound_bucketReplaced() {
+        TrackerRollups.Bucket old = TrackerRollups.getBucket(MINUTE);
+        old.record(event("Category", "Action"), null);
+        Assert.assertEquals(1, getHits(TrackerRollups.toJson(MINUTE, 1)));
+
+        long later = MINUTE + TrackerRollups.MINUTES;
+        TrackerRollups.Bucket next = TrackerRollups.getBucket(later);
+        Assert.assertNotSame(old, next);
+        Assert.assertEquals(later, next.getMinute());
+
+        JsonObject json = TrackerRollups.toJson(later, 1);
+        Assert.assertEquals(0, getHits(json));
+        Assert.assertEquals(0, json.getObject("events").keys().length);
+        // The old minute isn't reported from the newer bucket
+        Assert.assertEquals(0, getHits(TrackerRollups.toJson(MINUTE, 1)));
+    }
+
+    @Test
+    public void olderMinute_newerBucketKept() {
+        long minute = MINUTE + 1;
+        TrackerRollups.Bucket current = TrackerRollups.getBucket(minute + TrackerRollups.MINUTES);
+
+        Assert.assertSame(current, TrackerRollups.getBucket(minute));
+        Assert.assertSame(current, TrackerRollups.getBucket(minute + TrackerRollups.MINUTES));
+    }
+
+    @Test
+    public void tooManyKeys_restCountedAsOther() {
+        long minute = MINUTE + 2;
+        TrackerRollups.Bucket bucket = TrackerRollups.getBucket(minute);
+        for (int i = 0; i < TrackerRollups.MAX_KEYS + 3; i++) {
+            bucket.record(pageView("/page/" + i), null);
+        }
+        bucket.record(pageView("/page/0"), null);
+
+        JsonObject pageViews = TrackerRollups.toJson(minute, 1).getObject("pageViews");
+        Assert.assertEquals(TrackerRollups.MAX_KEYS + 1, pageViews.keys().length);
+        Assert.assertEquals(3, (long) pageViews.getNumber(TrackerRollups.OTHER));
+        Assert.assertEquals(2, (long) pageViews.getNumber("/page/0"));
+    }
+
+    @Test
+    public void longKey_countedUnderTruncatedKeyWhenFull() {
+        long minute = MINUTE + 3;
+        StringBuilder prefix = new StringBuilder("/");
+        while (prefix.length() < TrackerRollups.MAX_KEY_LENGTH) {
+            prefix.append('x');
+        }
+        TrackerRollups.Bucket bucket = TrackerRollups.getBucket(minute);
+        bucket.record(pageView(prefix + "/a"), null);
+        for (int i = 1; i < TrackerRollups.MAX_KEYS; i++) {
+            bucket.record(pageView("/page/" + i), null);
+        }
+
+        bucket.record(pageView(prefix + "/b"), null);
+
+        JsonObject pageViews = TrackerRollups.toJson(minute, 1).getObject("pageViews");
+        Assert.assertEquals(2, (long) pageViews.getNumber(prefix.toString()));
+        Assert.assertFalse(pageViews.hasKey(TrackerRollups.OTHER));
+    }
+
+    @Test
+    public void events_countedPerCategoryAndAction() {
+        long minute = MINUTE + 4;
+        TrackerRollups.Bucket bucket = TrackerRollups.getBucket(minute);
+        bucket.record(event("Category", "First"), null);
+        bucket.record(event("Category", "First"), null);
+        bucket.record(event("Category", "Second"), null);
+
+        JsonObject category = TrackerRollups.toJson(minute, 1).getObject("events").getObject("Category");
+        Assert.assertEquals(2, (long) category.getNumber("First"));
+        Assert.assertEquals(1, (long) category.getNumber("Second"));
+    }
+}
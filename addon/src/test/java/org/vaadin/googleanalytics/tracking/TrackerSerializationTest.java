@@ -0,0 +1,177 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.vaadin.googleanalytics.tracking.GoogleAnalyticsTracker.EventCoalescing;
+import org.vaadin.googleanalytics.tracking.GoogleAnalyticsTracker.OverflowPolicy;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.server.WrappedSession;
+
+public class TrackerSerializationTest {
+    /**
+     * The most that an initialized tracker may add to the serialized size of
+     * its UI.
+     */
+    private static final int TRACKER_SIZE_BUDGET = 1280;
+
+    /**
+     * The most that a typical queued action may add to the serialized size.
+     */
+    private static final int ACTION_SIZE_BUDGET = 96;
+
+    @Rule
+    public final TestUIs uis = new TestUIs();
+
+    private UI ui;
+    private GoogleAnalyticsTracker tracker;
+
+    @Before
+    public void setup() {
+        uis.configure(config -> {
+        });
+        ui = uis.createUI();
+        tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.sendPageView("setup");
+        TestUIs.drain(ui);
+    }
+
+    private static byte[] serialize(UI ui) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(ui);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static UI deserialize(byte[] bytes, UI original) throws IOException, ClassNotFoundException {
+        UI restored;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            restored = (UI) in.readObject();
+        }
+        // The service is not serialized, so it's set again like a container would
+        ReentrantLock lock = new ReentrantLock();
+        WrappedSession wrappedSession = (WrappedSession) Proxy.newProxyInstance(
+                TrackerSerializationTest.class.getClassLoader(), new Class<?>[] { WrappedSession.class },
+                (proxy, method, args) -> "getAttribute".equals(method.getName()) ? lock : null);
+        lock.lock();
+        try {
+            restored.getSession().refreshTransients(wrappedSession, original.getSession().getService());
+        } finally {
+            lock.unlock();
+        }
+        return restored;
+    }
+
+    private static List<String> describe(List<Serializable[]> hits) {
+        List<String> descriptions = new ArrayList<>();
+        for (Serializable[] hit : hits) {
+            descriptions.add(String.valueOf(hit[hit.length - 1]));
+        }
+        return descriptions;
+    }
+
+    @Test
+    public void roundTrip_stateRestored() throws Exception {
+        tracker.setMaxPendingActions(50);
+        tracker.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        tracker.setEventCoalescing(EventCoalescing.COUNT);
+        tracker.sendEvent("Category", "Action", "Label");
+        tracker.sendEvent("Category", "Action", "Label");
+        tracker.sendPageView("queued");
+
+        byte[] bytes;
+        Lock lock = ui.getSession().getLockInstance();
+        lock.lock();
+        try {
+            // Stays queued since the session is locked by this thread
+            Thread background = new Thread(() -> tracker.enqueueEvent("Background", "Action", null));
+            background.start();
+            background.join();
+            bytes = serialize(ui);
+        } finally {
+            lock.unlock();
+        }
+
+        UI restored = deserialize(bytes, ui);
+        GoogleAnalyticsTracker restoredTracker = GoogleAnalyticsTracker.get(restored);
+        Assert.assertNotSame(tracker, restoredTracker);
+        Assert.assertTrue(restoredTracker.isInitialized());
+        Assert.assertEquals(50, restoredTracker.getMaxPendingActions());
+        Assert.assertEquals(OverflowPolicy.DROP_NEWEST, restoredTracker.getOverflowPolicy());
+        Assert.assertEquals(EventCoalescing.COUNT, restoredTracker.getEventCoalescing());
+
+        int sent = uis.getTransport().getCommands().size();
+        TestUIs.drain(restored);
+        List<Serializable[]> commands = uis.getTransport().getCommands();
+        commands = commands.subList(sent, commands.size());
+
+        // The merged event keeps the position of the first event
+        Assert.assertEquals("[2, queued, pageview, Action]", describe(commands).toString());
+        Assert.assertEquals("Category", commands.get(0)[2]);
+        Assert.assertEquals("Background", commands.get(3)[2]);
+    }
+
+    @Test
+    public void restoredWithoutActiveRoute_actionsKeptUntilNavigation() throws Exception {
+        UI restored = deserialize(serialize(ui), ui);
+        // There is no API for leaving all routes, so the chain is emptied directly
+        Field chain = restored.getInternals().getClass().getDeclaredField("routerTargetChain");
+        chain.setAccessible(true);
+        ((List<?>) chain.get(restored.getInternals())).clear();
+
+        GoogleAnalyticsTracker restoredTracker = GoogleAnalyticsTracker.get(restored);
+        restoredTracker.sendPageView("restored");
+        int sent = uis.getTransport().getCommands().size();
+        TestUIs.drain(restored);
+        Assert.assertEquals(sent, uis.getTransport().getCommands().size());
+
+        TestUIs.showRoute(restored, new TestUIs.View());
+        restoredTracker.sendPageView("navigated");
+        TestUIs.drain(restored);
+        Assert.assertEquals(3, uis.getTransport().getHits("pageview").size());
+    }
+
+    @Test
+    public void restoredWithUntrackedLayout_actionsDropped() throws Exception {
+        UI restored = deserialize(serialize(ui), ui);
+        TestUIs.showRoute(restored, new TestUIs.View(), new NavigationPageViewTest.UntrackedLayout());
+
+        GoogleAnalyticsTracker restoredTracker = GoogleAnalyticsTracker.get(restored);
+        restoredTracker.sendPageView("restored");
+        int sent = uis.getTransport().getCommands().size();
+        TestUIs.drain(restored);
+
+        Assert.assertEquals(sent, uis.getTransport().getCommands().size());
+        Assert.assertEquals(2, restoredTracker.getDroppedActionCount());
+    }
+
+    @Test
+    public void serializedSize_withinBudget() throws IOException {
+        int uiSize = serialize(uis.createUI()).length;
+        int trackerSize = serialize(ui).length - uiSize;
+        Assert.assertTrue(trackerSize + " bytes", trackerSize <= TRACKER_SIZE_BUDGET);
+
+        for (int i = 0; i < 10; i++) {
+            tracker.sendEvent("Category", "Action " + i, "Label");
+        }
+        tracker.sendPageView("queued");
+        int actionsSize = serialize(ui).length - uiSize - trackerSize;
+        Assert.assertTrue(actionsSize + " bytes", actionsSize <= 12 * ACTION_SIZE_BUDGET);
+    }
+}
@@ -0,0 +1,22 @@
+package org.vaadin.googleanalytics.tracking;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled and writes the results to
+ * <code>jmh-result.json</code> so that allocation rates can be compared between
+ * releases. Regular JMH command line options can be used to select benchmarks
+ * or override settings.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON).result("jmh-result.json").build()).run();
+    }
+}
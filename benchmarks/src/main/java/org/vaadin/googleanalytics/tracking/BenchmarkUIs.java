@@ -0,0 +1,223 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+
+import com.vaadin.flow.component.Component;
+import com.vaadin.flow.component.HasElement;
+import com.vaadin.flow.component.Tag;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.internal.UIInternals.JavaScriptInvocation;
+import com.vaadin.flow.function.DeploymentConfiguration;
+import com.vaadin.flow.router.AfterNavigationEvent;
+import com.vaadin.flow.router.Location;
+import com.vaadin.flow.router.LocationChangeEvent;
+import com.vaadin.flow.router.NavigationTrigger;
+import com.vaadin.flow.router.Router;
+import com.vaadin.flow.router.RouterLayout;
+import com.vaadin.flow.server.Constants;
+import com.vaadin.flow.server.DefaultDeploymentConfiguration;
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinService;
+import com.vaadin.flow.server.VaadinSession;
+import com.vaadin.flow.server.WebBrowser;
+import com.vaadin.flow.server.startup.RouteRegistry;
+import com.vaadin.flow.theme.AbstractTheme;
+
+/**
+ * Creates UI instances with an active router chain without running a servlet
+ * container.
+ */
+final class BenchmarkUIs {
+    @Tag("div")
+    @EnableGoogleAnalytics("UA-000000-0")
+    static class RootLayout extends Component implements RouterLayout {
+    }
+
+    @Tag("div")
+    static class NestedLayout extends Component implements RouterLayout {
+    }
+
+    @Tag("div")
+    static class View extends Component {
+    }
+
+    /**
+     * A service without a servlet that has no routes and no resources.
+     */
+    static class BenchmarkService extends VaadinService {
+        private final Router router = new Router(new EmptyRouteRegistry());
+
+        BenchmarkService(DeploymentConfiguration configuration) {
+            super(configuration);
+        }
+
+        @Override
+        protected RouteRegistry getRouteRegistry() {
+            return router.getRegistry();
+        }
+
+        @Override
+        public Router getRouter() {
+            return router;
+        }
+
+        @Override
+        public String getMimeType(String resourceName) {
+            return null;
+        }
+
+        @Override
+        protected boolean requestCanCreateSession(VaadinRequest request) {
+            return false;
+        }
+
+        @Override
+        public String getServiceName() {
+            return "benchmark";
+        }
+
+        @Override
+        public String getMainDivId(VaadinSession session, VaadinRequest request) {
+            return "benchmark";
+        }
+
+        @Override
+        public URL getStaticResource(String url) {
+            return null;
+        }
+
+        @Override
+        public URL getResource(String url, WebBrowser browser, AbstractTheme theme) {
+            return null;
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String url, WebBrowser browser, AbstractTheme theme) {
+            return null;
+        }
+
+        @Override
+        public String resolveResource(String url, WebBrowser browser) {
+            return url;
+        }
+
+        @Override
+        public Optional<String> getThemedUrl(String url, WebBrowser browser, AbstractTheme theme) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * A session that is always locked by the current thread.
+     */
+    static class BenchmarkSession extends VaadinSession {
+        BenchmarkSession(VaadinService service) {
+            super(service);
+        }
+
+        @Override
+        public DeploymentConfiguration getConfiguration() {
+            return getService().getDeploymentConfiguration();
+        }
+
+        @Override
+        public boolean hasLock() {
+            return true;
+        }
+    }
+
+    private static class EmptyRouteRegistry extends RouteRegistry {
+    }
+
+    private BenchmarkUIs() {
+        // Only static helpers
+    }
+
+    /**
+     * Creates a UI attached to a session of a service without a servlet. The
+     * session and service are serializable so that the UI can be serialized
+     * as a whole.
+     * 
+     * @param productionMode
+     *            the production mode setting of the session
+     * @return a new UI, not <code>null</code>
+     */
+    static UI createUI(boolean productionMode) {
+        Properties properties = new Properties();
+        properties.setProperty(Constants.SERVLET_PARAMETER_PRODUCTION_MODE, Boolean.toString(productionMode));
+        VaadinSession session = new BenchmarkSession(
+                new BenchmarkService(new DefaultDeploymentConfiguration(BenchmarkUIs.class, properties)));
+
+        UI ui = new UI();
+        ui.getInternals().setSession(session);
+        return ui;
+    }
+
+    /**
+     * Shows a view in the UI inside nested layouts. The outermost layout is
+     * annotated with @{@link EnableGoogleAnalytics}.
+     * 
+     * @param ui
+     *            the UI to update, not <code>null</code>
+     * @param depth
+     *            the total number of elements in the router chain, at least 2
+     * @return the active router chain, not <code>null</code>
+     */
+    static List<HasElement> showRoute(UI ui, int depth) {
+        List<RouterLayout> layouts = new ArrayList<>();
+        for (int i = 0; i < depth - 2; i++) {
+            layouts.add(new NestedLayout());
+        }
+        layouts.add(new RootLayout());
+
+        ui.getInternals().showRouteTarget(new Location("view"), "view", new View(), layouts);
+        return ui.getInternals().getActiveRouterTargetsChain();
+    }
+
+    /**
+     * Creates an after navigation event for the given router chain.
+     * 
+     * @param ui
+     *            the UI, not <code>null</code>
+     * @param location
+     *            the navigation location, not <code>null</code>
+     * @param chain
+     *            the active router chain, not <code>null</code>
+     * @return a navigation event, not <code>null</code>
+     */
+    static AfterNavigationEvent createNavigationEvent(UI ui, String location, List<HasElement> chain) {
+        return new AfterNavigationEvent(new LocationChangeEvent(ui.getRouter(), ui,
+                NavigationTrigger.PROGRAMMATIC, new Location(location), chain));
+    }
+
+    /**
+     * Runs everything that would happen when a response is written, and
+     * discards the resulting JavaScript invocations.
+     * 
+     * @param ui
+     *            the UI to drain, not <code>null</code>
+     * @return the number of JavaScript invocations in the response
+     */
+    static int drain(UI ui) {
+        return drainInvocations(ui).size();
+    }
+
+    /**
+     * Runs everything that would happen when a response is written, and
+     * returns the resulting JavaScript invocations.
+     * 
+     * @param ui
+     *            the UI to drain, not <code>null</code>
+     * @return the JavaScript invocations in the response, not
+     *         <code>null</code>
+     */
+    static List<JavaScriptInvocation> drainInvocations(UI ui) {
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+        return ui.getInternals().dumpPendingJavaScriptInvocations();
+    }
+}
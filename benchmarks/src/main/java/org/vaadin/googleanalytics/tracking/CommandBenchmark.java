@@ -0,0 +1,58 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import elemental.json.JsonObject;
+
+/**
+ * Measures building individual tracker commands.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandBenchmark {
+    private Map<String, Serializable> fieldsObject;
+    private PreparedEvent preparedEvent;
+
+    @Setup
+    public void setup() {
+        fieldsObject = new LinkedHashMap<>();
+        fieldsObject.put("dimension1", "premium");
+        fieldsObject.put("metric1", Integer.valueOf(42));
+        fieldsObject.put("nonInteraction", Boolean.TRUE);
+        fieldsObject.put("transport", "beacon");
+
+        preparedEvent = GoogleAnalyticsTracker.prepareEvent("Category", "Action", fieldsObject);
+    }
+
+    @Benchmark
+    public Serializable[] createAction() {
+        return GoogleAnalyticsTracker.createAction("send", null, "event", "Category", "Action", "Label");
+    }
+
+    @Benchmark
+    public Serializable[] createActionWithFieldsObject() {
+        return GoogleAnalyticsTracker.createAction("send", fieldsObject, "event", "Category", "Action");
+    }
+
+    @Benchmark
+    public Serializable[] createPreparedAction() {
+        return preparedEvent.createAction("Label", null);
+    }
+
+    @Benchmark
+    public JsonObject toJsonObject() {
+        return GoogleAnalyticsTracker.toJsonObject(fieldsObject);
+    }
+}
@@ -0,0 +1,30 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures creating a tracker configuration from an annotation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConfigurationBenchmark {
+    private static final EnableGoogleAnalytics ANNOTATION = BenchmarkUIs.RootLayout.class
+            .getAnnotation(EnableGoogleAnalytics.class);
+
+    @Param({ "true", "false" })
+    public boolean productionMode;
+
+    @Benchmark
+    public TrackerConfiguration fromAnnotation() {
+        return TrackerConfiguration.fromAnnotation(ANNOTATION, productionMode);
+    }
+}
@@ -0,0 +1,49 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.vaadin.flow.component.HasElement;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.router.AfterNavigationEvent;
+
+/**
+ * Measures the after navigation listener registered by {@link InitListener}
+ * for router chains of different depths, including draining the resulting
+ * page view.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NavigationBenchmark {
+    @Param({ "2", "4", "8" })
+    public int chainDepth;
+
+    private UI ui;
+    private AfterNavigationEvent event;
+
+    @Setup
+    public void setup() {
+        ui = BenchmarkUIs.createUI(true);
+        List<HasElement> chain = BenchmarkUIs.showRoute(ui, chainDepth);
+        event = BenchmarkUIs.createNavigationEvent(ui, "view?id=42", chain);
+
+        InitListener.afterNavigation(ui, event);
+        BenchmarkUIs.drain(ui);
+    }
+
+    @Benchmark
+    public int afterNavigation() {
+        InitListener.afterNavigation(ui, event);
+        return BenchmarkUIs.drain(ui);
+    }
+}
@@ -0,0 +1,77 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.vaadin.flow.component.UI;
+
+/**
+ * Reports the number of bytes that a serialized UI takes with trackers in
+ * different states, compared to a UI without a tracker. Sessions are
+ * replicated and passivated as a whole, so this is the cost per UI in a
+ * clustered deployment.
+ */
+public class SerializedSizeReport {
+    private static final int QUEUED_ACTIONS = 10;
+
+    public static void main(String[] args) throws IOException {
+        UI baseline = BenchmarkUIs.createUI(true);
+        BenchmarkUIs.showRoute(baseline, 2);
+        int baselineSize = serializedSize(baseline);
+        System.out.printf("%-40s %7d bytes per UI%n", "Without tracker", baselineSize);
+
+        report(baselineSize, "Tracker not used", ui -> {
+            // Only created
+        });
+        report(baselineSize, "Initialized, nothing queued", ui -> {
+            GoogleAnalyticsTracker.get(ui).sendPageView("view");
+            BenchmarkUIs.drain(ui);
+        });
+        report(baselineSize, QUEUED_ACTIONS + " queued events", ui -> {
+            GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(ui);
+            for (int i = 0; i < QUEUED_ACTIONS; i++) {
+                tracker.sendEvent("category", "action", "label", i);
+            }
+        });
+        report(baselineSize, QUEUED_ACTIONS + " queued events with fields", ui -> {
+            GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(ui);
+            Map<String, Serializable> fields = new HashMap<>();
+            fields.put("dimension1", "value");
+            fields.put("nonInteraction", Boolean.TRUE);
+            for (int i = 0; i < QUEUED_ACTIONS; i++) {
+                tracker.sendEvent("category", "action", fields);
+            }
+        });
+        report(baselineSize, QUEUED_ACTIONS + " queued page views before init", ui -> {
+            GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(ui);
+            for (int i = 0; i < QUEUED_ACTIONS; i++) {
+                tracker.sendPageView("view/" + i);
+            }
+        });
+    }
+
+    private static void report(int baselineSize, String scenario, Consumer<UI> setup) throws IOException {
+        UI ui = BenchmarkUIs.createUI(true);
+        BenchmarkUIs.showRoute(ui, 2);
+        GoogleAnalyticsTracker.get(ui);
+        setup.accept(ui);
+
+        // Includes flush callbacks registered with the UI by the tracker
+        int size = serializedSize(ui);
+        System.out.printf("%-40s %7d bytes per UI, %5d bytes for tracking%n", scenario, size,
+                size - baselineSize);
+    }
+
+    private static int serializedSize(UI ui) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(ui);
+        }
+        return bytes.size();
+    }
+}
@@ -0,0 +1,64 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures appending hits to a {@link HitSpool} with different sync
+ * intervals. The spool is small enough that segments are rotated and
+ * discarded during the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SpoolBenchmark {
+    private static final String HIT = "v=1&tid=UA-123456-1&cid=35009a79-1a05-49d7-b876-2b884d0f825b"
+            + "&t=event&ec=Category&ea=Action&el=Label&ua=Mozilla%2F5.0&uip=192.0.2.1";
+
+    @Param({ "1", "100", "10000" })
+    public int syncEveryHits;
+
+    private Path directory;
+    private HitSpool spool;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("hit-spool");
+        spool = new HitSpool(directory, 16 * 1024 * 1024, 4).setSyncEveryHits(syncEveryHits);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        spool.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public boolean append() throws IOException {
+        return spool.append(HIT, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean appendContended() throws IOException {
+        return spool.append(HIT, System.currentTimeMillis());
+    }
+}
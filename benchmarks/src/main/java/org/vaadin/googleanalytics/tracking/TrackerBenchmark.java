@@ -0,0 +1,64 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.vaadin.flow.component.UI;
+
+/**
+ * Measures queueing commands through the tracker and draining them when a
+ * response is written. The tracker is initialized during setup, so the
+ * measurements do not include creating the configuration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrackerBenchmark {
+    @Param({ "1", "10" })
+    public int commandsPerResponse;
+
+    private UI ui;
+    private GoogleAnalyticsTracker tracker;
+
+    @Setup
+    public void setup() {
+        ui = BenchmarkUIs.createUI(true);
+        BenchmarkUIs.showRoute(ui, 2);
+
+        tracker = GoogleAnalyticsTracker.get(ui);
+        tracker.sendPageView("setup");
+        BenchmarkUIs.drain(ui);
+    }
+
+    @Benchmark
+    public int ga() {
+        for (int i = 0; i < commandsPerResponse; i++) {
+            tracker.ga("send", null, "event", "Category", "Action", "Label");
+        }
+        return BenchmarkUIs.drain(ui);
+    }
+
+    @Benchmark
+    public int sendEvent() {
+        for (int i = 0; i < commandsPerResponse; i++) {
+            tracker.sendEvent("Category", "Action");
+        }
+        return BenchmarkUIs.drain(ui);
+    }
+
+    @Benchmark
+    public int sendPageView() {
+        for (int i = 0; i < commandsPerResponse; i++) {
+            tracker.sendPageView("view");
+        }
+        return BenchmarkUIs.drain(ui);
+    }
+}
@@ -0,0 +1,116 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.vaadin.flow.component.UI;
+
+/**
+ * Measures the sustained number of hits per second that a
+ * {@link MeasurementProtocolTransport} delivers to a local stand-in for the
+ * batch endpoint. Each invocation sends full batches of event hits and waits
+ * until the endpoint has accepted them, so the result includes encoding,
+ * batching and the HTTP round-trips. The results are only valid if no hits are
+ * dropped, so an invocation fails if the transport drops any.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransportBenchmark {
+    private static final int BATCH_HITS = MeasurementProtocolTransport.MAX_HITS_PER_BATCH;
+
+    private static final int SENDER_THREADS = 4;
+
+    private static final List<Serializable[]> EVENT = Collections
+            .singletonList(new Serializable[] { "send", "event", "Category", "Action", "Label" });
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private MeasurementProtocolTransport transport;
+    private UI ui;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/batch", TransportBenchmark::accept);
+        serverThreads = Executors.newFixedThreadPool(SENDER_THREADS);
+        server.setExecutor(serverThreads);
+        server.start();
+
+        InetSocketAddress address = server.getAddress();
+        transport = new MeasurementProtocolTransport(
+                "http://" + address.getHostString() + ":" + address.getPort() + "/batch", SENDER_THREADS, 1000);
+
+        ui = BenchmarkUIs.createUI(true);
+        transport.init(ui, null);
+        transport.send(ui, Collections.singletonList(new Serializable[] { "create", "UA-000000-0", "auto" }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        transport.close();
+        server.stop(0);
+        serverThreads.shutdown();
+    }
+
+    private static void accept(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // Discard
+            }
+        }
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+    }
+
+    private long deliver(int hitCount) throws InterruptedException {
+        long dropped = transport.getDroppedHitCount();
+        long target = transport.getSentHitCount() + hitCount;
+        for (int i = 0; i < hitCount; i++) {
+            transport.send(ui, EVENT);
+        }
+        // Full batches are flushed without waiting for the interval
+        long sent;
+        while ((sent = transport.getSentHitCount()) < target) {
+            if (transport.getDroppedHitCount() != dropped) {
+                throw new IllegalStateException("Hits were dropped, the results would be misleading");
+            }
+            Thread.sleep(0, 100_000);
+        }
+        return sent;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_HITS)
+    public long deliverBatch() throws InterruptedException {
+        return deliver(BATCH_HITS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SENDER_THREADS * BATCH_HITS)
+    public long deliverConcurrentBatches() throws InterruptedException {
+        return deliver(SENDER_THREADS * BATCH_HITS);
+    }
+}
@@ -0,0 +1,157 @@
+package org.vaadin.googleanalytics.tracking;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.vaadin.flow.component.HasElement;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.internal.UIInternals.JavaScriptInvocation;
+import com.vaadin.flow.internal.JsonCodec;
+import com.vaadin.flow.router.AfterNavigationEvent;
+
+/**
+ * Simulates many concurrent users without a browser or servlet container.
+ * Each simulated UI has its own session and an
+ * {@link EnableGoogleAnalytics} root layout, and repeatedly navigates and
+ * sends events through {@link InitListener} and
+ * {@link GoogleAnalyticsTracker}. Each UI is only used by one thread, like
+ * with a locked session.
+ * <p>
+ * Reports navigation throughput, per-navigation latency percentiles including
+ * writing the response, heap retained per UI by the tracker and the number and
+ * size of JavaScript invocations per response.
+ * <p>
+ * Arguments: number of UIs (default 2000), number of threads (default the
+ * number of processors) and navigations per UI (default 50).
+ */
+public class LoadSimulation {
+    private static final String[] EVENT_ACTIONS = { "open", "close" };
+
+    private static final class SimulatedUI {
+        private final UI ui;
+        private final AfterNavigationEvent navigationEvent;
+
+        private SimulatedUI(int index) {
+            ui = BenchmarkUIs.createUI(true);
+            List<HasElement> chain = BenchmarkUIs.showRoute(ui, 3);
+            navigationEvent = BenchmarkUIs.createNavigationEvent(ui, "view?id=" + index, chain);
+        }
+    }
+
+    private final LatencyHistogram navigationLatency = new LatencyHistogram();
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder invocationBytes = new LongAdder();
+    private final AtomicInteger maxInvocationsPerResponse = new AtomicInteger();
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        int uiCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int navigations = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        new LoadSimulation().run(uiCount, threads, navigations);
+    }
+
+    private void run(int uiCount, int threads, int navigations) throws InterruptedException, ExecutionException {
+        System.out.printf("Simulating %d UIs on %d threads, %d navigations per UI%n", uiCount, threads, navigations);
+
+        List<SimulatedUI> uis = new ArrayList<>(uiCount);
+        for (int i = 0; i < uiCount; i++) {
+            uis.add(new SimulatedUI(i));
+        }
+        long heapWithoutTrackers = usedHeap();
+
+        // The first navigation creates and initializes the trackers
+        for (SimulatedUI simulated : uis) {
+            InitListener.afterNavigation(simulated.ui, simulated.navigationEvent);
+            BenchmarkUIs.drain(simulated.ui);
+        }
+        long heapWithTrackers = usedHeap();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            List<SimulatedUI> slice = new ArrayList<>();
+            for (int i = t; i < uiCount; i += threads) {
+                slice.add(uis.get(i));
+            }
+            results.add(executor.submit(() -> simulate(slice, navigations)));
+        }
+        for (Future<?> result : results) {
+            // Propagates failures so that the build fails
+            result.get();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        long totalNavigations = navigationLatency.getCount();
+        System.out.printf("%-32s %12.0f navigations/s%n", "Throughput",
+                totalNavigations / (elapsedNanos / 1e9));
+        System.out.printf("%-32s %12.1f us%n", "Navigation latency mean", navigationLatency.getMeanNanos() / 1000);
+        for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+            System.out.printf("%-32s %12.1f us%n", "Navigation latency p" + percentile,
+                    navigationLatency.getPercentileNanos(percentile) / 1000.0);
+        }
+        System.out.printf("%-32s %12d bytes%n", "Heap retained per UI",
+                (heapWithTrackers - heapWithoutTrackers) / uiCount);
+        System.out.printf("%-32s %12.2f%n", "JS invocations per response",
+                invocations.sum() / (double) responses.sum());
+        System.out.printf("%-32s %12d%n", "Max JS invocations per response", maxInvocationsPerResponse.get());
+        System.out.printf("%-32s %12.0f bytes%n", "JS payload per response",
+                invocationBytes.sum() / (double) responses.sum());
+    }
+
+    private void simulate(List<SimulatedUI> slice, int navigations) {
+        for (int n = 0; n < navigations; n++) {
+            for (SimulatedUI simulated : slice) {
+                long start = System.nanoTime();
+                InitListener.afterNavigation(simulated.ui, simulated.navigationEvent);
+                GoogleAnalyticsTracker tracker = GoogleAnalyticsTracker.get(simulated.ui);
+                for (String action : EVENT_ACTIONS) {
+                    tracker.sendEvent("Simulation", action, "label");
+                }
+                List<JavaScriptInvocation> response = BenchmarkUIs.drainInvocations(simulated.ui);
+                navigationLatency.record(System.nanoTime() - start);
+
+                responses.increment();
+                invocations.add(response.size());
+                invocationBytes.add(size(response));
+                maxInvocationsPerResponse.accumulateAndGet(response.size(), Math::max);
+            }
+        }
+    }
+
+    /**
+     * Approximates the size of invocations in the UIDL response as the length
+     * of the expressions and the JSON encoded parameters.
+     */
+    private static long size(List<JavaScriptInvocation> response) {
+        long size = 0;
+        for (JavaScriptInvocation invocation : response) {
+            size += invocation.getExpression().length();
+            for (Object parameter : invocation.getParameters()) {
+                size += JsonCodec.encodeWithTypeInfo(parameter).toJson().length();
+            }
+        }
+        return size;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -1,8 +1,8 @@
 package org.vaadin.googleanalytics.tracking.demo;
 
 import org.vaadin.googleanalytics.tracking.EnableGoogleAnalytics;
+import org.vaadin.googleanalytics.tracking.SharedTrackerConfigurator;
 import org.vaadin.googleanalytics.tracking.TrackerConfiguration;
-import org.vaadin.googleanalytics.tracking.TrackerConfigurator;
 
 import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
@@ -10,7 +10,7 @@ import com.vaadin.flow.router.RouterLayout;
 import com.vaadin.flow.router.RouterLink;
 
 @EnableGoogleAnalytics(value = "UA-658457-8")
-public class MainLayout extends VerticalLayout implements RouterLayout, TrackerConfigurator {
+public class MainLayout extends VerticalLayout implements RouterLayout, SharedTrackerConfigurator {
     public MainLayout() {
         add(new HorizontalLayout(new RouterLink("Main view", MainView.class),
                 new RouterLink("Second view", SecondView.class), new RouterLink("Ignored view", IgnoredView.class)));
@@ -12,9 +12,13 @@ import com.vaadin.flow.router.Route;
 @PageTitle("Main view")
 public class MainView extends VerticalLayout {
     public MainView() {
+        Button clientButton = new Button("Send an event from the browser");
+        GoogleAnalyticsTracker.getCurrent().trackClientEvent(clientButton,
+                "click", "Examples", "Client event button");
+
         add(new Text("Main view"), new Button("Send an event", click -> {
             GoogleAnalyticsTracker.getCurrent().sendEvent("Examples",
                     "Event button");
-        }));
+        }), clientButton);
     }
 }